@@ -24,7 +24,6 @@ import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefIgnore;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
-import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +33,6 @@ import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.ToDoubleFunction;
 
 /**
  * The type Avg meta layer.
@@ -132,20 +130,13 @@ public class AvgMetaLayer extends LayerBase {
   public Tensor fwd(TensorList inputData, int itemCnt, AtomicBoolean passback) {
     try {
       if (null == lastResult || inputData.length() > minBatchCount) {
-        @Nonnull final ToDoubleFunction<Coordinate> f = RefUtil
-            .wrapInterface(c -> RefIntStream.range(0, itemCnt).mapToDouble(RefUtil.wrapInterface(dataIndex -> {
-                  Tensor tensor = inputData.get(dataIndex);
-                  double temp_21_0005 = tensor.get(c);
-                  tensor.freeRef();
-                  return temp_21_0005;
-                }, inputData.addRef())).sum() / itemCnt,
-                inputData.addRef());
         passback.set(true);
         clearLastResult();
-        Tensor tensor = inputData.get(0);
-        Tensor thisResult = tensor.mapCoords(f);
-        tensor.freeRef();
-        return thisResult;
+        final double[] sum = BatchReductions.sum(inputData.addRef());
+        for (int i = 0; i < sum.length; i++) {
+          sum[i] /= itemCnt;
+        }
+        return new Tensor(sum, inputData.getDimensions());
       } else {
         passback.set(false);
         return lastResult == null ? null : lastResult.addRef();
@@ -227,21 +218,12 @@ public class AvgMetaLayer extends LayerBase {
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList data) {
       if (alive) {
         @Nullable final Tensor delta = data.get(0);
-        @Nonnull final Tensor feedback[] = new Tensor[itemCnt];
         int[] deltaDimensions = delta.getDimensions();
-        RefArrays.parallelSetAll(RefUtil.addRef(feedback),
-            i -> new Tensor(deltaDimensions));
-        if (active) {
-          tensor.coordStream(true)
-              .forEach(RefUtil.wrapInterface(inputCoord -> {
-                for (int inputItem = 0; inputItem < itemCnt; inputItem++) {
-                  feedback[inputItem].add(inputCoord, delta.get(inputCoord) / itemCnt);
-                }
-              }, delta, RefUtil.addRef(feedback)));
-        } else {
-          delta.freeRef();
-        }
-        this.accumulator.accept(buffer == null ? null : buffer.addRef(), new TensorArray(feedback));
+        // Every item receives the same share of the delta; inactive passes send zeros
+        TensorArray feedback = BatchReductions.broadcast(delta.getData(), deltaDimensions, itemCnt,
+            active ? 1.0 / itemCnt : 0.0);
+        delta.freeRef();
+        this.accumulator.accept(buffer == null ? null : buffer.addRef(), feedback);
       }
       data.freeRef();
       if (null != buffer)
@@ -79,6 +79,15 @@ public class AvgPoolingLayer extends LayerBase {
     this.kernelDims = RefArrays.copyOf(kernelDims, kernelDims.length);
   }
 
+  /**
+   * Get kernel dims int [ ].
+   *
+   * @return the int [ ]
+   */
+  public int[] getKernelDims() {
+    return RefArrays.copyOf(kernelDims, kernelDims.length);
+  }
+
   /**
    * From json avg pooling layer.
    *
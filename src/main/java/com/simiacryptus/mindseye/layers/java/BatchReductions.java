@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+
+/**
+ * Per-coordinate reductions over the items of a batch, as used by the meta layers. Each item's data
+ * is streamed once into per-partition Kahan-compensated partial sums, which are then merged.
+ */
+public final class BatchReductions {
+
+  private BatchReductions() {
+  }
+
+  /**
+   * Sums a batch coordinate by coordinate.
+   *
+   * @param data the data
+   * @return the sums
+   */
+  @Nonnull
+  public static double[] sum(@Nonnull final TensorList data) {
+    final int items = data.length();
+    final int length = Tensor.length(data.getDimensions());
+    final int partitions = Math.max(1, Math.min(items, ForkJoinPool.getCommonPoolParallelism()));
+    final double[][] sums = new double[partitions][];
+    final double[][] compensations = new double[partitions][];
+    RefIntStream.range(0, partitions).parallel().forEach(RefUtil.wrapInterface((IntConsumer) partition -> {
+      final double[] sum = new double[length];
+      final double[] compensation = new double[length];
+      for (int item = partition; item < items; item += partitions) {
+        Tensor tensor = data.get(item);
+        add(sum, compensation, tensor.getData());
+        tensor.freeRef();
+      }
+      sums[partition] = sum;
+      compensations[partition] = compensation;
+    }, data));
+    final double[] total = sums[0];
+    final double[] compensation = compensations[0];
+    // Each partial holds sum - compensation; fold both parts into the running total
+    for (int partition = 1; partition < partitions; partition++) {
+      add(total, compensation, sums[partition]);
+      final double[] error = compensations[partition];
+      for (int i = 0; i < length; i++) {
+        error[i] = -error[i];
+      }
+      add(total, compensation, error);
+    }
+    for (int i = 0; i < length; i++) {
+      total[i] -= compensation[i];
+    }
+    return total;
+  }
+
+  /**
+   * Computes the mean and variance over every element of every item in one Welford pass. Partitions
+   * are reduced in parallel and merged pairwise.
+   *
+   * @param data the data
+   * @return the moments
+   */
+  @Nonnull
+  public static Moments moments(@Nonnull final TensorList data) {
+    final int items = data.length();
+    final int partitions = Math.max(1, Math.min(items, ForkJoinPool.getCommonPoolParallelism()));
+    final Moments[] partials = new Moments[partitions];
+    RefIntStream.range(0, partitions).parallel().forEach(RefUtil.wrapInterface((IntConsumer) partition -> {
+      final Moments moments = new Moments();
+      for (int item = partition; item < items; item += partitions) {
+        Tensor tensor = data.get(item);
+        moments.addAll(tensor.getData());
+        tensor.freeRef();
+      }
+      partials[partition] = moments;
+    }, data));
+    final Moments total = partials[0];
+    for (int partition = 1; partition < partitions; partition++) {
+      total.merge(partials[partition]);
+    }
+    return total;
+  }
+
+  /**
+   * Adds values into a running sum with Kahan compensation.
+   *
+   * @param sum          the sum
+   * @param compensation the accumulated low-order error
+   * @param values       the values
+   */
+  public static void add(@Nonnull final double[] sum, @Nonnull final double[] compensation,
+                         @Nonnull final double[] values) {
+    for (int i = 0; i < sum.length; i++) {
+      final double y = values[i] - compensation[i];
+      final double t = sum[i] + y;
+      compensation[i] = (t - sum[i]) - y;
+      sum[i] = t;
+    }
+  }
+
+  /**
+   * Builds a batch in which every item holds the same values times a scale.
+   *
+   * @param values the values
+   * @param dims   the dims
+   * @param items  the items
+   * @param scale  the scale
+   * @return the tensor array
+   */
+  @Nonnull
+  public static TensorArray broadcast(@Nonnull final double[] values, @Nonnull final int[] dims, final int items,
+                                      final double scale) {
+    final double[] scaled;
+    if (1.0 == scale) {
+      scaled = values;
+    } else {
+      scaled = new double[values.length];
+      for (int i = 0; i < values.length; i++) {
+        scaled[i] = values[i] * scale;
+      }
+    }
+    return new TensorArray(RefIntStream.range(0, items).parallel().mapToObj((IntFunction<Tensor>) item -> {
+      @Nonnull final Tensor tensor = new Tensor(dims);
+      RefSystem.arraycopy(scaled, 0, tensor.getData(), 0, scaled.length);
+      return tensor;
+    }).toArray(Tensor[]::new));
+  }
+
+  /**
+   * Running count, mean and sum of squared deviations, updated with Welford's method.
+   */
+  public static final class Moments {
+    private long count;
+    private double mean;
+    private double m2;
+
+    /**
+     * Adds a value.
+     *
+     * @param value the value
+     */
+    public void add(final double value) {
+      count++;
+      final double delta = value - mean;
+      mean += delta / count;
+      m2 += delta * (value - mean);
+    }
+
+    /**
+     * Adds every value of an array.
+     *
+     * @param values the values
+     */
+    public void addAll(@Nonnull final double[] values) {
+      for (double value : values) {
+        add(value);
+      }
+    }
+
+    /**
+     * Folds another set of moments into this one.
+     *
+     * @param other the other
+     */
+    public void merge(@Nonnull final Moments other) {
+      if (0 == other.count) return;
+      if (0 == count) {
+        count = other.count;
+        mean = other.mean;
+        m2 = other.m2;
+        return;
+      }
+      final long total = count + other.count;
+      final double delta = other.mean - mean;
+      mean += delta * other.count / total;
+      m2 += other.m2 + delta * delta * ((double) count * other.count / total);
+      count = total;
+    }
+
+    /**
+     * Gets count.
+     *
+     * @return the count
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Gets mean.
+     *
+     * @return the mean
+     */
+    public double getMean() {
+      return mean;
+    }
+
+    /**
+     * Gets the population variance.
+     *
+     * @return the variance
+     */
+    public double getVariance() {
+      return 0 == count ? 0 : m2 / count;
+    }
+  }
+}
@@ -27,6 +27,7 @@ import com.simiacryptus.mindseye.network.PipelineNetwork;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrayList;
 import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
 import com.simiacryptus.ref.wrappers.RefSystem;
 import org.jetbrains.annotations.NotNull;
@@ -212,6 +213,10 @@ public class BinaryNoiseLayer extends LayerBase implements StochasticComponent {
 
   @NotNull
   private TensorArray fwd(int[] dimensions, int length) {
+    if (NoiseGenerator.hasContextSeed()) {
+      // A per-evaluation seed must not touch the shared mask cache
+      return new TensorArray(masks(dimensions, NoiseGenerator.layerSeed(NoiseGenerator.seed(seed), 0, getId()), 0, length));
+    }
     if (!maskList.isEmpty()) {
       Tensor temp_32_0004 = maskList.get(0);
       if (!RefArrays.equals(temp_32_0004.getDimensions(), dimensions)) {
@@ -219,20 +224,35 @@ public class BinaryNoiseLayer extends LayerBase implements StochasticComponent {
       }
       temp_32_0004.freeRef();
     }
-    @Nonnull final Tensor tensorPrototype = new Tensor(dimensions);
-    double amplitude = 1.0 / getValue();
-    while (length > maskList.size()) {
-      if (seed == 0) {
-        maskList.add(tensorPrototype.map(v -> amplitude, false));
-      } else {
-        Random random = new Random(seed * maskList.size());
-        maskList.add(tensorPrototype.map(v -> random.nextDouble() < getValue() ? amplitude : 0, false));
+    final int cached = maskList.size();
+    if (length > cached) {
+      Tensor[] masks = masks(dimensions, NoiseGenerator.layerSeed(seed, 0, getId()), cached, length);
+      synchronized (maskList) {
+        if (maskList.size() == cached) {
+          for (Tensor mask : masks) {
+            maskList.add(mask);
+          }
+        } else {
+          RefUtil.freeRef(masks);
+        }
       }
     }
-    tensorPrototype.freeRef();
     return new TensorArray(maskList.stream().limit(length).toArray(Tensor[]::new));
   }
 
+  @Nonnull
+  private Tensor[] masks(int[] dimensions, long seed, int start, int end) {
+    final double amplitude = 1.0 / getValue();
+    final double value = getValue();
+    // Each mask depends only on the seed and its index, so masks are generated in parallel
+    return RefIntStream.range(start, end).parallel().mapToObj(index -> {
+      @Nonnull final Tensor mask = new Tensor(dimensions);
+      if (seed == 0) RefArrays.fill(mask.getData(), amplitude);
+      else NoiseGenerator.fillBernoulli(seed, index, mask.getData(), value, amplitude);
+      return mask;
+    }).toArray(Tensor[]::new);
+  }
+
   private static class Accumulator extends Result.Accumulator {
 
     private Result.Accumulator accumulator;
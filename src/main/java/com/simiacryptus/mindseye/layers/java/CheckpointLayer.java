@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.WrapperLayer;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Trades compute for memory by keeping only the inputs of the inner layer. The forward pass
+ * evaluates the inner layer on detached inputs and releases its activations and accumulators at
+ * once; when a delta arrives the inner forward pass is run again on the original inputs and
+ * backpropagated immediately.
+ * <p>
+ * The recomputation must reproduce the original forward pass. A seed set by
+ * {@link NoiseGenerator#withSeed} during the forward pass is captured and set again for the
+ * recomputation, so seeded noise layers draw the same noise as long as they are not shuffled in
+ * between. Layers that update running state on evaluation check {@link #isRecomputing()} and leave
+ * it alone, so a batch is only counted once; inner layers with other side effects on evaluation are
+ * not supported.
+ */
+@SuppressWarnings("serial")
+public class CheckpointLayer extends WrapperLayer {
+
+  private static final ThreadLocal<Boolean> recomputing = ThreadLocal.withInitial(() -> false);
+
+  /**
+   * Instantiates a new Checkpoint layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   */
+  protected CheckpointLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    super(json, rs);
+  }
+
+  /**
+   * Instantiates a new Checkpoint layer.
+   *
+   * @param inner the inner
+   */
+  public CheckpointLayer(final Layer inner) {
+    super(inner);
+  }
+
+  /**
+   * Checks whether the calling thread is re-running a forward pass for a checkpoint's backward pass.
+   * Layers with running state should not update it then, since the batch has already been seen.
+   *
+   * @return the boolean
+   */
+  public static boolean isRecomputing() {
+    return recomputing.get();
+  }
+
+  @Override
+  public RefList<Layer> getChildren() {
+    return super.getChildren();
+  }
+
+  /**
+   * From json checkpoint layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   * @return the checkpoint layer
+   */
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static CheckpointLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new CheckpointLayer(json, rs);
+  }
+
+  /**
+   * Wrap checkpoint layer.
+   *
+   * @param <T>   the type parameter
+   * @param layer the layer
+   * @return the checkpoint layer
+   */
+  @Nonnull
+  public static <T extends Layer> CheckpointLayer wrap(@Nullable T layer) {
+    return new CheckpointLayer(layer);
+  }
+
+  @Nullable
+  @Override
+  public Result eval(@Nonnull final Result... inputs) {
+    Layer inner = getInner();
+    assert inner != null;
+    Result result = inner.eval(RefArrays.stream(RefUtil.addRef(inputs)).map(input -> {
+      TensorList data = input.getData();
+      input.freeRef();
+      return new Result(data);
+    }).toArray(Result[]::new));
+    TensorList data = result.getData();
+    // Detached inputs leave the inner result alive only if the inner layer has trainable weights
+    boolean alive = result.isAlive();
+    for (Result input : inputs) {
+      alive |= input.isAlive();
+    }
+    result.freeRef();
+    final boolean seeded = NoiseGenerator.hasContextSeed();
+    final long seed = seeded ? NoiseGenerator.getContextSeed() : 0;
+    return new Result(data, new Accumulator(inner, seeded, seed, inputs), alive);
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  CheckpointLayer addRef() {
+    return (CheckpointLayer) super.addRef();
+  }
+
+  private static class Accumulator extends Result.Accumulator {
+
+    private final Layer inner;
+    private final boolean seeded;
+    private final long seed;
+    private final Result[] inputs;
+
+    /**
+     * Instantiates a new Accumulator.
+     *
+     * @param inner  the inner
+     * @param seeded whether a context seed was set on the forward pass
+     * @param seed   the context seed
+     * @param inputs the inputs
+     */
+    public Accumulator(Layer inner, boolean seeded, long seed, Result... inputs) {
+      this.inner = inner;
+      this.seeded = seeded;
+      this.seed = seed;
+      this.inputs = inputs;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      // Rebuild the activations this backward pass needs, then let them go again
+      Result result = recompute();
+      Result.Accumulator accumulator = result.getAccumulator();
+      result.freeRef();
+      assert accumulator != null;
+      accumulator.accept(buffer, delta);
+      accumulator.freeRef();
+    }
+
+    @Nonnull
+    private Result recompute() {
+      final boolean previous = recomputing.get();
+      recomputing.set(true);
+      try {
+        if (seeded) {
+          return NoiseGenerator.withSeed(seed, () -> inner.eval(RefUtil.addRef(inputs)));
+        }
+        return inner.eval(RefUtil.addRef(inputs));
+      } finally {
+        recomputing.set(previous);
+      }
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      inner.freeRef();
+      RefUtil.freeRef(inputs);
+    }
+  }
+}
@@ -22,7 +22,6 @@ package com.simiacryptus.mindseye.layers.java;
 import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.wrappers.RefArrays;
-import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
 import org.jetbrains.annotations.NotNull;
 
@@ -117,22 +116,47 @@ public class CrossDifferenceLayer extends LayerBase {
 
   @NotNull
   private TensorArray fwd(TensorList input) {
-    TensorArray tensorArray = new TensorArray(input.stream().parallel().map(tensor -> {
-      final int inputDim = tensor.length();
-      final int outputDim = (inputDim * inputDim - inputDim) / 2;
-      @Nonnull final Tensor result1 = new Tensor(outputDim);
-      @Nullable final double[] inputData = tensor.getData();
-      tensor.freeRef();
-      @Nullable final double[] resultData = result1.getData();
-      RefIntStream.range(0, inputDim).forEach(x -> {
-        RefIntStream.range(x + 1, inputDim).forEach(y -> {
-          resultData[CrossDifferenceLayer.index(x, y, inputDim)] = inputData[x] - inputData[y];
+    final int inputDim = Tensor.length(input.getDimensions());
+    final double[][] inputs = PackedTriangle.toArrays(input);
+    return PackedTriangle.run(inputs.length, inputDim, PackedTriangle.outputDim(inputDim),
+        (item, output, start, end) -> {
+          final double[] data = inputs[item];
+          for (int x = start; x < end; x++) {
+            final int offset = PackedTriangle.rowOffset(x, inputDim);
+            final double a = data[x];
+            for (int y = x + 1; y < inputDim; y++) {
+              output[offset + y] = a - data[y];
+            }
+          }
         });
-      });
-      return result1;
-    }).toArray(Tensor[]::new));
-    input.freeRef();
-    return tensorArray;
+  }
+
+  /**
+   * Computes the passback for one block of inputs: each input receives the sum of its row of the
+   * packed delta, less the sum of the column segments of earlier rows.
+   *
+   * @param delta    the packed delta
+   * @param passback the passback
+   * @param start    the first input of the block
+   * @param end      the end of the block, exclusive
+   */
+  public static void backward(@Nonnull final double[] delta, @Nonnull final double[] passback, final int start,
+                              final int end) {
+    final int n = passback.length;
+    for (int x = start; x < end; x++) {
+      final int offset = PackedTriangle.rowOffset(x, n);
+      double v = 0;
+      for (int y = x + 1; y < n; y++) {
+        v += delta[offset + y];
+      }
+      passback[x] = v;
+    }
+    for (int y = 0; y < end - 1; y++) {
+      final int offset = PackedTriangle.rowOffset(y, n);
+      for (int x = Math.max(start, y + 1); x < end; x++) {
+        passback[x] -= delta[offset + x];
+      }
+    }
   }
 
   private static class Accumulator extends Result.Accumulator {
@@ -154,22 +178,11 @@ public class CrossDifferenceLayer extends LayerBase {
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList data) {
       if (alive) {
+        final int inputDim = PackedTriangle.inputDim(Tensor.length(data.getDimensions()));
+        final double[][] deltas = PackedTriangle.toArrays(data.addRef());
         @Nonnull
-        TensorArray tensorArray = new TensorArray(data.stream().parallel().map(tensor -> {
-          final int outputDim = tensor.length();
-          final int inputDim = (1 + (int) Math.sqrt(1 + 8 * outputDim)) / 2;
-          @Nonnull final Tensor passback = new Tensor(inputDim);
-          @Nullable final double[] passbackData = passback.getData();
-          @Nullable final double[] tensorData = tensor.getData();
-          tensor.freeRef();
-          RefIntStream.range(0, inputDim).forEach(x -> {
-            RefIntStream.range(x + 1, inputDim).forEach(y -> {
-              passbackData[x] += tensorData[CrossDifferenceLayer.index(x, y, inputDim)];
-              passbackData[y] += -tensorData[CrossDifferenceLayer.index(x, y, inputDim)];
-            });
-          });
-          return passback;
-        }).toArray(Tensor[]::new));
+        TensorArray tensorArray = PackedTriangle.run(deltas.length, inputDim, inputDim,
+            (item, passback, start, end) -> backward(deltas[item], passback, start, end));
         DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
         this.accumulator.accept(buffer1, tensorArray);
       }
@@ -23,7 +23,9 @@ import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefSystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +33,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.IntConsumer;
 
 /**
  * The type Cross dot meta layer.
@@ -40,6 +43,7 @@ public class CrossDotMetaLayer extends LayerBase {
 
   @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(CrossDotMetaLayer.class);
+  private static final int BLOCK_SIZE = 64;
 
   /**
    * Instantiates a new Cross dot meta layer.
@@ -77,22 +81,7 @@ public class CrossDotMetaLayer extends LayerBase {
     final TensorList indata = input.getData();
     final int itemCnt = indata.length();
     final int dim = Tensor.length(indata.getDimensions());
-    @Nonnull final Tensor results = new Tensor(dim, dim);
-    for (int i = 0; i < dim; i++) {
-      for (int j = 0; j < dim; j++) {
-        if (i == j) {
-          continue;
-        }
-        double v = 0;
-        for (int k = 0; k < itemCnt; k++) {
-          Tensor tensor = indata.get(k);
-          @Nullable final double[] kk = tensor.getData();
-          tensor.freeRef();
-          v += kk[i] * kk[j];
-        }
-        results.set(new int[]{i, j}, v);
-      }
-    }
+    @Nonnull final Tensor results = new Tensor(gram(pack(indata.addRef(), dim), itemCnt, dim), dim, dim);
     TensorArray data = new TensorArray(results);
     boolean alive = input.isAlive();
     Result.Accumulator accumulator = new Accumulator(indata, itemCnt, dim, input.getAccumulator(), input.isAlive());
@@ -100,6 +89,75 @@ public class CrossDotMetaLayer extends LayerBase {
     return new Result(data, accumulator, alive);
   }
 
+  /**
+   * Packs a batch into a row-major items x dim matrix.
+   *
+   * @param data the data
+   * @param dim  the dim
+   * @return the matrix
+   */
+  @Nonnull
+  public static double[] pack(@Nonnull final TensorList data, final int dim) {
+    final int itemCnt = data.length();
+    final double[] matrix = new double[itemCnt * dim];
+    RefIntStream.range(0, itemCnt).parallel().forEach(RefUtil.wrapInterface((IntConsumer) k -> {
+      Tensor tensor = data.get(k);
+      RefSystem.arraycopy(tensor.getData(), 0, matrix, k * dim, dim);
+      tensor.freeRef();
+    }, data));
+    return matrix;
+  }
+
+  /**
+   * Computes the off-diagonal Gram matrix X^T X of a packed items x dim matrix. Only the blocks on or
+   * above the diagonal are computed, in parallel, and mirrored; the diagonal is left zero.
+   *
+   * @param x       the packed matrix
+   * @param itemCnt the item cnt
+   * @param dim     the dim
+   * @return the dim x dim gram matrix
+   */
+  @Nonnull
+  public static double[] gram(@Nonnull final double[] x, final int itemCnt, final int dim) {
+    final double[] gram = new double[dim * dim];
+    final int blocks = (dim + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    RefIntStream.range(0, blocks * (blocks + 1) / 2).parallel().forEach(task -> {
+      int bi = 0;
+      int remaining = task;
+      while (remaining >= blocks - bi) {
+        remaining -= blocks - bi;
+        bi++;
+      }
+      final int bj = bi + remaining;
+      final int i0 = bi * BLOCK_SIZE;
+      final int i1 = Math.min(dim, i0 + BLOCK_SIZE);
+      final int j0 = bj * BLOCK_SIZE;
+      final int j1 = Math.min(dim, j0 + BLOCK_SIZE);
+      final int width = j1 - j0;
+      final double[] block = new double[(i1 - i0) * width];
+      for (int k = 0; k < itemCnt; k++) {
+        final int row = k * dim;
+        for (int i = i0; i < i1; i++) {
+          final double xi = x[row + i];
+          if (0 == xi) continue;
+          final int offset = (i - i0) * width - j0;
+          for (int j = j0; j < j1; j++) {
+            block[offset + j] += xi * x[row + j];
+          }
+        }
+      }
+      // Blocks are disjoint, so mirrored writes never collide
+      for (int i = i0; i < i1; i++) {
+        for (int j = Math.max(j0, i + 1); j < j1; j++) {
+          final double v = block[(i - i0) * width + j - j0];
+          gram[i * dim + j] = v;
+          gram[j * dim + i] = v;
+        }
+      }
+    });
+    return gram;
+  }
+
   @Nonnull
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
@@ -153,28 +211,43 @@ public class CrossDotMetaLayer extends LayerBase {
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
       if (alive) {
         @Nullable final Tensor deltaTensor = delta.get(0);
-        @Nonnull final Tensor feedback[] = new Tensor[itemCnt];
-        RefArrays.parallelSetAll(RefUtil.addRef(feedback), i -> new Tensor(dim));
-
+        // Each off-diagonal entry (i, j) feeds both x[i] and x[j], so the product is with D + D^T
+        final double[] d = deltaTensor.getData();
+        deltaTensor.freeRef();
+        final double[] s = new double[dim * dim];
         for (int i = 0; i < dim; i++) {
           for (int j = 0; j < dim; j++) {
-            if (i == j) {
-              continue;
-            }
-            final double v = deltaTensor.get(i, j);
-            for (int k = 0; k < itemCnt; k++) {
-              Tensor tensor = indata.get(k);
-              @Nullable final double[] kk = tensor.getData();
-              tensor.freeRef();
-              feedback[k].add(i, v * kk[j]);
-              feedback[k].add(j, v * kk[i]);
-            }
+            if (i != j) s[i * dim + j] = d[i + j * dim] + d[j + i * dim];
           }
         }
-        deltaTensor.freeRef();
+        final double[] x = pack(indata.addRef(), dim);
+        final int itemBlocks = (itemCnt + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        final Tensor[] feedback = new Tensor[itemCnt];
+        RefIntStream.range(0, itemBlocks).parallel().forEach(block -> {
+          final int k0 = block * BLOCK_SIZE;
+          final int k1 = Math.min(itemCnt, k0 + BLOCK_SIZE);
+          final double[][] rows = new double[k1 - k0][];
+          for (int k = k0; k < k1; k++) {
+            rows[k - k0] = new double[dim];
+          }
+          // Each row of S is reused across the block of items while it is in cache
+          for (int i = 0; i < dim; i++) {
+            final int sRow = i * dim;
+            for (int k = k0; k < k1; k++) {
+              final int xRow = k * dim;
+              double v = 0;
+              for (int j = 0; j < dim; j++) {
+                v += s[sRow + j] * x[xRow + j];
+              }
+              rows[k - k0][i] = v;
+            }
+          }
+          for (int k = k0; k < k1; k++) {
+            feedback[k] = new Tensor(rows[k - k0], dim);
+          }
+        });
         @Nonnull
-        TensorArray tensorArray = new TensorArray(RefUtil.addRef(feedback));
-        RefUtil.freeRef(feedback);
+        TensorArray tensorArray = new TensorArray(feedback);
         DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
         this.accumulator.accept(buffer1, tensorArray);
       }
@@ -21,9 +21,7 @@ package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
-import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
-import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
 import org.jetbrains.annotations.NotNull;
 
@@ -31,7 +29,6 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.UUID;
-import java.util.function.IntFunction;
 
 /**
  * The type Cross product layer.
@@ -122,22 +119,51 @@ public class CrossProductLayer extends LayerBase {
 
   @NotNull
   private TensorArray fwd(TensorList indata) {
-    TensorArray tensorArray = new TensorArray(indata.stream().parallel().map(tensor -> {
-      final int inputDim = tensor.length();
-      final int outputDim = (inputDim * inputDim - inputDim) / 2;
-      @Nonnull final Tensor result1 = new Tensor(outputDim);
-      @Nullable final double[] inputData = tensor.getData();
-      tensor.freeRef();
-      @Nullable final double[] resultData = result1.getData();
-      RefIntStream.range(0, inputDim).forEach(x -> {
-        RefIntStream.range(x + 1, inputDim).forEach(y -> {
-          resultData[CrossProductLayer.index(x, y, inputDim)] = inputData[x] * inputData[y];
+    final int inputDim = Tensor.length(indata.getDimensions());
+    final double[][] inputs = PackedTriangle.toArrays(indata);
+    return PackedTriangle.run(inputs.length, inputDim, PackedTriangle.outputDim(inputDim),
+        (item, output, start, end) -> {
+          final double[] input = inputs[item];
+          for (int x = start; x < end; x++) {
+            final int offset = PackedTriangle.rowOffset(x, inputDim);
+            final double a = input[x];
+            for (int y = x + 1; y < inputDim; y++) {
+              output[offset + y] = a * input[y];
+            }
+          }
         });
-      });
-      return result1;
-    }).toArray(Tensor[]::new));
-    indata.freeRef();
-    return tensorArray;
+  }
+
+  /**
+   * Computes the passback for one block of inputs as the product of the symmetric, zero-diagonal
+   * matrix packed in the delta with the input vector. Row x of the triangle is read contiguously for
+   * the upper half, and the column segments of earlier rows falling in the block for the lower half.
+   *
+   * @param delta    the packed delta
+   * @param input    the input
+   * @param passback the passback
+   * @param start    the first input of the block
+   * @param end      the end of the block, exclusive
+   */
+  public static void backward(@Nonnull final double[] delta, @Nonnull final double[] input,
+                              @Nonnull final double[] passback, final int start, final int end) {
+    final int n = input.length;
+    for (int x = start; x < end; x++) {
+      final int offset = PackedTriangle.rowOffset(x, n);
+      double v = 0;
+      for (int y = x + 1; y < n; y++) {
+        v += delta[offset + y] * input[y];
+      }
+      passback[x] = v;
+    }
+    for (int y = 0; y < end - 1; y++) {
+      final double a = input[y];
+      if (0 == a) continue;
+      final int offset = PackedTriangle.rowOffset(y, n);
+      for (int x = Math.max(start, y + 1); x < end; x++) {
+        passback[x] += delta[offset + x] * a;
+      }
+    }
   }
 
   private static class Accumulator extends Result.Accumulator {
@@ -163,28 +189,12 @@ public class CrossProductLayer extends LayerBase {
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
       if (alive) {
         assert delta.length() == delta.length();
+        final int inputDim = Tensor.length(indata.getDimensions());
+        final double[][] deltas = PackedTriangle.toArrays(delta.addRef());
+        final double[][] inputs = PackedTriangle.toArrays(indata.addRef());
         @Nonnull
-        TensorArray tensorArray = new TensorArray(RefIntStream.range(0, delta.length()).parallel()
-            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) batchIndex -> {
-              @Nullable final Tensor deltaTensor = delta.get(batchIndex);
-              final int outputDim = deltaTensor.length();
-              final int inputDim = (1 + (int) Math.sqrt(1 + 8 * outputDim)) / 2;
-              @Nonnull final Tensor passback = new Tensor(inputDim);
-              @Nullable final double[] passbackData = passback.getData();
-              @Nullable final double[] tensorData = deltaTensor.getData();
-              deltaTensor.freeRef();
-              Tensor inputTensor = indata.get(batchIndex);
-              @Nullable final double[] inputData = inputTensor.getData();
-              inputTensor.freeRef();
-              RefIntStream.range(0, inputDim).forEach(x -> {
-                RefIntStream.range(x + 1, inputDim).forEach(y -> {
-                  passbackData[x] += tensorData[CrossProductLayer.index(x, y, inputDim)] * inputData[y];
-                  passbackData[y] += tensorData[CrossProductLayer.index(x, y, inputDim)] * inputData[x];
-                });
-              });
-              return passback;
-            }, indata.addRef(), delta.addRef()))
-            .toArray(Tensor[]::new));
+        TensorArray tensorArray = PackedTriangle.run(deltas.length, inputDim, inputDim,
+            (item, passback, start, end) -> backward(deltas[item], inputs[item], passback, start, end));
         DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
         this.accumulator.accept(buffer1, tensorArray);
       }
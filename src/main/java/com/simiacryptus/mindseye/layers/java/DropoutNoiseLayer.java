@@ -33,7 +33,6 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
-import java.util.Random;
 import java.util.UUID;
 import java.util.function.IntFunction;
 
@@ -109,6 +108,22 @@ public class DropoutNoiseLayer extends LayerBase implements StochasticComponent
     return new DropoutNoiseLayer(json);
   }
 
+  /**
+   * Gets the mask value of one element: zero with probability value, and 1 / value otherwise.
+   * The draw comes from {@link NoiseGenerator}, so any element can be regenerated independently of the
+   * others and of the thread that computes it. A seed of -1 disables the noise.
+   *
+   * @param seed    the seed
+   * @param value   the value
+   * @param item    the item
+   * @param element the element
+   * @return the mask value
+   */
+  public static double mask(final long seed, final double value, final int item, final int element) {
+    if (seed == -1) return 1;
+    return NoiseGenerator.bernoulli(seed, item, element, value) ? 0 : 1.0 / value;
+  }
+
   @Nonnull
   @Override
   public Result eval(@Nullable final Result... inObj) {
@@ -116,23 +131,13 @@ public class DropoutNoiseLayer extends LayerBase implements StochasticComponent
     final Result inputResult = inObj[0].addRef();
     RefUtil.freeRef(inObj);
     final TensorList inputData = inputResult.getData();
-    final int itemCnt = inputData.length();
-    final Tensor[] mask = RefIntStream.range(0, itemCnt)
-        .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
-          @Nonnull final Random random = new Random(seed);
-          @Nullable final Tensor input = inputData.get(dataIndex);
-          Tensor temp_36_0003 = input.map(x -> {
-            if (seed == -1)
-              return 1;
-            return random.nextDouble() < getValue() ? 0 : 1.0 / getValue();
-          });
-          input.freeRef();
-          return temp_36_0003;
-        }, inputData.addRef())).toArray(Tensor[]::new);
+    // The mask is regenerated from the seed in each pass, so none is retained
+    final long seed = NoiseGenerator.layerSeed(NoiseGenerator.seed(this.seed), -1, getId());
+    final double value = getValue();
     boolean alive = inputResult.isAlive();
-    Result.Accumulator accumulator = new Accumulator(RefUtil.addRef(mask), inputResult.getAccumulator(), inputResult.isAlive());
+    Result.Accumulator accumulator = new Accumulator(seed, value, inputResult.getAccumulator(), inputResult.isAlive());
     inputResult.freeRef();
-    TensorArray data = fwd(inputData, itemCnt, mask);
+    TensorArray data = apply(inputData, seed, value);
     return new Result(data, accumulator, alive);
   }
 
@@ -147,7 +152,7 @@ public class DropoutNoiseLayer extends LayerBase implements StochasticComponent
   @Override
   public void shuffle(final long seed) {
     //log.info(String.format("Set %s to random seed %s", getName(), seed));
-    this.seed = StochasticComponent.random.get().nextLong();
+    this.seed = seed;
   }
 
   @Override
@@ -175,37 +180,39 @@ public class DropoutNoiseLayer extends LayerBase implements StochasticComponent
   }
 
   @NotNull
-  private TensorArray fwd(TensorList inputData, int itemCnt, Tensor[] mask) {
-    return new TensorArray(RefIntStream.range(0, itemCnt)
+  private static TensorArray apply(@Nonnull TensorList data, long seed, double value) {
+    return new TensorArray(RefIntStream.range(0, data.length()).parallel()
         .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
-          Tensor inputTensor = inputData.get(dataIndex);
+          Tensor inputTensor = data.get(dataIndex);
           @Nullable final double[] input = inputTensor.getData();
-          @Nullable final double[] maskT = mask[dataIndex].getData();
           @Nonnull final Tensor output = new Tensor(inputTensor.getDimensions());
-          inputTensor.freeRef();
           @Nullable final double[] outputData = output.getData();
           for (int i = 0; i < outputData.length; i++) {
-            outputData[i] = input[i] * maskT[i];
+            outputData[i] = input[i] * mask(seed, value, dataIndex, i);
           }
+          inputTensor.freeRef();
           return output;
-        }, mask, inputData)).toArray(Tensor[]::new));
+        }, data)).toArray(Tensor[]::new));
   }
 
   private static class Accumulator extends Result.Accumulator {
 
-    private final Tensor[] mask;
+    private final long seed;
+    private final double value;
     private Result.Accumulator accumulator;
     private boolean alive;
 
     /**
      * Instantiates a new Accumulator.
      *
-     * @param mask        the mask
+     * @param seed        the seed
+     * @param value       the value
      * @param accumulator the accumulator
      * @param alive       the alive
      */
-    public Accumulator(Tensor[] mask, Result.Accumulator accumulator, boolean alive) {
-      this.mask = mask;
+    public Accumulator(long seed, double value, Result.Accumulator accumulator, boolean alive) {
+      this.seed = seed;
+      this.value = value;
       this.accumulator = accumulator;
       this.alive = alive;
     }
@@ -213,21 +220,8 @@ public class DropoutNoiseLayer extends LayerBase implements StochasticComponent
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
       if (alive) {
-        @Nonnull
-        TensorArray tensorArray = new TensorArray(RefIntStream.range(0, delta.length())
-            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
-              Tensor deltaTensor = delta.get(dataIndex);
-              @Nullable final double[] deltaData = deltaTensor.getData();
-              @Nullable final double[] maskData = mask[dataIndex].getData();
-              @Nonnull final Tensor passback = new Tensor(deltaTensor.getDimensions());
-              deltaTensor.freeRef();
-              for (int i = 0; i < passback.length(); i++) {
-                passback.set(i, maskData[i] * deltaData[i]);
-              }
-              return passback;
-            }, RefUtil.addRef(mask), delta.addRef())).toArray(Tensor[]::new));
         DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
-        this.accumulator.accept(buffer1, tensorArray);
+        this.accumulator.accept(buffer1, apply(delta.addRef(), seed, value));
       }
       delta.freeRef();
       if (null != buffer)
@@ -237,7 +231,6 @@ public class DropoutNoiseLayer extends LayerBase implements StochasticComponent
     public @SuppressWarnings("unused")
     void _free() {
       super._free();
-      RefUtil.freeRef(mask);
       accumulator.freeRef();
     }
   }
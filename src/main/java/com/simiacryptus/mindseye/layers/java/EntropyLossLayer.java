@@ -20,6 +20,7 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrayList;
@@ -44,6 +45,7 @@ public class EntropyLossLayer extends LayerBase {
 
   @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(EntropyLossLayer.class);
+  private boolean sparse = false;
 
   /**
    * Instantiates a new Entropy loss layer.
@@ -58,6 +60,28 @@ public class EntropyLossLayer extends LayerBase {
    */
   protected EntropyLossLayer(@Nonnull final JsonObject id) {
     super(id);
+    JsonPrimitive sparse = id.getAsJsonPrimitive("sparse");
+    this.sparse = null != sparse && sparse.getAsBoolean();
+  }
+
+  /**
+   * Is sparse boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isSparse() {
+    return sparse;
+  }
+
+  /**
+   * Sets whether the second input holds sparse targets rather than a dense distribution. A sparse target
+   * is either a single class index, or a flat list of (index, weight) pairs. Only the listed entries are
+   * read and only a sparse gradient is kept.
+   *
+   * @param sparse the sparse
+   */
+  public void setSparse(boolean sparse) {
+    this.sparse = sparse;
   }
 
   /**
@@ -76,7 +100,7 @@ public class EntropyLossLayer extends LayerBase {
   @Nonnull
   @Override
   public Result eval(@Nonnull final Result... inObj) {
-
+    if (sparse) return evalSparse(inObj);
     final double zero_tol = 1e-12;
     TensorList indata = inObj[0].getData();
     @Nonnull final RefArrayList<Tensor> gradient = new RefArrayList<>();
@@ -95,7 +119,9 @@ public class EntropyLossLayer extends LayerBase {
   @Nonnull
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
-    return super.getJsonStub();
+    @Nonnull final JsonObject json = super.getJsonStub();
+    json.addProperty("sparse", sparse);
+    return json;
   }
 
   @Nonnull
@@ -116,6 +142,81 @@ public class EntropyLossLayer extends LayerBase {
     return (EntropyLossLayer) super.addRef();
   }
 
+  /**
+   * Gets the class indices of a sparse target.
+   *
+   * @param target the target
+   * @return the indices
+   */
+  @Nonnull
+  private static int[] getIndices(@Nonnull final double[] target) {
+    if (1 == target.length) return new int[]{(int) target[0]};
+    if (0 != target.length % 2) throw new IllegalArgumentException("Sparse targets must be an index or (index, weight) pairs");
+    final int[] indices = new int[target.length / 2];
+    for (int k = 0; k < indices.length; k++) {
+      indices[k] = (int) target[2 * k];
+    }
+    return indices;
+  }
+
+  /**
+   * Gets the weights of a sparse target.
+   *
+   * @param target the target
+   * @return the weights
+   */
+  @Nonnull
+  private static double[] getWeights(@Nonnull final double[] target) {
+    if (1 == target.length) return new double[]{1};
+    final double[] weights = new double[target.length / 2];
+    for (int k = 0; k < weights.length; k++) {
+      weights[k] = target[2 * k + 1];
+    }
+    return weights;
+  }
+
+  @Nonnull
+  private Result evalSparse(@Nonnull final Result... inObj) {
+    final double zero_tol = 1e-12;
+    final double max_prob = 1.;
+    TensorList indata = inObj[0].getData();
+    TensorList targetData = inObj[1].getData();
+    final int length = indata.length();
+    @Nonnull final int[] inputDims = indata.getDimensions();
+    final int[][] indices = new int[length][];
+    // The loss only reads the target entries, so per item it is proportional to the target count
+    final double[][] probabilities = new double[length][];
+    TensorArray data = new TensorArray(RefIntStream.range(0, length)
+        .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
+          @Nullable final Tensor l = indata.get(dataIndex);
+          @Nullable final Tensor r = targetData.get(dataIndex);
+          @Nullable final double[] ld = l.getData();
+          final int[] itemIndices = getIndices(r.getData());
+          final double[] weights = getWeights(r.getData());
+          r.freeRef();
+          final double[] lvs = new double[itemIndices.length];
+          double total = 0;
+          for (int k = 0; k < itemIndices.length; k++) {
+            if (itemIndices[k] < 0 || itemIndices[k] >= ld.length) {
+              l.freeRef();
+              throw new IllegalArgumentException(itemIndices[k] + " not in [0, " + ld.length + ")");
+            }
+            lvs[k] = Math.max(Math.min(ld[itemIndices[k]], max_prob), zero_tol);
+            if (weights[k] > 0) total += -weights[k] * Math.log(lvs[k]);
+          }
+          l.freeRef();
+          indices[dataIndex] = itemIndices;
+          probabilities[dataIndex] = lvs;
+          return new Tensor(new double[]{total}, 1);
+        }, indata.addRef(), targetData.addRef())).toArray(Tensor[]::new));
+    indata.freeRef();
+    boolean alive = inObj[0].isAlive();
+    SparseAccumulator accumulator = new SparseAccumulator(targetData, inputDims, indices, probabilities,
+        inObj[0].getAccumulator(), inObj[0].isAlive(), inObj[1].getAccumulator(), inObj[1].isAlive());
+    RefUtil.freeRef(inObj);
+    return new Result(data, accumulator, alive);
+  }
+
   private boolean alive(Result result) {
     try {
       if (result.isAlive()) return true;
@@ -255,4 +356,100 @@ public class EntropyLossLayer extends LayerBase {
       RefUtil.freeRef(gradient);
     }
   }
+
+  private static class SparseAccumulator extends Result.Accumulator {
+
+    private final TensorList targetData;
+    private final int[] inputDims;
+    private final int[][] indices;
+    private final double[][] probabilities;
+    private Result.Accumulator accumulator0;
+    private Result.Accumulator accumulator1;
+    private boolean alive0;
+    private boolean alive1;
+
+    /**
+     * Instantiates a new Sparse accumulator.
+     *
+     * @param targetData    the target data
+     * @param inputDims     the input dims
+     * @param indices       the target indices of each item
+     * @param probabilities the clamped predictions at those indices
+     * @param accumulator0  the accumulator 0
+     * @param alive0        the alive 0
+     * @param accumulator1  the accumulator 1
+     * @param alive1        the alive 1
+     */
+    public SparseAccumulator(TensorList targetData, int[] inputDims, int[][] indices, double[][] probabilities,
+                             Result.Accumulator accumulator0, boolean alive0, Result.Accumulator accumulator1, boolean alive1) {
+      this.targetData = targetData;
+      this.inputDims = inputDims;
+      this.indices = indices;
+      this.probabilities = probabilities;
+      this.accumulator0 = accumulator0;
+      this.alive0 = alive0;
+      this.accumulator1 = accumulator1;
+      this.alive1 = alive1;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      if (alive1) {
+        // Indices are not differentiable; only the weights of (index, weight) pairs receive a gradient
+        @Nonnull
+        TensorArray tensorArray = new TensorArray(RefIntStream.range(0, delta.length())
+            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
+              Tensor deltaTensor = delta.get(dataIndex);
+              Tensor target = targetData.get(dataIndex);
+              @Nonnull final Tensor passback = new Tensor(target.getDimensions());
+              target.freeRef();
+              final double[] lvs = probabilities[dataIndex];
+              if (passback.length() > 1) {
+                for (int k = 0; k < lvs.length; k++) {
+                  passback.set(2 * k + 1, -deltaTensor.get(0) * Math.log(lvs[k]));
+                }
+              }
+              deltaTensor.freeRef();
+              return passback;
+            }, delta.addRef(), targetData.addRef()))
+            .toArray(Tensor[]::new));
+        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+        accumulator1.accept(buffer1, tensorArray);
+      }
+      if (alive0) {
+        @Nonnull
+        TensorArray tensorArray = new TensorArray(RefIntStream.range(0, delta.length())
+            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
+              Tensor deltaTensor = delta.get(dataIndex);
+              Tensor target = targetData.get(dataIndex);
+              final double[] weights = getWeights(target.getData());
+              target.freeRef();
+              @Nonnull final Tensor passback = new Tensor(inputDims);
+              @Nullable final double[] passbackData = passback.getData();
+              final int[] itemIndices = indices[dataIndex];
+              final double[] lvs = probabilities[dataIndex];
+              for (int k = 0; k < itemIndices.length; k++) {
+                if (weights[k] > 0)
+                  passbackData[itemIndices[k]] += -deltaTensor.get(0) * weights[k] / lvs[k];
+              }
+              deltaTensor.freeRef();
+              return passback;
+            }, delta.addRef(), targetData.addRef()))
+            .toArray(Tensor[]::new));
+        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+        accumulator0.accept(buffer1, tensorArray);
+      }
+      delta.freeRef();
+      if (null != buffer)
+        buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      accumulator0.freeRef();
+      accumulator1.freeRef();
+      targetData.freeRef();
+    }
+  }
 }
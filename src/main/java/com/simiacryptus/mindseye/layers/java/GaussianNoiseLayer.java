@@ -171,16 +171,20 @@ public class GaussianNoiseLayer extends LayerBase implements StochasticComponent
   @NotNull
   private TensorArray fwd(TensorList inputData) {
     final int itemCnt = inputData.length();
-    return new TensorArray(RefIntStream.range(0, itemCnt)
+    final long seed = NoiseGenerator.layerSeed(NoiseGenerator.seed(this.seed), 0, getId());
+    final double value = getValue();
+    return new TensorArray(RefIntStream.range(0, itemCnt).parallel()
         .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
-          @Nonnull final Random random1 = new Random(seed);
           Tensor tensor = inputData.get(dataIndex);
-          @Nullable final Tensor input = tensor.copy();
-          tensor.freeRef();
-          for (int i = 0; i < input.length(); i++) {
-            input.set(i, input.get(i) + random1.nextGaussian() * getValue());
+          @Nonnull final Tensor output = new Tensor(tensor.getDimensions());
+          @Nullable final double[] outputData = output.getData();
+          if (0 != seed) NoiseGenerator.fillGaussian(seed, dataIndex, outputData, 0, value);
+          @Nullable final double[] input = tensor.getData();
+          for (int i = 0; i < outputData.length; i++) {
+            outputData[i] += input[i];
           }
-          return input;
+          tensor.freeRef();
+          return output;
         }, inputData)).toArray(Tensor[]::new));
   }
 
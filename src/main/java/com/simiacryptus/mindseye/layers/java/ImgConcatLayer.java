@@ -23,10 +23,8 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
-import com.simiacryptus.ref.wrappers.RefArrayList;
 import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefList;
-import com.simiacryptus.ref.wrappers.RefSystem;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -143,7 +141,7 @@ public class ImgConcatLayer extends LayerBase {
       return temp_18_0008;
     }) : "Inputs must be same size";
 
-    TensorArray data = fwd(numBatches, outputDims, RefUtil.addRef(inObj));
+    TensorArray data = fwd(outputDims, RefUtil.addRef(inObj));
     boolean alive = Result.anyAlive(RefUtil.addRef(inObj));
     Accumulator accumulator = new Accumulator(numBatches, inObj);
     return new Result(data, accumulator, alive);
@@ -177,29 +175,13 @@ public class ImgConcatLayer extends LayerBase {
   }
 
   @NotNull
-  private TensorArray fwd(int numBatches, int[] outputDims, @Nonnull Result[] inObj) {
-    @Nonnull final RefList<Tensor> outputTensors = new RefArrayList<>();
-    for (int b = 0; b < numBatches; b++) {
-      @Nonnull final Tensor outputTensor = new Tensor(outputDims);
-      int pos = 0;
-      @Nullable final double[] outputTensorData = outputTensor.getData();
-      for (int i = 0; i < inObj.length; i++) {
-        TensorList temp_18_0018 = inObj[i].getData();
-        @Nullable
-        Tensor tensor = temp_18_0018.get(b);
-        temp_18_0018.freeRef();
-        @Nullable final double[] data = tensor.getData();
-        tensor.freeRef();
-        RefSystem.arraycopy(data, 0, outputTensorData, pos,
-            Math.min(data.length, outputTensorData.length - pos));
-        pos += data.length;
-      }
-      outputTensors.add(outputTensor);
+  private TensorArray fwd(int[] outputDims, @Nonnull Result[] inObj) {
+    @Nonnull final TensorList[] inputs = new TensorList[inObj.length];
+    for (int i = 0; i < inObj.length; i++) {
+      inputs[i] = inObj[i].getData();
     }
     RefUtil.freeRef(inObj);
-    TensorArray tensorArray = new TensorArray(outputTensors.toArray(new Tensor[]{}));
-    outputTensors.freeRef();
-    return tensorArray;
+    return SlicedTensorList.concat(inputs, outputDims);
   }
 
   private static class Accumulator extends Result.Accumulator {
@@ -221,58 +203,26 @@ public class ImgConcatLayer extends LayerBase {
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList data) {
       assert numBatches == data.length();
-
-      @Nonnull final RefList<Tensor[]> splitBatches = new RefArrayList<>();
-      for (int b = 0; b < numBatches; b++) {
-        @Nullable final Tensor tensor = data.get(b);
-        @Nonnull final Tensor[] outputTensors2 = new Tensor[inObj.length];
-        int pos = 0;
-        for (int i = 0; i < inObj.length; i++) {
-          TensorList temp_18_0019 = inObj[i].getData();
-          @Nonnull final Tensor dest = new Tensor(temp_18_0019.getDimensions());
-          temp_18_0019.freeRef();
-          @Nullable
-          double[] tensorData = tensor.getData();
-          RefSystem.arraycopy(tensorData, pos, dest.getData(), 0,
-              Math.min(dest.length(), tensorData.length - pos));
-          pos += dest.length();
-          RefUtil.set(outputTensors2, i, dest.addRef());
-          dest.freeRef();
-        }
-        tensor.freeRef();
-        splitBatches.add(RefUtil.addRef(outputTensors2));
-        RefUtil.freeRef(outputTensors2);
-      }
-
-      data.freeRef();
-      @Nonnull final Tensor[][] splitData = new Tensor[inObj.length][];
-      for (int i = 0; i < splitData.length; i++) {
-        RefUtil.set(splitData, i, new Tensor[numBatches]);
-      }
-      for (int i = 0; i < inObj.length; i++) {
-        for (int b = 0; b < numBatches; b++) {
-          Tensor[] tensors = splitBatches.get(b);
-          assert tensors != null;
-          RefUtil.set(splitData[i], b, tensors[i].addRef());
-          RefUtil.freeRef(tensors);
-        }
-      }
-
-      splitBatches.freeRef();
+      // Each input receives a view of its slice of the delta; nothing is split up front
+      int offset = 0;
       for (int i = 0; i < inObj.length; i++) {
-        @Nonnull
-        TensorArray tensorArray = new TensorArray(RefUtil.addRef(splitData[i]));
-        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
-        Result.Accumulator accumulator = inObj[i].getAccumulator();
-        try {
-          accumulator.accept(buffer1, tensorArray);
-        } finally {
-          accumulator.freeRef();
+        TensorList inputData = inObj[i].getData();
+        @Nonnull final int[] inputDims = inputData.getDimensions();
+        inputData.freeRef();
+        if (inObj[i].isAlive()) {
+          DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+          Result.Accumulator accumulator = inObj[i].getAccumulator();
+          try {
+            accumulator.accept(buffer1, new SlicedTensorList(data.addRef(), offset, inputDims));
+          } finally {
+            accumulator.freeRef();
+          }
         }
+        offset += Tensor.length(inputDims);
       }
+      data.freeRef();
       if (null != buffer)
         buffer.freeRef();
-      RefUtil.freeRef(splitData);
     }
 
     public @SuppressWarnings("unused")
@@ -20,6 +20,7 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrayList;
@@ -43,6 +44,7 @@ public class ImgCropLayer extends LayerBase {
 
   private final int sizeX;
   private final int sizeY;
+  private boolean view = false;
 
   /**
    * Instantiates a new Img crop layer.
@@ -65,6 +67,45 @@ public class ImgCropLayer extends LayerBase {
     super(json);
     sizeX = json.getAsJsonPrimitive("sizeX").getAsInt();
     sizeY = json.getAsJsonPrimitive("sizeY").getAsInt();
+    JsonPrimitive view = json.getAsJsonPrimitive("view");
+    this.view = null != view && view.getAsBoolean();
+  }
+
+  /**
+   * Gets size x.
+   *
+   * @return the size x
+   */
+  public int getSizeX() {
+    return sizeX;
+  }
+
+  /**
+   * Gets size y.
+   *
+   * @return the size y
+   */
+  public int getSizeY() {
+    return sizeY;
+  }
+
+  /**
+   * Is view boolean. In view mode the crop is emitted as an {@link ImgRegionTensorList} over the
+   * input batch, and its gradient as a view padding the error back out to the input size.
+   *
+   * @return the boolean
+   */
+  public boolean isView() {
+    return view;
+  }
+
+  /**
+   * Sets view.
+   *
+   * @param view the view
+   */
+  public void setView(boolean view) {
+    this.view = view;
   }
 
   /**
@@ -79,10 +120,8 @@ public class ImgCropLayer extends LayerBase {
     assert 3 == inDim.length;
     assert 3 == outDim.length;
     assert inDim[2] == outDim[2] : RefArrays.toString(inDim) + "; " + RefArrays.toString(outDim);
-    double fx = (inDim[0] - outDim[0]) / 2.0;
-    double fy = (inDim[1] - outDim[1]) / 2.0;
-    final int paddingX = (int) (fx < 0 ? Math.ceil(fx) : Math.floor(fx));
-    final int paddingY = (int) (fy < 0 ? Math.ceil(fy) : Math.floor(fy));
+    final int paddingX = getPadding(inDim[0], outDim[0]);
+    final int paddingY = getPadding(inDim[1], outDim[1]);
     outputData.coordStream(true).forEach(RefUtil.wrapInterface((Consumer<? super Coordinate>) c -> {
       int x = c.getCoords()[0] + paddingX;
       int y = c.getCoords()[1] + paddingY;
@@ -105,6 +144,18 @@ public class ImgCropLayer extends LayerBase {
     }, outputData, inputData));
   }
 
+  /**
+   * Gets the offset of a centered crop of one size taken from another.
+   *
+   * @param inSize  the in size
+   * @param outSize the out size
+   * @return the padding
+   */
+  public static int getPadding(final int inSize, final int outSize) {
+    double f = (inSize - outSize) / 2.0;
+    return (int) (f < 0 ? Math.ceil(f) : Math.floor(f));
+  }
+
   /**
    * From json img crop layer.
    *
@@ -127,9 +178,15 @@ public class ImgCropLayer extends LayerBase {
     @Nonnull final int[] inputDims = batch.getDimensions();
     assert 3 == inputDims.length;
     boolean alive = input.isAlive();
-    Result.Accumulator accumulator = new Accumulator(inputDims, input.getAccumulator(), alive);
+    Result.Accumulator accumulator = new Accumulator(inputDims, view, input.getAccumulator(), alive);
     input.freeRef();
-    TensorArray data = fwd(batch, inputDims[2]);
+    TensorList data;
+    if (view) {
+      data = new ImgRegionTensorList(batch, new int[]{sizeX, sizeY, inputDims[2]},
+          getPadding(inputDims[0], sizeX), getPadding(inputDims[1], sizeY));
+    } else {
+      data = fwd(batch, inputDims[2]);
+    }
     return new Result(data, accumulator, alive);
   }
 
@@ -139,6 +196,7 @@ public class ImgCropLayer extends LayerBase {
     @Nonnull final JsonObject json = super.getJsonStub();
     json.addProperty("sizeX", sizeX);
     json.addProperty("sizeY", sizeY);
+    json.addProperty("view", view);
     return json;
   }
 
@@ -176,6 +234,7 @@ public class ImgCropLayer extends LayerBase {
   private static class Accumulator extends Result.Accumulator {
 
     private final int[] inputDims;
+    private final boolean view;
     private Result.Accumulator accumulator;
     private boolean alive;
 
@@ -183,18 +242,25 @@ public class ImgCropLayer extends LayerBase {
      * Instantiates a new Accumulator.
      *
      * @param inputDims   the input dims
+     * @param view        the view
      * @param accumulator the accumulator
      * @param alive       the alive
      */
-    public Accumulator(int[] inputDims, Result.Accumulator accumulator, boolean alive) {
+    public Accumulator(int[] inputDims, boolean view, Result.Accumulator accumulator, boolean alive) {
       this.inputDims = inputDims;
+      this.view = view;
       this.accumulator = accumulator;
       this.alive = alive;
     }
 
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList error) {
-      if (alive) {
+      if (alive && view) {
+        int[] errorDims = error.getDimensions();
+        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+        this.accumulator.accept(buffer1, new ImgRegionTensorList(error.addRef(), inputDims,
+            getPadding(errorDims[0], inputDims[0]), getPadding(errorDims[1], inputDims[1])));
+      } else if (alive) {
         @Nonnull
         TensorArray tensorArray = new TensorArray(RefIntStream.range(0, error.length()).parallel()
             .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
@@ -32,7 +32,6 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.UUID;
-import java.util.function.IntFunction;
 
 /**
  * The type Img pixel softmax layer.
@@ -92,55 +91,10 @@ public class ImgPixelSoftmaxLayer extends LayerBase {
     final TensorList inputData = input.getData();
     int[] inputDims = inputData.getDimensions();
     assert 3 == inputDims.length;
-    final int inputBands = inputDims[2];
-    final int width = inputDims[0];
-    final int height = inputDims[1];
-    TensorArray maxima = new TensorArray(inputData.stream().map(inputTensor -> {
-      Tensor tensor = new Tensor(width, height, 1);
-      tensor.setByCoord(RefUtil.wrapInterface(c -> {
-        return RefIntStream.range(0, inputBands).mapToDouble(RefUtil.wrapInterface(band -> {
-          int[] coords = c.getCoords();
-          return inputTensor.get(coords[0], coords[1], band);
-        }, inputTensor == null ? null : inputTensor.addRef())).max().getAsDouble();
-      }, inputTensor));
-      return tensor;
-    }).toArray(Tensor[]::new));
-    TensorArray exps = new TensorArray(RefIntStream.range(0, inputData.length())
-        .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) index -> {
-          final Tensor inputTensor = inputData.get(index);
-          Tensor maxTensor = maxima.get(index);
-          Tensor tensor = new Tensor(inputDims);
-          tensor.setByCoord(RefUtil.wrapInterface(c -> {
-            int[] coords = c.getCoords();
-            return Math.exp(inputTensor.get(c) - maxTensor.get(coords[0], coords[1], 0));
-          }, maxTensor, inputTensor));
-          return tensor;
-        }, inputData.addRef(), maxima.addRef()))
-        .toArray(Tensor[]::new));
-    maxima.freeRef();
-    TensorArray sums = new TensorArray(exps.stream().map(expTensor -> {
-      Tensor tensor = new Tensor(width, height, 1);
-      tensor.setByCoord(RefUtil.wrapInterface(c -> {
-        return RefIntStream.range(0, inputBands).mapToDouble(RefUtil.wrapInterface(band -> {
-          int[] coords = c.getCoords();
-          return expTensor.get(coords[0], coords[1], band);
-        }, expTensor == null ? null : expTensor.addRef())).sum();
-      }, expTensor));
-      return tensor;
-    }).toArray(Tensor[]::new));
-    TensorArray output = new TensorArray(RefIntStream.range(0, inputData.length())
-        .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) index -> {
-          Tensor sumTensor = sums.get(index);
-          Tensor expTensor = exps.get(index);
-          Tensor tensor = new Tensor(inputDims);
-          tensor.setByCoord(RefUtil.wrapInterface(c -> {
-            int[] coords = c.getCoords();
-            return expTensor.get(c) / sumTensor.get(coords[0], coords[1], 0);
-          }, sumTensor, expTensor));
-          return tensor;
-        }, sums.addRef(), exps.addRef())).toArray(Tensor[]::new));
+    TensorArray output = fwd(inputData, inputDims);
     boolean alive = input.isAlive();
-    Accumulator accumulator = new Accumulator(sums, inputData, exps, width, height, inputBands, inputDims, input.getAccumulator(), input.isAlive());
+    // Only the output is retained; the Jacobian-vector product needs nothing else
+    Accumulator accumulator = new Accumulator(output.addRef(), inputDims, input.getAccumulator(), alive);
     input.freeRef();
     return new Result(output, accumulator, alive);
   }
@@ -169,14 +123,105 @@ public class ImgPixelSoftmaxLayer extends LayerBase {
     return (ImgPixelSoftmaxLayer) super.addRef();
   }
 
+  @Nonnull
+  private static TensorArray fwd(@Nonnull final TensorList inputData, @Nonnull final int[] dims) {
+    final int length = inputData.length();
+    final int height = dims[1];
+    final Tensor[] inputs = new Tensor[length];
+    final Tensor[] outputs = new Tensor[length];
+    final double[][] input = new double[length][];
+    final double[][] output = new double[length][];
+    for (int i = 0; i < length; i++) {
+      inputs[i] = inputData.get(i);
+      input[i] = inputs[i].getData();
+      outputs[i] = new Tensor(dims);
+      output[i] = outputs[i].getData();
+    }
+    inputData.freeRef();
+    RefIntStream.range(0, length * height).parallel().forEach(task -> {
+      softmaxRow(input[task / height], output[task / height], dims, task % height);
+    });
+    RefUtil.freeRef(inputs);
+    return new TensorArray(outputs);
+  }
+
+  /**
+   * Applies the softmax over bands to each pixel of one row. Bands are visited as contiguous row segments,
+   * keeping a running max and sum per column, so each value is read once per pass.
+   *
+   * @param input  the input
+   * @param output the output
+   * @param dims   the dims
+   * @param y      the row
+   */
+  private static void softmaxRow(@Nonnull final double[] input, @Nonnull final double[] output,
+                                 @Nonnull final int[] dims, final int y) {
+    final int width = dims[0];
+    final int bands = dims[2];
+    final int plane = width * dims[1];
+    final int row = y * width;
+    final double[] max = new double[width];
+    RefArrays.fill(max, Double.NEGATIVE_INFINITY);
+    for (int band = 0; band < bands; band++) {
+      final int offset = band * plane + row;
+      for (int x = 0; x < width; x++) {
+        max[x] = Math.max(max[x], input[offset + x]);
+      }
+    }
+    final double[] sum = new double[width];
+    for (int band = 0; band < bands; band++) {
+      final int offset = band * plane + row;
+      for (int x = 0; x < width; x++) {
+        final double exp = Math.exp(input[offset + x] - max[x]);
+        output[offset + x] = exp;
+        sum[x] += exp;
+      }
+    }
+    for (int x = 0; x < width; x++) {
+      sum[x] = 1 / sum[x];
+    }
+    for (int band = 0; band < bands; band++) {
+      final int offset = band * plane + row;
+      for (int x = 0; x < width; x++) {
+        output[offset + x] *= sum[x];
+      }
+    }
+  }
+
+  /**
+   * Computes the softmax gradient of each pixel of one row from the output alone:
+   * passback = output * (delta - delta . output), the dot product being over bands.
+   *
+   * @param output   the output
+   * @param delta    the delta
+   * @param passback the passback
+   * @param dims     the dims
+   * @param y        the row
+   */
+  private static void softmaxBackwardRow(@Nonnull final double[] output, @Nonnull final double[] delta,
+                                         @Nonnull final double[] passback, @Nonnull final int[] dims, final int y) {
+    final int width = dims[0];
+    final int bands = dims[2];
+    final int plane = width * dims[1];
+    final int row = y * width;
+    final double[] dot = new double[width];
+    for (int band = 0; band < bands; band++) {
+      final int offset = band * plane + row;
+      for (int x = 0; x < width; x++) {
+        dot[x] += output[offset + x] * delta[offset + x];
+      }
+    }
+    for (int band = 0; band < bands; band++) {
+      final int offset = band * plane + row;
+      for (int x = 0; x < width; x++) {
+        passback[offset + x] = output[offset + x] * (delta[offset + x] - dot[x]);
+      }
+    }
+  }
+
   private static class Accumulator extends Result.Accumulator {
 
-    private final TensorArray sums;
-    private final TensorList inputData;
-    private final TensorArray exps;
-    private final int width;
-    private final int height;
-    private final int inputBands;
+    private final TensorList output;
     private final int[] inputDims;
     private Result.Accumulator accumulator;
     private boolean alive;
@@ -184,23 +229,13 @@ public class ImgPixelSoftmaxLayer extends LayerBase {
     /**
      * Instantiates a new Accumulator.
      *
-     * @param sums        the sums
-     * @param inputData   the input data
-     * @param exps        the exps
-     * @param width       the width
-     * @param height      the height
-     * @param inputBands  the input bands
+     * @param output      the output
      * @param inputDims   the input dims
      * @param accumulator the accumulator
      * @param alive       the alive
      */
-    public Accumulator(TensorArray sums, TensorList inputData, TensorArray exps, int width, int height, int inputBands, int[] inputDims, Result.Accumulator accumulator, boolean alive) {
-      this.sums = sums;
-      this.inputData = inputData;
-      this.exps = exps;
-      this.width = width;
-      this.height = height;
-      this.inputBands = inputBands;
+    public Accumulator(TensorList output, int[] inputDims, Result.Accumulator accumulator, boolean alive) {
+      this.output = output;
       this.inputDims = inputDims;
       this.accumulator = accumulator;
       this.alive = alive;
@@ -209,44 +244,30 @@ public class ImgPixelSoftmaxLayer extends LayerBase {
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
       if (alive) {
-        TensorArray dots = new TensorArray(RefIntStream.range(0, inputData.length())
-            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) index -> {
-              final Tensor deltaTensor = delta.get(index);
-              Tensor expTensor = exps.get(index);
-              Tensor tensor = new Tensor(width, height, 1);
-              tensor.setByCoord(RefUtil.wrapInterface(c -> {
-                return RefIntStream.range(0, inputBands).mapToDouble(RefUtil.wrapInterface(band -> {
-                      int[] coords = c.getCoords();
-                      return expTensor.get(coords[0], coords[1], band)
-                          * deltaTensor.get(coords[0], coords[1], band);
-                    }, deltaTensor.addRef(),
-                    expTensor.addRef())).sum();
-              }, deltaTensor, expTensor));
-              return tensor;
-            }, delta.addRef(), exps.addRef()))
-            .toArray(Tensor[]::new));
-
-        TensorArray passback = new TensorArray(RefIntStream.range(0, inputData.length())
-            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) index -> {
-                  final Tensor deltaTensor = delta.get(index);
-                  final Tensor expTensor = exps.get(index);
-                  Tensor sumTensor = sums.get(index);
-                  Tensor dotTensor = dots.get(index);
-                  Tensor tensor = new Tensor(inputDims);
-                  tensor.setByCoord(RefUtil.wrapInterface(c -> {
-                    int[] coords = c.getCoords();
-                    double sum = sumTensor.get(coords[0], coords[1], 0);
-                    double dot = dotTensor.get(coords[0], coords[1], 0);
-                    double deltaValue = deltaTensor.get(c);
-                    double expValue = expTensor.get(c);
-                    return (sum * deltaValue - dot) * expValue / (sum * sum);
-                  }, deltaTensor, expTensor, dotTensor, sumTensor));
-                  return tensor;
-                }, sums.addRef(), dots,
-                delta.addRef(), exps.addRef()))
-            .toArray(Tensor[]::new));
+        final int length = delta.length();
+        final int height = inputDims[1];
+        final Tensor[] outputs = new Tensor[length];
+        final Tensor[] deltas = new Tensor[length];
+        final Tensor[] passbacks = new Tensor[length];
+        final double[][] outputData = new double[length][];
+        final double[][] deltaData = new double[length][];
+        final double[][] passbackData = new double[length][];
+        for (int i = 0; i < length; i++) {
+          outputs[i] = output.get(i);
+          outputData[i] = outputs[i].getData();
+          deltas[i] = delta.get(i);
+          deltaData[i] = deltas[i].getData();
+          passbacks[i] = new Tensor(inputDims);
+          passbackData[i] = passbacks[i].getData();
+        }
+        RefIntStream.range(0, length * height).parallel().forEach(task -> {
+          final int index = task / height;
+          softmaxBackwardRow(outputData[index], deltaData[index], passbackData[index], inputDims, task % height);
+        });
+        RefUtil.freeRef(outputs);
+        RefUtil.freeRef(deltas);
         DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
-        this.accumulator.accept(buffer1, passback);
+        this.accumulator.accept(buffer1, new TensorArray(passbacks));
       }
       delta.freeRef();
       if (null != buffer)
@@ -257,9 +278,7 @@ public class ImgPixelSoftmaxLayer extends LayerBase {
     void _free() {
       super._free();
       accumulator.freeRef();
-      sums.freeRef();
-      inputData.freeRef();
-      exps.freeRef();
+      output.freeRef();
     }
   }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import java.util.function.IntFunction;
+
+/**
+ * A lazy view of a rectangular x/y region of each image in a parent batch.
+ * Element (x, y, z) of the view reads element (x + offsetX, y + offsetY, z) of the parent,
+ * or zero where that falls outside the parent. Nothing is copied until a tensor is requested,
+ * so overlapping views of one canvas share its buffer. Negative offsets embed a smaller parent
+ * into a larger view, which is how gradients are passed back into a parent region.
+ */
+public class ImgRegionTensorList extends ReferenceCountingBase implements TensorList {
+
+  @Nonnull
+  private final TensorList parent;
+  @Nonnull
+  private final int[] dims;
+  private final int offsetX;
+  private final int offsetY;
+
+  /**
+   * Instantiates a new Img region tensor list.
+   *
+   * @param parent  the parent
+   * @param dims    the dims
+   * @param offsetX the offset x
+   * @param offsetY the offset y
+   */
+  public ImgRegionTensorList(@Nonnull final TensorList parent, @Nonnull final int[] dims, final int offsetX,
+                             final int offsetY) {
+    int[] parentDims = parent.getDimensions();
+    assert 3 == parentDims.length;
+    assert 3 == dims.length;
+    assert parentDims[2] == dims[2] : RefArrays.toString(parentDims) + "; " + RefArrays.toString(dims);
+    if (parent instanceof ImgRegionTensorList && ((ImgRegionTensorList) parent).contains(dims, offsetX, offsetY)) {
+      // A region lying wholly inside another view can read straight from the root buffer
+      ImgRegionTensorList view = (ImgRegionTensorList) parent;
+      this.parent = view.parent.addRef();
+      this.offsetX = offsetX + view.offsetX;
+      this.offsetY = offsetY + view.offsetY;
+      parent.freeRef();
+    } else {
+      this.parent = parent;
+      this.offsetX = offsetX;
+      this.offsetY = offsetY;
+    }
+    this.dims = RefArrays.copyOf(dims, 3);
+  }
+
+  /**
+   * Copies the region of one image into another, row by row. Element (x, y, z) of the destination
+   * receives element (x + offsetX, y + offsetY, z) of the source; destination elements with no
+   * source are left untouched.
+   *
+   * @param src     the source data
+   * @param srcDims the source dims
+   * @param dst     the destination data
+   * @param dstDims the destination dims
+   * @param offsetX the offset x
+   * @param offsetY the offset y
+   */
+  public static void copyRegion(@Nonnull final double[] src, @Nonnull final int[] srcDims, @Nonnull final double[] dst,
+                                @Nonnull final int[] dstDims, final int offsetX, final int offsetY) {
+    assert srcDims[2] == dstDims[2];
+    final int x0 = Math.max(0, -offsetX);
+    final int x1 = Math.min(dstDims[0], srcDims[0] - offsetX);
+    final int y0 = Math.max(0, -offsetY);
+    final int y1 = Math.min(dstDims[1], srcDims[1] - offsetY);
+    if (x1 <= x0 || y1 <= y0) return;
+    final int run = x1 - x0;
+    for (int z = 0; z < dstDims[2]; z++) {
+      for (int y = y0; y < y1; y++) {
+        RefSystem.arraycopy(src, (z * srcDims[1] + y + offsetY) * srcDims[0] + x0 + offsetX,
+            dst, (z * dstDims[1] + y) * dstDims[0] + x0, run);
+      }
+    }
+  }
+
+  /**
+   * Adds the region of one image into another. Element (x, y, z) of the destination is incremented
+   * by element (x + offsetX, y + offsetY, z) of the source, where both exist.
+   *
+   * @param src     the source data
+   * @param srcDims the source dims
+   * @param dst     the destination data
+   * @param dstDims the destination dims
+   * @param offsetX the offset x
+   * @param offsetY the offset y
+   */
+  public static void addRegion(@Nonnull final double[] src, @Nonnull final int[] srcDims, @Nonnull final double[] dst,
+                               @Nonnull final int[] dstDims, final int offsetX, final int offsetY) {
+    assert srcDims[2] == dstDims[2];
+    final int x0 = Math.max(0, -offsetX);
+    final int x1 = Math.min(dstDims[0], srcDims[0] - offsetX);
+    final int y0 = Math.max(0, -offsetY);
+    final int y1 = Math.min(dstDims[1], srcDims[1] - offsetY);
+    for (int z = 0; z < dstDims[2]; z++) {
+      for (int y = y0; y < y1; y++) {
+        final int srcRow = (z * srcDims[1] + y + offsetY) * srcDims[0] + offsetX;
+        final int dstRow = (z * dstDims[1] + y) * dstDims[0];
+        for (int x = x0; x < x1; x++) {
+          dst[dstRow + x] += src[srcRow + x];
+        }
+      }
+    }
+  }
+
+  @Nonnull
+  @Override
+  public int[] getDimensions() {
+    return RefArrays.copyOf(dims, dims.length);
+  }
+
+  /**
+   * Gets offset x.
+   *
+   * @return the offset x
+   */
+  public int getOffsetX() {
+    return offsetX;
+  }
+
+  /**
+   * Gets offset y.
+   *
+   * @return the offset y
+   */
+  public int getOffsetY() {
+    return offsetY;
+  }
+
+  /**
+   * Gets the parent batch this view reads from.
+   *
+   * @return the parent
+   */
+  @Nonnull
+  public TensorList getParent() {
+    return parent.addRef();
+  }
+
+  @Nonnull
+  @Override
+  public Tensor get(final int i) {
+    Tensor source = parent.get(i);
+    Tensor tensor = new Tensor(dims);
+    copyRegion(source.getData(), source.getDimensions(), tensor.getData(), dims, offsetX, offsetY);
+    source.freeRef();
+    return tensor;
+  }
+
+  @Override
+  public int length() {
+    return parent.length();
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<Tensor> stream() {
+    return RefIntStream.range(0, length()).mapToObj(RefUtil.wrapInterface((IntFunction<Tensor>) this::get, addRef()));
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+    parent.freeRef();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ImgRegionTensorList addRef() {
+    return (ImgRegionTensorList) super.addRef();
+  }
+
+  private boolean contains(@Nonnull final int[] regionDims, final int regionX, final int regionY) {
+    return regionX >= 0 && regionY >= 0 && regionX + regionDims[0] <= dims[0] && regionY + regionDims[1] <= dims[1];
+  }
+}
@@ -23,15 +23,17 @@ import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.UUID;
-import java.util.function.IntFunction;
 
 /**
  * The type Img reshape layer.
@@ -39,6 +41,9 @@ import java.util.function.IntFunction;
 @SuppressWarnings("serial")
 public class ImgReshapeLayer extends LayerBase {
 
+  private static final long MAX_PLAN_ELEMENTS = 1L << 24;
+  private static final LinkedHashMap<String, int[]> indexPlans = new LinkedHashMap<>(16, 0.75f, true);
+  private static long planElements = 0;
   private final boolean expand;
   private final int kernelSizeX;
   private final int kernelSizeY;
@@ -87,21 +92,8 @@ public class ImgReshapeLayer extends LayerBase {
     assert inDim[2] < outDim[2];
     assert 0 == inDim[0] % outDim[0];
     assert 0 == inDim[1] % outDim[1];
-    final int kernelSizeX = inDim[0] / outDim[0];
-    final int kernelSizeY = inDim[0] / outDim[0];
-    int index = 0;
-    @Nullable final double[] outputDataData = outputData.getData();
-    for (int z = 0; z < inDim[2]; z++) {
-      for (int xx = 0; xx < kernelSizeX; xx++) {
-        for (int yy = 0; yy < kernelSizeY; yy++) {
-          for (int y = 0; y < inDim[1]; y += kernelSizeY) {
-            for (int x = 0; x < inDim[0]; x += kernelSizeX) {
-              outputDataData[index++] = inputData.get(x + xx, y + yy, z);
-            }
-          }
-        }
-      }
-    }
+    gather(inputData.getData(), getIndexPlan(inDim, inDim[0] / outDim[0], inDim[1] / outDim[1], false),
+        outputData.getData());
     inputData.freeRef();
     return outputData;
   }
@@ -124,22 +116,155 @@ public class ImgReshapeLayer extends LayerBase {
     assert inDim[2] > outDim[2];
     assert 0 == outDim[0] % inDim[0];
     assert 0 == outDim[1] % inDim[1];
-    final int kernelSizeX = outDim[0] / inDim[0];
-    final int kernelSizeY = outDim[0] / inDim[0];
+    gather(inputData.getData(), getIndexPlan(inDim, outDim[0] / inDim[0], outDim[1] / inDim[1], true),
+        outputData.getData());
+    inputData.freeRef();
+    return outputData;
+  }
+
+  /**
+   * Gets the permutation applied by a reshape, such that output element i is input element plan[i].
+   * Condensing moves each kernelSizeX x kernelSizeY block of pixels into bands, ordered by band, then
+   * kernel column, then kernel row; expanding is the inverse. Plans are shared per shape, and the least
+   * recently used are dropped once the cached plans exceed 16M indices in total.
+   *
+   * @param inputDims   the input dims
+   * @param kernelSizeX the kernel size x
+   * @param kernelSizeY the kernel size y
+   * @param expand      the expand
+   * @return the index plan
+   */
+  @Nonnull
+  public static int[] getIndexPlan(@Nonnull final int[] inputDims, final int kernelSizeX, final int kernelSizeY,
+                                   final boolean expand) {
+    String key = RefArrays.toString(inputDims) + ":" + kernelSizeX + "x" + kernelSizeY + (expand ? ":expand" : "");
+    synchronized (indexPlans) {
+      int[] plan = indexPlans.get(key);
+      if (null != plan) return plan;
+    }
+    // Built outside the lock; a plan built twice by racing threads is identical either way
+    int[] plan = newIndexPlan(inputDims, kernelSizeX, kernelSizeY, expand);
+    synchronized (indexPlans) {
+      int[] previous = indexPlans.put(key, plan);
+      if (null != previous) planElements -= previous.length;
+      planElements += plan.length;
+      Iterator<int[]> iterator = indexPlans.values().iterator();
+      while (planElements > MAX_PLAN_ELEMENTS && indexPlans.size() > 1) {
+        planElements -= iterator.next().length;
+        iterator.remove();
+      }
+    }
+    return plan;
+  }
+
+  @Nonnull
+  private static int[] newIndexPlan(@Nonnull final int[] inputDims, final int kernelSizeX, final int kernelSizeY,
+                                    final boolean expand) {
+    // Walk the pixels of the larger image in condensed order
+    final int[] dims = expand ? getOutputDimensions(inputDims, kernelSizeX, kernelSizeY, true) : inputDims;
+    final int width = dims[0];
+    final int height = dims[1];
+    final int[] plan = new int[width * height * dims[2]];
     int index = 0;
-    for (int z = 0; z < outDim[2]; z++) {
+    for (int z = 0; z < dims[2]; z++) {
       for (int xx = 0; xx < kernelSizeX; xx++) {
         for (int yy = 0; yy < kernelSizeY; yy++) {
-          for (int y = 0; y < outDim[1]; y += kernelSizeY) {
-            for (int x = 0; x < outDim[0]; x += kernelSizeX) {
-              outputData.set(x + xx, y + yy, z, inputData.getData()[index++]);
+          for (int y = 0; y < height; y += kernelSizeY) {
+            for (int x = 0; x < width; x += kernelSizeX) {
+              final int pixel = (z * height + y + yy) * width + x + xx;
+              if (expand) plan[pixel] = index++;
+              else plan[index++] = pixel;
             }
           }
         }
       }
     }
-    inputData.freeRef();
-    return outputData;
+    return plan;
+  }
+
+  @Nonnull
+  private static int[] getOutputDimensions(@Nonnull final int[] inputDims, final int kernelSizeX,
+                                           final int kernelSizeY, final boolean expand) {
+    if (expand) {
+      return new int[]{inputDims[0] * kernelSizeX, inputDims[1] * kernelSizeY,
+          inputDims[2] / (kernelSizeX * kernelSizeY)};
+    } else {
+      return new int[]{inputDims[0] / kernelSizeX, inputDims[1] / kernelSizeY,
+          inputDims[2] * kernelSizeX * kernelSizeY};
+    }
+  }
+
+  private static void gather(@Nonnull final double[] input, @Nonnull final int[] plan, @Nonnull final double[] output) {
+    assert input.length == plan.length;
+    assert output.length == plan.length;
+    for (int i = 0; i < plan.length; i++) {
+      output[i] = input[plan[i]];
+    }
+  }
+
+  /**
+   * Applies an index plan to every item of a batch, in parallel over items and output bands.
+   *
+   * @param batch      the batch
+   * @param plan       the plan
+   * @param outputDims the output dims
+   * @return the tensor array
+   */
+  @Nonnull
+  private static TensorArray gather(@Nonnull final TensorList batch, @Nonnull final int[] plan,
+                                    @Nonnull final int[] outputDims) {
+    final int length = batch.length();
+    final int bandSize = outputDims[0] * outputDims[1];
+    final int bands = outputDims[2];
+    final Tensor[] inputs = new Tensor[length];
+    final Tensor[] outputs = new Tensor[length];
+    final double[][] inputData = new double[length][];
+    final double[][] outputData = new double[length][];
+    for (int i = 0; i < length; i++) {
+      inputs[i] = batch.get(i);
+      inputData[i] = inputs[i].getData();
+      outputs[i] = new Tensor(outputDims);
+      outputData[i] = outputs[i].getData();
+    }
+    batch.freeRef();
+    RefIntStream.range(0, length * bands).parallel().forEach(task -> {
+      final double[] in = inputData[task / bands];
+      final double[] out = outputData[task / bands];
+      final int start = task % bands * bandSize;
+      final int end = start + bandSize;
+      for (int i = start; i < end; i++) {
+        out[i] = in[plan[i]];
+      }
+    });
+    RefUtil.freeRef(inputs);
+    return new TensorArray(outputs);
+  }
+
+  /**
+   * Gets kernel size x.
+   *
+   * @return the kernel size x
+   */
+  public int getKernelSizeX() {
+    return kernelSizeX;
+  }
+
+  /**
+   * Gets kernel size y.
+   *
+   * @return the kernel size y
+   */
+  public int getKernelSizeY() {
+    return kernelSizeY;
+  }
+
+  /**
+   * Is expand boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isExpand() {
+    return expand;
   }
 
   /**
@@ -170,7 +295,8 @@ public class ImgReshapeLayer extends LayerBase {
     //assert input.getData().stream().flatMapToDouble(x-> Arrays.stream(x.getData())).allMatch(v->Double.isFinite(v));
     TensorArray data = fwd(batch, inputDims);
     boolean alive = input.isAlive();
-    Result.Accumulator accumulator = new Accumulator(expand, inputDims, input.getAccumulator(), input.isAlive());
+    Result.Accumulator accumulator = new Accumulator(expand, kernelSizeX, kernelSizeY, inputDims,
+        input.getAccumulator(), input.isAlive());
     input.freeRef();
     return new Result(data, accumulator, alive);
   }
@@ -183,13 +309,7 @@ public class ImgReshapeLayer extends LayerBase {
    */
   @NotNull
   public Tensor getOutputDims(int[] inputDims) {
-    if (expand) {
-      return new Tensor(inputDims[0] * kernelSizeX, inputDims[1] * kernelSizeY,
-          inputDims[2] / (kernelSizeX * kernelSizeY));
-    } else {
-      return new Tensor(inputDims[0] / kernelSizeX, inputDims[1] / kernelSizeY,
-          inputDims[2] * kernelSizeX * kernelSizeY);
-    }
+    return new Tensor(getOutputDimensions(inputDims, kernelSizeX, kernelSizeY, expand));
   }
 
   @Nonnull
@@ -222,19 +342,15 @@ public class ImgReshapeLayer extends LayerBase {
 
   @NotNull
   private TensorArray fwd(TensorList batch, int[] inputDims) {
-    Tensor outputDims = getOutputDims(inputDims);
-    return new TensorArray(RefIntStream.range(0, batch.length())
-        //.parallel()
-        .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
-          Tensor inputData = batch.get(dataIndex);
-          if (expand) return ImgReshapeLayer.copyExpand(inputData, outputDims.copy());
-          else return ImgReshapeLayer.copyCondense(inputData, outputDims.copy());
-        }, outputDims, batch)).toArray(Tensor[]::new));
+    return gather(batch, getIndexPlan(inputDims, kernelSizeX, kernelSizeY, expand),
+        getOutputDimensions(inputDims, kernelSizeX, kernelSizeY, expand));
   }
 
   private static class Accumulator extends Result.Accumulator {
 
     private final int[] inputDims;
+    private final int kernelSizeX;
+    private final int kernelSizeY;
     private boolean expand;
     private Result.Accumulator accumulator;
     private boolean alive;
@@ -243,12 +359,17 @@ public class ImgReshapeLayer extends LayerBase {
      * Instantiates a new Accumulator.
      *
      * @param expand      the expand
+     * @param kernelSizeX the kernel size x
+     * @param kernelSizeY the kernel size y
      * @param inputDims   the input dims
      * @param accumulator the accumulator
      * @param alive       the alive
      */
-    public Accumulator(boolean expand, int[] inputDims, Result.Accumulator accumulator, boolean alive) {
+    public Accumulator(boolean expand, int kernelSizeX, int kernelSizeY, int[] inputDims,
+                       Result.Accumulator accumulator, boolean alive) {
       this.inputDims = inputDims;
+      this.kernelSizeX = kernelSizeX;
+      this.kernelSizeY = kernelSizeY;
       this.expand = expand;
       this.accumulator = accumulator;
       this.alive = alive;
@@ -258,13 +379,9 @@ public class ImgReshapeLayer extends LayerBase {
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList error) {
       //assert error.stream().flatMapToDouble(x-> Arrays.stream(x.getData())).allMatch(v->Double.isFinite(v));
       if (alive) {
-        this.accumulator.accept(buffer, new TensorArray(RefIntStream.range(0, error.length()).parallel()
-            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
-              @Nonnull final Tensor passback = new Tensor(inputDims);
-              @Nullable final Tensor err = error.get(dataIndex);
-              if (expand) return ImgReshapeLayer.copyCondense(err, passback);
-              else return ImgReshapeLayer.copyExpand(err, passback);
-            }, error)).toArray(Tensor[]::new)));
+        // The backward pass is the opposite reshape of the output shape
+        int[] outputDims = getOutputDimensions(inputDims, kernelSizeX, kernelSizeY, expand);
+        this.accumulator.accept(buffer, gather(error, getIndexPlan(outputDims, kernelSizeX, kernelSizeY, !expand), inputDims));
       } else {
         error.freeRef();
         if (null != buffer)
@@ -27,6 +27,7 @@ import com.simiacryptus.ref.wrappers.RefArrayList;
 import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefSystem;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nonnull;
@@ -34,7 +35,6 @@ import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
 import java.util.function.IntFunction;
 
 /**
@@ -150,7 +150,8 @@ public class ImgTileAssemblyLayer extends LayerBase {
   }
 
   /**
-   * Copy.
+   * Copy. The clip rectangle is resolved once per tile, and the surviving region is copied as
+   * contiguous row runs; a toroidal copy is split into rectangles at each wrap seam.
    *
    * @param inputData  the input data
    * @param outputData the output data
@@ -170,57 +171,33 @@ public class ImgTileAssemblyLayer extends LayerBase {
     assert 3 == inDim.length;
     assert 3 == outDim.length;
     assert inDim[2] == outDim[2] : RefArrays.toString(inDim) + "; " + RefArrays.toString(outDim);
-    //    outputData.coordStream(true).forEach((outputCoord) -> {
-    //      double value = getMaxValue(inputData, outputCoord, offsetX, offsetY, paddingX, paddingY, toroidal);
-    //      if (Double.isFinite(value)) outputData.set(outputCoord, value);
-    //    });
-    inputData.coordStream(true).forEach(RefUtil.wrapInterface((Consumer<? super Coordinate>) inputCoord -> {
-      double inputValue = inputData.get(inputCoord);
-      int inputWidth = inDim[0];
-      int inputHeight = inDim[1];
-      int outputWidth = outDim[0];
-      int outputHeight = outDim[1];
-      int x = inputCoord.getCoords()[0];
-      int y = inputCoord.getCoords()[1];
-      //      x += offsetX;
-      //      y += offsetY;
-      if (x < paddingX / 2 && colF > 0.0) {
-        return;
-      }
-      if (y < paddingY / 2 && rowF > 0.0) {
-        return;
-      }
-      if (x >= inputWidth - paddingX / 2 && colF < 1.0) {
-        return;
-      }
-      if (y >= inputHeight - paddingY / 2 && rowF < 1.0) {
-        return;
-      }
-      x += offsetX;
-      y += offsetY;
-      int z = inputCoord.getCoords()[2];
-      if (toroidal) {
-        while (x < 0)
-          x += outputWidth;
-        x %= outputWidth;
-        while (y < 0)
-          y += outputHeight;
-        y %= outputHeight;
-      }
-      if (x < 0) {
-        return;
-      }
-      if (y < 0) {
-        return;
-      }
-      if (x >= outputWidth) {
-        return;
-      }
-      if (y >= outputHeight) {
-        return;
+    final double[] input = inputData.getData();
+    final double[] output = outputData.getData();
+    int x0 = 0 < colF ? paddingX / 2 : 0;
+    int x1 = 1.0 > colF ? inDim[0] - paddingX / 2 : inDim[0];
+    int y0 = 0 < rowF ? paddingY / 2 : 0;
+    int y1 = 1.0 > rowF ? inDim[1] - paddingY / 2 : inDim[1];
+    if (!toroidal) {
+      x0 = Math.max(x0, -offsetX);
+      x1 = Math.min(x1, outDim[0] - offsetX);
+      y0 = Math.max(y0, -offsetY);
+      y1 = Math.min(y1, outDim[1] - offsetY);
+      blit(input, inDim, output, outDim, x0, y0, x0 + offsetX, y0 + offsetY, x1 - x0, y1 - y0);
+    } else {
+      for (int y = y0; y < y1; ) {
+        final int toY = Math.floorMod(y + offsetY, outDim[1]);
+        final int height = Math.min(y1 - y, outDim[1] - toY);
+        for (int x = x0; x < x1; ) {
+          final int toX = Math.floorMod(x + offsetX, outDim[0]);
+          final int width = Math.min(x1 - x, outDim[0] - toX);
+          blit(input, inDim, output, outDim, x, y, toX, toY, width, height);
+          x += width;
+        }
+        y += height;
       }
-      outputData.set(x, y, z, inputValue);
-    }, outputData, inputData));
+    }
+    inputData.freeRef();
+    outputData.freeRef();
   }
 
   /**
@@ -348,6 +325,18 @@ public class ImgTileAssemblyLayer extends LayerBase {
     return new int[]{totalWidth + getPaddingX(), totalHeight + getPaddingY(), bands};
   }
 
+  private static void blit(@Nonnull final double[] input, @Nonnull final int[] inDim, @Nonnull final double[] output,
+                           @Nonnull final int[] outDim, final int fromX, final int fromY, final int toX, final int toY,
+                           final int width, final int height) {
+    if (width <= 0 || height <= 0) return;
+    for (int z = 0; z < inDim[2]; z++) {
+      for (int y = 0; y < height; y++) {
+        RefSystem.arraycopy(input, (z * inDim[1] + fromY + y) * inDim[0] + fromX,
+            output, (z * outDim[1] + toY + y) * outDim[0] + toX, width);
+      }
+    }
+  }
+
   private static class Accumulator extends Result.Accumulator {
 
     private final Result[] inObj;
@@ -45,6 +45,7 @@ public class ImgTileSelectLayer extends LayerBase {
   private final int sizeY;
   private final int positionX;
   private final int positionY;
+  private boolean view = false;
 
   /**
    * Instantiates a new Img tile select layer.
@@ -90,6 +91,73 @@ public class ImgTileSelectLayer extends LayerBase {
     positionY = json.getAsJsonPrimitive("positionY").getAsInt();
     JsonPrimitive toroidal = json.getAsJsonPrimitive("toroidal");
     this.toroidal = null != toroidal && toroidal.getAsBoolean();
+    JsonPrimitive view = json.getAsJsonPrimitive("view");
+    this.view = null != view && view.getAsBoolean();
+  }
+
+  /**
+   * Gets size x.
+   *
+   * @return the size x
+   */
+  public int getSizeX() {
+    return sizeX;
+  }
+
+  /**
+   * Gets size y.
+   *
+   * @return the size y
+   */
+  public int getSizeY() {
+    return sizeY;
+  }
+
+  /**
+   * Gets position x.
+   *
+   * @return the position x
+   */
+  public int getPositionX() {
+    return positionX;
+  }
+
+  /**
+   * Gets position y.
+   *
+   * @return the position y
+   */
+  public int getPositionY() {
+    return positionY;
+  }
+
+  /**
+   * Is toroidal boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isToroidal() {
+    return toroidal;
+  }
+
+  /**
+   * Is view boolean. In view mode a non-toroidal tile is emitted as an {@link ImgRegionTensorList}
+   * over the input batch, and its gradient as a view embedding the error into the input region,
+   * so neither direction copies until a consumer asks for a tensor.
+   *
+   * @return the boolean
+   */
+  public boolean isView() {
+    return view;
+  }
+
+  /**
+   * Sets view.
+   *
+   * @param view the view
+   */
+  public void setView(boolean view) {
+    this.view = view;
   }
 
   /**
@@ -192,6 +260,49 @@ public class ImgTileSelectLayer extends LayerBase {
     return tiles;
   }
 
+  /**
+   * To tile views tensor list [ ]. Unlike {@link #toTiles}, no tile is copied out of the canvas;
+   * each is a lazy single-item view which materializes on access. Toroidal partitions, selected by
+   * a negative offset, are not supported.
+   *
+   * @param log     the log
+   * @param canvas  the canvas
+   * @param width   the width
+   * @param height  the height
+   * @param strideX the stride x
+   * @param strideY the stride y
+   * @param offsetX the offset x
+   * @param offsetY the offset y
+   * @return the tensor list [ ]
+   */
+  @Nonnull
+  public static TensorList[] toTileViews(@Nonnull final NotebookOutput log, @Nonnull final Tensor canvas, final int width,
+                                         final int height, final int strideX, final int strideY, final int offsetX, final int offsetY) {
+    if (offsetX < 0 || offsetY < 0) {
+      canvas.freeRef();
+      throw new IllegalArgumentException(RefString.format("Toroidal offset %s x %s", offsetX, offsetY));
+    }
+    @Nonnull final int[] inputDims = canvas.getDimensions();
+    int cols = (int) (Math.ceil((inputDims[0] - width - offsetX) * 1.0 / strideX) + 1);
+    int rows = (int) (Math.ceil((inputDims[1] - height - offsetY) * 1.0 / strideY) + 1);
+    log.p(RefString.format(
+        "Partition %s x %s png with %s x %s tile size into %s x %s grid with stride %s x %s offset %s x %s",
+        inputDims[0], inputDims[1], width, height, cols, rows, strideX, strideY, offsetX, offsetY));
+    TensorArray canvasList = new TensorArray(canvas);
+    TensorList[] tiles = new TensorList[rows * cols];
+    int index = 0;
+    for (int row = 0; row < rows; row++) {
+      for (int col = 0; col < cols; col++) {
+        int positionX = col * strideX + offsetX;
+        int positionY = row * strideY + offsetY;
+        RefUtil.set(tiles, index++, new ImgRegionTensorList(canvasList.addRef(),
+            new int[]{width, height, inputDims[2]}, positionX, positionY));
+      }
+    }
+    canvasList.freeRef();
+    return tiles;
+  }
+
   /**
    * Tile selectors img tile select layer [ ].
    *
@@ -241,9 +352,11 @@ public class ImgTileSelectLayer extends LayerBase {
     assert 3 == inputDims.length;
     @Nonnull final int[] dimOut = getViewDimensions(inputDims, new int[]{sizeX, sizeY, inputDims[2]},
         new int[]{positionX, positionY, 0});
-    Result.Accumulator accumulator = new Accumulator(positionX, positionY, toroidal, inputDims, input.getAccumulator(), alive);
+    boolean view = this.view && !toroidal;
+    Result.Accumulator accumulator = new Accumulator(positionX, positionY, toroidal, view, inputDims, input.getAccumulator(), alive);
     input.freeRef();
-    return new Result(fwd(batch, dimOut), accumulator, alive);
+    TensorList data = view ? new ImgRegionTensorList(batch, dimOut, positionX, positionY) : fwd(batch, dimOut);
+    return new Result(data, accumulator, alive);
   }
 
   /**
@@ -271,6 +384,7 @@ public class ImgTileSelectLayer extends LayerBase {
     json.addProperty("positionX", positionX);
     json.addProperty("positionY", positionY);
     json.addProperty("toroidal", toroidal);
+    json.addProperty("view", view);
     return json;
   }
 
@@ -311,6 +425,7 @@ public class ImgTileSelectLayer extends LayerBase {
     private int positionX;
     private int positionY;
     private boolean toroidal;
+    private boolean view;
     private Result.Accumulator accumulator;
     private boolean alive;
 
@@ -320,22 +435,27 @@ public class ImgTileSelectLayer extends LayerBase {
      * @param positionX   the position x
      * @param positionY   the position y
      * @param toroidal    the toroidal
+     * @param view        the view
      * @param inputDims   the input dims
      * @param accumulator the accumulator
      * @param alive       the alive
      */
-    public Accumulator(int positionX, int positionY, boolean toroidal, int[] inputDims, Result.Accumulator accumulator, boolean alive) {
+    public Accumulator(int positionX, int positionY, boolean toroidal, boolean view, int[] inputDims, Result.Accumulator accumulator, boolean alive) {
       this.inputDims = inputDims;
       this.positionX = positionX;
       this.positionY = positionY;
       this.toroidal = toroidal;
+      this.view = view;
       this.accumulator = accumulator;
       this.alive = alive;
     }
 
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList error) {
-      if (alive) {
+      if (alive && view) {
+        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+        this.accumulator.accept(buffer1, new ImgRegionTensorList(error.addRef(), inputDims, -positionX, -positionY));
+      } else if (alive) {
         @Nonnull
         TensorArray tensorArray = new TensorArray(RefIntStream.range(0, error.length())
             .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
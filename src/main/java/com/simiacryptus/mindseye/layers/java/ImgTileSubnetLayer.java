@@ -20,20 +20,34 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.StochasticComponent;
 import com.simiacryptus.mindseye.layers.WrapperLayer;
 import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
 import com.simiacryptus.ref.wrappers.RefArrayList;
 import com.simiacryptus.ref.wrappers.RefList;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * The type Img tile subnet layer.
+ * Evaluates a subnetwork over tiles of an image and assembles the results. Tiles are evaluated one at
+ * a time on the calling thread unless a memory budget or an executor is set; then several tiles run at
+ * once on pool threads, so the subnetwork must not keep per-evaluation state. Layers such as
+ * {@link AvgMetaLayer}, which caches its last result, or {@link BinaryNoiseLayer}, which caches its
+ * masks, are not safe there, and noise layers lose a seed set by {@link NoiseGenerator#withSeed}.
  */
 @SuppressWarnings("serial")
 public class ImgTileSubnetLayer extends WrapperLayer {
@@ -42,6 +56,13 @@ public class ImgTileSubnetLayer extends WrapperLayer {
   private final int width;
   private final int strideX;
   private final int strideY;
+  private long memoryBudget = 0;
+  private int haloX = 0;
+  private int haloY = 0;
+  @Nullable
+  private transient Executor executor = null;
+  @Nullable
+  private transient TileCache tileCache = null;
 
   /**
    * Instantiates a new Img tile subnet layer.
@@ -84,9 +105,121 @@ public class ImgTileSubnetLayer extends WrapperLayer {
     width = json.getAsJsonPrimitive("width").getAsInt();
     strideX = json.getAsJsonPrimitive("strideX").getAsInt();
     strideY = json.getAsJsonPrimitive("strideY").getAsInt();
+    JsonPrimitive memoryBudget = json.getAsJsonPrimitive("memoryBudget");
+    this.memoryBudget = null == memoryBudget ? 0 : memoryBudget.getAsLong();
+    JsonPrimitive haloX = json.getAsJsonPrimitive("haloX");
+    this.haloX = null == haloX ? 0 : haloX.getAsInt();
+    JsonPrimitive haloY = json.getAsJsonPrimitive("haloY");
+    this.haloY = null == haloY ? 0 : haloY.getAsInt();
     JsonObject subnetwork = json.getAsJsonObject("subnetwork");
   }
 
+  /**
+   * Gets the memory budget, in bytes, shared by all tiles in flight at once.
+   * A value of zero or less leaves concurrency to the executor, if one is set.
+   *
+   * @return the memory budget
+   */
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Sets the memory budget. A positive budget evaluates tiles concurrently, on the executor or the
+   * common fork-join pool, so the subnetwork must be thread-safe as described on this class.
+   *
+   * @param memoryBudget the memory budget
+   */
+  public void setMemoryBudget(long memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Gets halo x.
+   *
+   * @return the halo x
+   */
+  public int getHaloX() {
+    return haloX;
+  }
+
+  /**
+   * Sets the columns of context read on each side of a tile and cropped from its output.
+   *
+   * @param haloX the halo x
+   */
+  public void setHaloX(int haloX) {
+    this.haloX = haloX;
+  }
+
+  /**
+   * Gets halo y.
+   *
+   * @return the halo y
+   */
+  public int getHaloY() {
+    return haloY;
+  }
+
+  /**
+   * Sets the rows of context read on each side of a tile and cropped from its output.
+   *
+   * @param haloY the halo y
+   */
+  public void setHaloY(int haloY) {
+    this.haloY = haloY;
+  }
+
+  /**
+   * Gets the executor tiles are evaluated on when they run concurrently, defaulting to the common
+   * fork-join pool.
+   *
+   * @return the executor
+   */
+  @Nonnull
+  public Executor getExecutor() {
+    return null == executor ? ForkJoinPool.commonPool() : executor;
+  }
+
+  /**
+   * Sets the executor tiles are evaluated on. Setting one evaluates tiles concurrently even without a
+   * memory budget, so the subnetwork must be thread-safe as described on this class.
+   *
+   * @param executor the executor
+   */
+  public void setExecutor(@Nullable Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Checks whether tiles are evaluated concurrently, which requires a memory budget or an executor.
+   *
+   * @return the boolean
+   */
+  public boolean isConcurrent() {
+    return memoryBudget > 0 || null != executor;
+  }
+
+  /**
+   * Gets the cache of subnetwork outputs, if any.
+   *
+   * @return the tile cache
+   */
+  @Nullable
+  public TileCache getTileCache() {
+    return tileCache;
+  }
+
+  /**
+   * Sets a cache of subnetwork outputs, consulted when the subnetwork is frozen, has no stochastic
+   * components and no gradient is requested. Tiles with identical content then share one evaluation.
+   *
+   * @param tileCache the tile cache
+   */
+  public void setTileCache(@Nullable TileCache tileCache) {
+    this.tileCache = tileCache;
+  }
+
   /**
    * From json img tile subnet layer.
    *
@@ -100,6 +233,41 @@ public class ImgTileSubnetLayer extends WrapperLayer {
     return new ImgTileSubnetLayer(json, rs);
   }
 
+  /**
+   * Builds a tile layer whose halo is the {@link ReceptiveField} of the subnetwork, using the largest
+   * square tile for which one tile per worker of the common pool fits in the memory budget.
+   * A budget of zero or less evaluates the whole image as one tile; a positive budget evaluates tiles
+   * concurrently, so the subnetwork must be thread-safe as described on this class.
+   *
+   * @param subnetwork   the subnetwork
+   * @param inputDims    the input dims
+   * @param memoryBudget the memory budget
+   * @return the img tile subnet layer
+   */
+  @Nonnull
+  public static ImgTileSubnetLayer fitted(@Nonnull final Layer subnetwork, @Nonnull final int[] inputDims,
+                                          final long memoryBudget) {
+    ReceptiveField field = ReceptiveField.analyze(subnetwork.addRef(), inputDims);
+    // Tile origins and halos are kept on the output pixel grid so cropped tiles line up
+    int alignX = (int) Math.max(1, Math.ceil(field.getScaleX()));
+    int alignY = (int) Math.max(1, Math.ceil(field.getScaleY()));
+    int haloX = (field.getHaloX() + alignX - 1) / alignX * alignX;
+    int haloY = (field.getHaloY() + alignY - 1) / alignY * alignY;
+    int tileWidth = inputDims[0];
+    int tileHeight = inputDims[1];
+    if (memoryBudget > 0) {
+      long tileBudget = memoryBudget / ForkJoinPool.getCommonPoolParallelism();
+      int side = (int) Math.sqrt(tileBudget / (2.0 * inputDims[2] * Double.BYTES));
+      tileWidth = Math.min(tileWidth, Math.max(alignX, (side - 2 * haloX) / alignX * alignX));
+      tileHeight = Math.min(tileHeight, Math.max(alignY, (side - 2 * haloY) / alignY * alignY));
+    }
+    ImgTileSubnetLayer layer = new ImgTileSubnetLayer(subnetwork, tileWidth, tileHeight);
+    layer.setHaloX(haloX);
+    layer.setHaloY(haloY);
+    layer.setMemoryBudget(memoryBudget);
+    return layer;
+  }
+
   @Nullable
   @Override
   public Result eval(@Nonnull final Result... inObj) {
@@ -116,33 +284,64 @@ public class ImgTileSubnetLayer extends WrapperLayer {
       return inner.eval(inObj);
     }
     RefUtil.freeRef(inObj);
-    Result[] results = new Result[rows * cols];
-    RefArrayList<TensorList> passback = new RefArrayList<TensorList>(cols * rows);
-    for (int i = 0; i < cols * rows; i++) {
-      passback.add(null);
-    }
+    final boolean memoize = !input.isAlive() && isMemoizable();
+    // Weights hashed into the keys keep outputs of earlier weights from being served after an update
+    final long stateHash = memoize ? TileCache.stateHash(inner.addRef()) : 0;
+    final int tileCount = rows * cols;
+    Result[] results = new Result[tileCount];
+    TileGradient gradient = new TileGradient(inputDims, tileCount, input.getAccumulator());
+    input.freeRef();
+    Semaphore slots = new Semaphore(getMaxConcurrentTiles(inputData.length(), inputDims[2]));
+    CompletableFuture<?>[] futures = new CompletableFuture[tileCount];
+    // Without an opt-in, tiles run inline so the subnetwork is only ever entered by one thread
+    Executor executor = isConcurrent() ? getExecutor() : Runnable::run;
     int index = 0;
-    AtomicInteger passbacks = new AtomicInteger(0);
-    for (int row = 0; row < rows; row++) {
-      for (int col = 0; col < cols; col++) {
-        int positionX = col * strideX;
-        int positionY = row * strideY;
-        assert positionX >= 0;
-        assert positionY >= 0;
-        assert positionX < inputDims[0];
-        assert positionY < inputDims[1];
-        final int finalIndex = index;
-        Result.Accumulator accumulator = new TileAccumulator(passback.addRef(), finalIndex, passbacks, rows, cols, input.getAccumulator());
-        ImgTileSelectLayer tileSelectLayer = new ImgTileSelectLayer(width, height, positionX, positionY);
-        TensorList selectedTile = Result.getData(tileSelectLayer.eval(new Result(inputData.addRef())));
-        tileSelectLayer.freeRef();
-        RefUtil.set(results, index, inner.eval(new Result(selectedTile, accumulator)));
-        index = index + 1;
+    try {
+      for (int row = 0; row < rows; row++) {
+        for (int col = 0; col < cols; col++) {
+          int positionX = col * strideX;
+          int positionY = row * strideY;
+          assert positionX >= 0;
+          assert positionY >= 0;
+          assert positionX < inputDims[0];
+          assert positionY < inputDims[1];
+          final int finalIndex = index;
+          acquire(slots);
+          try {
+            futures[finalIndex] = CompletableFuture.runAsync(() -> {
+              try {
+                RefUtil.set(results, finalIndex, evalTile(inputData.addRef(), gradient.addRef(), inputDims,
+                    positionX, positionY, memoize, stateHash));
+              } finally {
+                slots.release();
+              }
+            }, executor);
+          } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+          }
+          index = index + 1;
+        }
+      }
+      CompletableFuture.allOf(futures).join();
+    } catch (RuntimeException e) {
+      // Wait for the tiles already started, so none is still running when their results are released
+      for (CompletableFuture<?> future : futures) {
+        if (null == future) continue;
+        try {
+          future.join();
+        } catch (CompletionException ignored) {
+        }
+      }
+      for (Result result : results) {
+        if (null != result) result.freeRef();
       }
+      Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+    } finally {
+      gradient.freeRef();
+      inputData.freeRef();
     }
-    passback.freeRef();
-    inputData.freeRef();
-    input.freeRef();
     ImgTileAssemblyLayer imgTileAssemblyLayer = new ImgTileAssemblyLayer(cols, rows);
     Result assembledResult = imgTileAssemblyLayer.eval(results);
     imgTileAssemblyLayer.freeRef();
@@ -157,6 +356,9 @@ public class ImgTileSubnetLayer extends WrapperLayer {
     json.addProperty("width", width);
     json.addProperty("strideX", strideX);
     json.addProperty("strideY", strideY);
+    json.addProperty("memoryBudget", memoryBudget);
+    json.addProperty("haloX", haloX);
+    json.addProperty("haloY", haloY);
     return json;
   }
 
@@ -178,46 +380,162 @@ public class ImgTileSubnetLayer extends WrapperLayer {
     return (ImgTileSubnetLayer) super.addRef();
   }
 
-  private static class TileAccumulator extends Result.Accumulator {
+  @Nullable
+  private Result evalTile(@Nonnull TensorList inputData, @Nonnull TileGradient gradient, @Nonnull int[] inputDims,
+                          int positionX, int positionY, boolean memoize, long stateHash) {
+    if (0 == haloX && 0 == haloY) {
+      ImgTileSelectLayer tileSelectLayer = new ImgTileSelectLayer(width, height, positionX, positionY);
+      tileSelectLayer.setView(true);
+      TensorList selectedTile = Result.getData(tileSelectLayer.eval(new Result(inputData)));
+      tileSelectLayer.freeRef();
+      return evalInner(selectedTile, new TileAccumulator(gradient, positionX, positionY), memoize, stateHash);
+    }
+    int coreWidth = Math.min(width, inputDims[0] - positionX);
+    int coreHeight = Math.min(height, inputDims[1] - positionY);
+    int[] tileDims = {coreWidth + 2 * haloX, coreHeight + 2 * haloY, inputDims[2]};
+    TensorList selectedTile = new ImgRegionTensorList(inputData, tileDims, positionX - haloX, positionY - haloY);
+    Result result = evalInner(selectedTile, new TileAccumulator(gradient, positionX - haloX, positionY - haloY),
+        memoize, stateHash);
+    assert result != null;
+    TensorList resultData = result.getData();
+    int[] resultDims = resultData.getDimensions();
+    resultData.freeRef();
+    int cropX = haloX * resultDims[0] / tileDims[0];
+    int cropY = haloY * resultDims[1] / tileDims[1];
+    ImgTileSelectLayer cropLayer = new ImgTileSelectLayer(resultDims[0] - 2 * cropX, resultDims[1] - 2 * cropY, cropX, cropY);
+    Result cropped = cropLayer.eval(result);
+    cropLayer.freeRef();
+    return cropped;
+  }
+
+  @Nullable
+  private Result evalInner(@Nonnull TensorList tile, @Nonnull TileAccumulator accumulator, boolean memoize,
+                           long stateHash) {
+    if (!memoize) {
+      return inner.eval(new Result(tile, accumulator));
+    }
+    accumulator.freeRef();
+    assert tileCache != null;
+    // The whole batch of the tile is hashed, so layers coupling batch items still see identical inputs
+    TileCache.Key key = TileCache.key(inner.getId(), stateHash, tile.addRef());
+    TensorList cached = tileCache.get(key);
+    if (null != cached) {
+      tile.freeRef();
+      return new Result(cached);
+    }
+    TensorList output = Result.getData(inner.eval(new Result(tile)));
+    tileCache.put(key, output.addRef());
+    return new Result(output);
+  }
+
+  private boolean isMemoizable() {
+    return null != tileCache && inner.isFrozen() && !isStochastic(inner.addRef(), new HashSet<>());
+  }
+
+  private static boolean isStochastic(@Nonnull Layer layer, @Nonnull Set<UUID> visited) {
+    try {
+      if (layer instanceof StochasticComponent) return true;
+      if (!visited.add(layer.getId())) return false;
+      RefList<Layer> children = layer.getChildren();
+      try {
+        for (int i = 0; i < children.size(); i++) {
+          if (isStochastic(children.get(i), visited)) return true;
+        }
+        return false;
+      } finally {
+        children.freeRef();
+      }
+    } finally {
+      layer.freeRef();
+    }
+  }
+
+  /**
+   * Takes a tile slot. The calling thread may itself be a pool worker, so waiting is done through
+   * {@link ForkJoinPool#managedBlock} to let the pool add a worker rather than stall the tiles
+   * that would release the slot.
+   *
+   * @param slots the slots
+   */
+  private static void acquire(@Nonnull Semaphore slots) {
+    if (slots.tryAcquire()) return;
+    try {
+      ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+        @Override
+        public boolean block() throws InterruptedException {
+          slots.acquire();
+          return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+          return slots.tryAcquire();
+        }
+      });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private int getMaxConcurrentTiles(int items, int bands) {
+    if (!isConcurrent()) return 1;
+    if (memoryBudget <= 0) return Integer.MAX_VALUE;
+    // Each tile in flight holds its selected input and an output of about the same size
+    long tileBytes = 2L * items * (width + 2 * haloX) * (height + 2 * haloY) * bands * Double.BYTES;
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / tileBytes));
+  }
+
+  private static class TileGradient extends ReferenceCountingBase {
 
-    private final RefArrayList<TensorList> passback;
-    private final int finalIndex;
-    private final AtomicInteger passbacks;
-    private final int rows;
-    private final int cols;
-    private Result.Accumulator accumulator;
+    private final int[] inputDims;
+    private final int tileCount;
+    private final AtomicInteger passbacks = new AtomicInteger(0);
+    private final Result.Accumulator accumulator;
+    @Nullable
+    private Tensor[] passback = null;
 
     /**
-     * Instantiates a new Tile accumulator.
+     * Instantiates a new Tile gradient.
      *
-     * @param passback    the passback
-     * @param finalIndex  the final index
-     * @param passbacks   the passbacks
-     * @param rows        the rows
-     * @param cols        the cols
+     * @param inputDims   the input dims
+     * @param tileCount   the tile count
      * @param accumulator the accumulator
      */
-    public TileAccumulator(RefArrayList<TensorList> passback, int finalIndex, AtomicInteger passbacks, int rows, int cols, Result.Accumulator accumulator) {
-      this.passback = passback;
-      this.finalIndex = finalIndex;
-      this.passbacks = passbacks;
-      this.rows = rows;
-      this.cols = cols;
+    public TileGradient(int[] inputDims, int tileCount, Result.Accumulator accumulator) {
+      this.inputDims = inputDims;
+      this.tileCount = tileCount;
       this.accumulator = accumulator;
     }
 
-    @Override
-    public void accept(@Nullable DeltaSet<UUID> ctx, @Nullable TensorList delta) {
-      //Result.getData(tileSelectLayer.eval(new Result(delta)));
-      RefUtil.freeRef(passback.set(finalIndex, delta));
-      if (passbacks.incrementAndGet() == rows * cols) {
+    /**
+     * Adds a tile delta into the input-shaped gradient, and passes the gradient on once every tile has reported.
+     *
+     * @param ctx       the ctx
+     * @param delta     the delta
+     * @param positionX the position x
+     * @param positionY the position y
+     */
+    public void accept(@Nullable DeltaSet<UUID> ctx, @Nonnull TensorList delta, int positionX, int positionY) {
+      Tensor[] passback = getPassback(delta.length());
+      int[] tileDims = delta.getDimensions();
+      for (int dataIndex = 0; dataIndex < passback.length; dataIndex++) {
+        Tensor tile = delta.get(dataIndex);
+        Tensor canvas = passback[dataIndex];
+        synchronized (canvas) {
+          ImgRegionTensorList.addRegion(tile.getData(), tileDims, canvas.getData(), inputDims, -positionX, -positionY);
+        }
+        tile.freeRef();
+      }
+      delta.freeRef();
+      if (passbacks.incrementAndGet() == tileCount) {
         passbacks.set(0);
-        ImgTileAssemblyLayer imgTileAssemblyLayer = new ImgTileAssemblyLayer(cols, rows);
-        TensorList reassembled = Result.getData(imgTileAssemblyLayer.eval(passback.stream().map(t -> {
-          return new Result(t);
-        }).<Result>toArray(Result[]::new)));
-        imgTileAssemblyLayer.freeRef();
-        this.accumulator.accept(ctx, reassembled);
+        Tensor[] reassembled;
+        synchronized (this) {
+          reassembled = this.passback;
+          this.passback = null;
+        }
+        this.accumulator.accept(ctx, new TensorArray(reassembled));
       } else {
         if (null != ctx)
           ctx.freeRef();
@@ -230,5 +548,47 @@ public class ImgTileSubnetLayer extends WrapperLayer {
       accumulator.freeRef();
       RefUtil.freeRef(passback);
     }
+
+    @Nonnull
+    private synchronized Tensor[] getPassback(int length) {
+      if (null == passback) {
+        passback = new Tensor[length];
+        for (int i = 0; i < length; i++) {
+          passback[i] = new Tensor(inputDims);
+        }
+      }
+      return passback;
+    }
+  }
+
+  private static class TileAccumulator extends Result.Accumulator {
+
+    private final TileGradient gradient;
+    private final int positionX;
+    private final int positionY;
+
+    /**
+     * Instantiates a new Tile accumulator.
+     *
+     * @param gradient  the gradient
+     * @param positionX the position x
+     * @param positionY the position y
+     */
+    public TileAccumulator(TileGradient gradient, int positionX, int positionY) {
+      this.gradient = gradient;
+      this.positionX = positionX;
+      this.positionY = positionY;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> ctx, @Nonnull TensorList delta) {
+      gradient.accept(ctx, delta, positionX, positionY);
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      gradient.freeRef();
+    }
   }
 }
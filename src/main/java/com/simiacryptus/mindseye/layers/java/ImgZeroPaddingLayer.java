@@ -62,6 +62,24 @@ public class ImgZeroPaddingLayer extends LayerBase {
     sizeY = json.getAsJsonPrimitive("sizeY").getAsInt();
   }
 
+  /**
+   * Gets size x.
+   *
+   * @return the size x
+   */
+  public int getSizeX() {
+    return sizeX;
+  }
+
+  /**
+   * Gets size y.
+   *
+   * @return the size y
+   */
+  public int getSizeY() {
+    return sizeY;
+  }
+
   /**
    * From json img zero padding layer.
    *
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import com.simiacryptus.util.MonitoredItem;
+
+import javax.annotation.Nonnull;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates the timings recorded by {@link ProfilingWrapperLayer} per layer name and class. Wall
+ * time, thread CPU time and allocated bytes are measured on the evaluating thread only, so work a
+ * layer hands to other threads is reflected in its wall time but not in its CPU time or
+ * allocations. CPU time and allocations read as zero where the JVM does not support them.
+ */
+public class LayerProfiler implements MonitoredItem {
+
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+  private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+  /**
+   * Wraps the layer of every node of a network, including nested networks, in a profiling wrapper
+   * reporting to this profiler. Nodes that are already wrapped are left alone.
+   *
+   * @param network the network
+   */
+  public void addTo(@Nonnull final DAGNetwork network) {
+    network.visitNodes(node -> {
+      Layer layer = node.getLayer();
+      // Nested networks are wrapped from the inside first, whatever order the visit takes
+      if (layer instanceof DAGNetwork) {
+        addTo((DAGNetwork) layer.addRef());
+      }
+      if (null != layer && !(layer instanceof ProfilingWrapperLayer)) {
+        node.setLayer(new ProfilingWrapperLayer(layer, this));
+      } else if (null != layer) {
+        layer.freeRef();
+      }
+      node.freeRef();
+    });
+    network.freeRef();
+  }
+
+  /**
+   * Gets the statistics for a layer, creating them on first use.
+   *
+   * @param layer the layer
+   * @return the stats
+   */
+  @Nonnull
+  public Stats get(@Nonnull final Layer layer) {
+    return stats.computeIfAbsent(layer.getName() + " (" + layer.getClass().getSimpleName() + ")", Stats::new);
+  }
+
+  /**
+   * Clear.
+   */
+  public void clear() {
+    stats.clear();
+  }
+
+  /**
+   * Gets a table of every profiled layer, most expensive first.
+   *
+   * @return the report
+   */
+  @Nonnull
+  public String getReport() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(RefString.format("%-48s %10s %12s %12s %12s %12s %14s %14s%n", "layer", "calls",
+        "fwd ms", "fwd cpu ms", "bwd ms", "bwd cpu ms", "alloc bytes", "retained"));
+    for (Stats s : sorted()) {
+      sb.append(RefString.format("%-48s %10d %12.3f %12.3f %12.3f %12.3f %14d %14d%n", s.name,
+          s.forwardCalls.sum(), s.forwardWallNanos.sum() / 1e6, s.forwardCpuNanos.sum() / 1e6,
+          s.backwardWallNanos.sum() / 1e6, s.backwardCpuNanos.sum() / 1e6,
+          s.forwardAllocatedBytes.sum() + s.backwardAllocatedBytes.sum(), s.retainedBytes.sum()));
+    }
+    return sb.toString();
+  }
+
+  @Nonnull
+  @Override
+  public Map<CharSequence, Object> getMetrics() {
+    @Nonnull final LinkedHashMap<CharSequence, Object> map = new LinkedHashMap<>();
+    for (Stats s : sorted()) {
+      map.put(s.name, s.getMetrics());
+    }
+    return map;
+  }
+
+  @Nonnull
+  private List<Stats> sorted() {
+    List<Stats> list = new ArrayList<>(stats.values());
+    list.sort(Comparator.comparingLong(Stats::getTotalWallNanos).reversed());
+    return list;
+  }
+
+  /**
+   * Starts a measurement on the calling thread.
+   *
+   * @return the sample
+   */
+  @Nonnull
+  static long[] start() {
+    return new long[]{RefSystem.nanoTime(), cpuTime(), allocatedBytes()};
+  }
+
+  /**
+   * Gets the wall time, CPU time and allocations since a measurement started on the calling thread.
+   *
+   * @param start the start
+   * @return the elapsed sample
+   */
+  @Nonnull
+  static long[] elapsed(@Nonnull long[] start) {
+    return new long[]{RefSystem.nanoTime() - start[0], cpuTime() - start[1], allocatedBytes() - start[2]};
+  }
+
+  private static long cpuTime() {
+    return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : 0;
+  }
+
+  private static long allocatedBytes() {
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadMXBean;
+      if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Running totals for one layer.
+   */
+  public static final class Stats {
+    private final String name;
+    private final LongAdder forwardCalls = new LongAdder();
+    private final LongAdder forwardWallNanos = new LongAdder();
+    private final LongAdder forwardCpuNanos = new LongAdder();
+    private final LongAdder forwardAllocatedBytes = new LongAdder();
+    private final LongAdder backwardCalls = new LongAdder();
+    private final LongAdder backwardWallNanos = new LongAdder();
+    private final LongAdder backwardCpuNanos = new LongAdder();
+    private final LongAdder backwardAllocatedBytes = new LongAdder();
+    private final LongAdder outputTensors = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final LongAdder retainedBytes = new LongAdder();
+
+    private Stats(@Nonnull String name) {
+      this.name = name;
+    }
+
+    /**
+     * Gets total wall nanos.
+     *
+     * @return the total wall nanos
+     */
+    public long getTotalWallNanos() {
+      return forwardWallNanos.sum() + backwardWallNanos.sum();
+    }
+
+    /**
+     * Records a forward pass started at the given sample.
+     *
+     * @param start         the start
+     * @param tensors       the number of output tensors
+     * @param bytes         the output bytes
+     * @param retainedBytes the input bytes kept alive for the backward pass
+     */
+    void forward(@Nonnull long[] start, long tensors, long bytes, long retainedBytes) {
+      final long[] elapsed = elapsed(start);
+      forwardWallNanos.add(elapsed[0]);
+      forwardCpuNanos.add(elapsed[1]);
+      forwardAllocatedBytes.add(elapsed[2]);
+      forwardCalls.increment();
+      outputTensors.add(tensors);
+      outputBytes.add(bytes);
+      this.retainedBytes.add(retainedBytes);
+    }
+
+    /**
+     * Records a backward pass started at the given sample, excluding the time spent in upstream
+     * accumulators.
+     *
+     * @param start    the start
+     * @param excluded the upstream wall time, CPU time and allocations
+     */
+    void backward(@Nonnull long[] start, @Nonnull long[] excluded) {
+      final long[] elapsed = elapsed(start);
+      backwardWallNanos.add(Math.max(0, elapsed[0] - excluded[0]));
+      backwardCpuNanos.add(Math.max(0, elapsed[1] - excluded[1]));
+      backwardAllocatedBytes.add(Math.max(0, elapsed[2] - excluded[2]));
+      backwardCalls.increment();
+    }
+
+    /**
+     * Gets metrics.
+     *
+     * @return the metrics
+     */
+    @Nonnull
+    public Map<CharSequence, Object> getMetrics() {
+      @Nonnull final LinkedHashMap<CharSequence, Object> map = new LinkedHashMap<>();
+      map.put("forwardCalls", forwardCalls.sum());
+      map.put("forwardWallNanos", forwardWallNanos.sum());
+      map.put("forwardCpuNanos", forwardCpuNanos.sum());
+      map.put("forwardAllocatedBytes", forwardAllocatedBytes.sum());
+      map.put("backwardCalls", backwardCalls.sum());
+      map.put("backwardWallNanos", backwardWallNanos.sum());
+      map.put("backwardCpuNanos", backwardCpuNanos.sum());
+      map.put("backwardAllocatedBytes", backwardAllocatedBytes.sum());
+      map.put("outputTensors", outputTensors.sum());
+      map.put("outputBytes", outputBytes.sum());
+      map.put("retainedBytes", retainedBytes.sum());
+      return map;
+    }
+  }
+}
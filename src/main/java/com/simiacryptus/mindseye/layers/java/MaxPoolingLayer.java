@@ -79,6 +79,15 @@ public class MaxPoolingLayer extends LayerBase {
     this.kernelDims = RefArrays.copyOf(kernelDims, kernelDims.length);
   }
 
+  /**
+   * Get kernel dims int [ ].
+   *
+   * @return the int [ ]
+   */
+  public int[] getKernelDims() {
+    return RefArrays.copyOf(kernelDims, kernelDims.length);
+  }
+
   /**
    * From json max pooling layer.
    *
@@ -20,6 +20,7 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefIgnore;
 import com.simiacryptus.ref.lang.RefUtil;
@@ -32,6 +33,8 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
 import java.util.function.IntFunction;
 
 /**
@@ -42,6 +45,7 @@ public class MeanSqLossLayer extends LayerBase {
 
   @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(MeanSqLossLayer.class);
+  private boolean recompute = false;
 
   /**
    * Instantiates a new Mean sq loss layer.
@@ -56,6 +60,27 @@ public class MeanSqLossLayer extends LayerBase {
    */
   protected MeanSqLossLayer(@Nonnull final JsonObject id) {
     super(id);
+    JsonPrimitive recompute = id.getAsJsonPrimitive("recompute");
+    this.recompute = null != recompute && recompute.getAsBoolean();
+  }
+
+  /**
+   * Is recompute boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isRecompute() {
+    return recompute;
+  }
+
+  /**
+   * Sets whether the difference of the inputs is recomputed on the backward pass from references to the
+   * inputs, rather than being stored for every item.
+   *
+   * @param recompute the recompute
+   */
+  public void setRecompute(boolean recompute) {
+    this.recompute = recompute;
   }
 
   /**
@@ -88,6 +113,17 @@ public class MeanSqLossLayer extends LayerBase {
       RefUtil.freeRef(inObj);
       throw new IllegalArgumentException(leftLength + " != " + rightLength);
     }
+    if (recompute) {
+      final TensorList left = inObj[0].getData();
+      final TensorList right = inObj[1].getData();
+      final int length = Math.max(leftLength, rightLength);
+      TensorArray data = fwd(left.addRef(), right.addRef(), length);
+      boolean alive = inObj[0].isAlive() || inObj[1].isAlive();
+      Result.Accumulator accumulator = new RecomputeAccumulator(left, right, inObj[0].getAccumulator(),
+          inObj[1].getAccumulator(), inObj[0].isAlive(), inObj[1].isAlive());
+      RefUtil.freeRef(inObj);
+      return new Result(data, accumulator, alive);
+    }
     @Nonnull final Tensor diffs[] = new Tensor[leftLength];
     try {
       TensorArray data = fwd(leftLength, rightLength, diffs, RefUtil.addRef(inObj));
@@ -106,7 +142,9 @@ public class MeanSqLossLayer extends LayerBase {
   @Nonnull
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
-    return super.getJsonStub();
+    @Nonnull final JsonObject json = super.getJsonStub();
+    json.addProperty("recompute", recompute);
+    return json;
   }
 
   @Nonnull
@@ -127,6 +165,55 @@ public class MeanSqLossLayer extends LayerBase {
     return (MeanSqLossLayer) super.addRef();
   }
 
+  @NotNull
+  private static TensorArray fwd(@Nonnull TensorList left, @Nonnull TensorList right, int length) {
+    return new TensorArray(RefIntStream.range(0, length).parallel()
+        .mapToObj(RefUtil.wrapInterface((IntFunction<Tensor>) dataIndex -> {
+          @Nullable final Tensor a = left.get(1 == left.length() ? 0 : dataIndex);
+          @Nullable final Tensor b = right.get(1 == right.length() ? 0 : dataIndex);
+          if (a.length() != b.length()) {
+            IllegalArgumentException exception = new IllegalArgumentException(RefString.format("%s != %s",
+                RefArrays.toString(a.getDimensions()), RefArrays.toString(b.getDimensions())));
+            a.freeRef();
+            b.freeRef();
+            throw exception;
+          }
+          @Nullable final double[] ad = a.getData();
+          @Nullable final double[] bd = b.getData();
+          double sumSq = 0;
+          for (int i = 0; i < ad.length; i++) {
+            final double diff = ad[i] - bd[i];
+            sumSq += diff * diff;
+          }
+          a.freeRef();
+          b.freeRef();
+          return new Tensor(new double[]{sumSq / ad.length}, 1);
+        }, left, right)).toArray(Tensor[]::new));
+  }
+
+  /**
+   * Adds scale * 2 * (left - right) / n for one item into a buffer, where n is the item length.
+   *
+   * @param buffer    the buffer
+   * @param left      the left
+   * @param right     the right
+   * @param dataIndex the data index
+   * @param scale     the scale
+   */
+  private static void addGradient(@Nonnull double[] buffer, @Nonnull TensorList left, @Nonnull TensorList right,
+                                  int dataIndex, double scale) {
+    @Nullable final Tensor a = left.get(1 == left.length() ? 0 : dataIndex);
+    @Nullable final Tensor b = right.get(1 == right.length() ? 0 : dataIndex);
+    @Nullable final double[] ad = a.getData();
+    @Nullable final double[] bd = b.getData();
+    final double factor = scale * 2.0 / ad.length;
+    for (int i = 0; i < ad.length; i++) {
+      buffer[i] += factor * (ad[i] - bd[i]);
+    }
+    a.freeRef();
+    b.freeRef();
+  }
+
   @NotNull
   private TensorArray fwd(int leftLength, int rightLength, @RefIgnore Tensor[] diffs, @Nonnull Result[] inObj) {
     return new TensorArray(RefIntStream.range(0, leftLength)
@@ -246,4 +333,96 @@ public class MeanSqLossLayer extends LayerBase {
       RefUtil.freeRef(diffs);
     }
   }
+
+  private static class RecomputeAccumulator extends Result.Accumulator {
+
+    private final TensorList left;
+    private final TensorList right;
+    private Result.Accumulator accumulator0;
+    private Result.Accumulator accumulator1;
+    private boolean alive0;
+    private boolean alive1;
+
+    /**
+     * Instantiates a new Recompute accumulator.
+     *
+     * @param left         the left
+     * @param right        the right
+     * @param accumulator0 the accumulator 0
+     * @param accumulator1 the accumulator 1
+     * @param alive0       the alive 0
+     * @param alive1       the alive 1
+     */
+    public RecomputeAccumulator(TensorList left, TensorList right, Result.Accumulator accumulator0,
+                                Result.Accumulator accumulator1, boolean alive0, boolean alive1) {
+      this.left = left;
+      this.right = right;
+      this.accumulator0 = accumulator0;
+      this.accumulator1 = accumulator1;
+      this.alive0 = alive0;
+      this.alive1 = alive1;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList data) {
+      if (alive0) {
+        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+        accumulator0.accept(buffer1, gradient(data.addRef(), 1.0, 1 == left.length(), left.getDimensions()));
+      }
+      if (alive1) {
+        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+        accumulator1.accept(buffer1, gradient(data.addRef(), -1.0, 1 == right.length(), right.getDimensions()));
+      }
+      data.freeRef();
+      if (null != buffer)
+        buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      accumulator0.freeRef();
+      accumulator1.freeRef();
+      left.freeRef();
+      right.freeRef();
+    }
+
+    @Nonnull
+    private TensorArray gradient(@Nonnull TensorList data, double sign, boolean broadcast, @Nonnull int[] dims) {
+      final int length = data.length();
+      final double[] deltas = new double[length];
+      for (int dataIndex = 0; dataIndex < length; dataIndex++) {
+        Tensor tensor = data.get(dataIndex);
+        deltas[dataIndex] = sign * tensor.get(0);
+        tensor.freeRef();
+      }
+      data.freeRef();
+      if (!broadcast) {
+        return new TensorArray(RefIntStream.range(0, length).parallel()
+            .mapToObj(RefUtil.wrapInterface((IntFunction<Tensor>) dataIndex -> {
+              @Nonnull final Tensor passback = new Tensor(dims);
+              addGradient(passback.getData(), left, right, dataIndex, deltas[dataIndex]);
+              return passback;
+            }, left.addRef(), right.addRef())).toArray(Tensor[]::new));
+      }
+      // A broadcast input sums the gradients of every item; each partition reduces into its own buffer
+      final int partitions = Math.max(1, Math.min(length, ForkJoinPool.getCommonPoolParallelism()));
+      final double[][] partials = new double[partitions][];
+      RefIntStream.range(0, partitions).parallel().forEach(RefUtil.wrapInterface((IntConsumer) partition -> {
+        final double[] partial = new double[Tensor.length(dims)];
+        for (int dataIndex = partition; dataIndex < length; dataIndex += partitions) {
+          addGradient(partial, left, right, dataIndex, deltas[dataIndex]);
+        }
+        partials[partition] = partial;
+      }, left.addRef(), right.addRef()));
+      final double[] total = partials[0];
+      for (int partition = 1; partition < partitions; partition++) {
+        final double[] partial = partials[partition];
+        for (int i = 0; i < total.length; i++) {
+          total[i] += partial[i];
+        }
+      }
+      return new TensorArray(new Tensor(total, dims));
+    }
+  }
 }
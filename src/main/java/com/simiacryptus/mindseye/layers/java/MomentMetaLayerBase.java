@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.simiacryptus.mindseye.lang.DataSerializer;
+import com.simiacryptus.mindseye.lang.LayerBase;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * Base class for meta layers driven by the mean and variance of every element in a batch. The
+ * moments are computed in a single parallel Welford pass. The moments of the last batch larger than
+ * the min batch count are kept, and smaller batches reuse them without reducing the batch at all.
+ * When a momentum is set, exponential moving averages of the moments are kept instead, and a frozen
+ * layer also reuses them.
+ */
+@SuppressWarnings("serial")
+public abstract class MomentMetaLayerBase extends LayerBase {
+
+  private int minBatchCount = 1;
+  private double momentum = 0;
+  private boolean hasRunningStats = false;
+  private double runningMean = 0;
+  private double runningVariance = 0;
+
+  /**
+   * Instantiates a new Moment meta layer base.
+   */
+  protected MomentMetaLayerBase() {
+  }
+
+  /**
+   * Instantiates a new Moment meta layer base.
+   *
+   * @param json the json
+   */
+  protected MomentMetaLayerBase(@Nonnull final JsonObject json) {
+    super(json);
+    JsonPrimitive minBatchCount = json.getAsJsonPrimitive("minBatchCount");
+    if (null != minBatchCount) this.minBatchCount = minBatchCount.getAsInt();
+    else this.minBatchCount = getLegacyMinBatchCount(json);
+    JsonPrimitive momentum = json.getAsJsonPrimitive("momentum");
+    if (null != momentum) this.momentum = momentum.getAsDouble();
+    JsonPrimitive runningMean = json.getAsJsonPrimitive("runningMean");
+    JsonPrimitive runningVariance = json.getAsJsonPrimitive("runningVariance");
+    if (null != runningMean && null != runningVariance) {
+      this.runningMean = runningMean.getAsDouble();
+      this.runningVariance = runningVariance.getAsDouble();
+      this.hasRunningStats = true;
+    }
+  }
+
+  /**
+   * Gets min batch count.
+   *
+   * @return the min batch count
+   */
+  public int getMinBatchCount() {
+    return minBatchCount;
+  }
+
+  /**
+   * Sets min batch count.
+   *
+   * @param minBatchCount the min batch count
+   */
+  public void setMinBatchCount(int minBatchCount) {
+    this.minBatchCount = minBatchCount;
+  }
+
+  /**
+   * Gets the weight given to each new batch in the running statistics; zero keeps only the last batch.
+   *
+   * @return the momentum
+   */
+  public double getMomentum() {
+    return momentum;
+  }
+
+  /**
+   * Sets momentum.
+   *
+   * @param momentum the momentum
+   */
+  public void setMomentum(double momentum) {
+    if (momentum < 0 || momentum > 1) throw new IllegalArgumentException("momentum: " + momentum);
+    this.momentum = momentum;
+  }
+
+  /**
+   * Gets running mean.
+   *
+   * @return the running mean
+   */
+  public synchronized double getRunningMean() {
+    return runningMean;
+  }
+
+  /**
+   * Gets running variance.
+   *
+   * @return the running variance
+   */
+  public synchronized double getRunningVariance() {
+    return runningVariance;
+  }
+
+  /**
+   * Clear running stats.
+   */
+  public synchronized void clearRunningStats() {
+    hasRunningStats = false;
+    runningMean = 0;
+    runningVariance = 0;
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nullable final Result... inObj) {
+    assert inObj != null;
+    final Result input = inObj[0].addRef();
+    RefUtil.freeRef(inObj);
+    TensorList inputData = input.getData();
+    final int itemCnt = inputData.length();
+    double mean;
+    double variance;
+    long count = (long) itemCnt * Tensor.length(inputData.getDimensions());
+    boolean active;
+    synchronized (this) {
+      active = !(hasRunningStats && (itemCnt <= minBatchCount || 0 < momentum && isFrozen()));
+      mean = runningMean;
+      variance = runningVariance;
+    }
+    if (active) {
+      BatchReductions.Moments moments = BatchReductions.moments(inputData.addRef());
+      mean = moments.getMean();
+      variance = moments.getVariance();
+      count = moments.getCount();
+      if ((0 == momentum || !isFrozen()) && !CheckpointLayer.isRecomputing()) update(mean, variance);
+    }
+    inputData.freeRef();
+    return eval(input, mean, variance, count, active);
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, @Nonnull DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJsonStub();
+    json.addProperty("minBatchCount", minBatchCount);
+    json.addProperty("momentum", momentum);
+    synchronized (this) {
+      if (hasRunningStats) {
+        json.addProperty("runningMean", runningMean);
+        json.addProperty("runningVariance", runningVariance);
+      }
+    }
+    return json;
+  }
+
+  @Nonnull
+  @Override
+  public RefList<double[]> state() {
+    return RefArrays.asList();
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  MomentMetaLayerBase addRef() {
+    return (MomentMetaLayerBase) super.addRef();
+  }
+
+  /**
+   * Evaluates the layer given the moments of its input. When the moments are not active they came
+   * from the running statistics and carry no gradient.
+   *
+   * @param input    the input
+   * @param mean     the mean
+   * @param variance the variance
+   * @param count    the number of elements reduced
+   * @param active   whether the moments depend on the input
+   * @return the result
+   */
+  @Nonnull
+  protected abstract Result eval(@Nonnull Result input, double mean, double variance, long count, boolean active);
+
+  /**
+   * Reads the min batch count of the older form of these layers, a PipelineNetwork whose
+   * {@link AvgMetaLayer} nodes held it.
+   *
+   * @param json the json
+   * @return the min batch count
+   */
+  private static int getLegacyMinBatchCount(@Nonnull final JsonObject json) {
+    JsonElement layers = json.get("layers");
+    if (null == layers || !layers.isJsonObject()) return 1;
+    for (Map.Entry<String, JsonElement> entry : layers.getAsJsonObject().entrySet()) {
+      if (!entry.getValue().isJsonObject()) continue;
+      JsonObject layer = entry.getValue().getAsJsonObject();
+      JsonPrimitive type = layer.getAsJsonPrimitive("class");
+      JsonPrimitive minBatchCount = layer.getAsJsonPrimitive("minBatchCount");
+      if (null != type && null != minBatchCount && AvgMetaLayer.class.getName().equals(type.getAsString())) {
+        return minBatchCount.getAsInt();
+      }
+    }
+    return 1;
+  }
+
+  private synchronized void update(double mean, double variance) {
+    if (hasRunningStats && 0 < momentum) {
+      runningMean += momentum * (mean - runningMean);
+      runningVariance += momentum * (variance - runningVariance);
+    } else {
+      runningMean = mean;
+      runningVariance = variance;
+      hasRunningStats = true;
+    }
+  }
+}
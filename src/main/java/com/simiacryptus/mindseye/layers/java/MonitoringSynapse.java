@@ -20,31 +20,40 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
 import com.simiacryptus.util.MonitoredItem;
 import com.simiacryptus.util.MonitoredObject;
-import com.simiacryptus.util.data.PercentileStatistics;
-import com.simiacryptus.util.data.ScalarStatistics;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
 
 /**
- * The type Monitoring synapse.
+ * A pass-through layer that records statistics of the values and gradients flowing through it.
+ * Each observed batch is summarized by a {@link QuantileSketch}, built from per-thread partial
+ * sketches and swapped in whole. Observation can be limited to every n-th batch and to a fraction
+ * of the elements, so the monitor can stay enabled at little cost.
  */
 @SuppressWarnings("serial")
 public final class MonitoringSynapse extends LayerBase implements MonitoredItem {
 
-  private final ScalarStatistics backpropStatistics = new PercentileStatistics();
-  private final ScalarStatistics forwardStatistics = new PercentileStatistics();
-  private int totalBatches = 0;
-  private int totalItems = 0;
+  private final AtomicLong totalBatches = new AtomicLong(0);
+  private final AtomicLong totalItems = new AtomicLong(0);
+  private final AtomicLong backpropBatches = new AtomicLong(0);
+  private volatile QuantileSketch backpropStatistics = new QuantileSketch();
+  private volatile QuantileSketch forwardStatistics = new QuantileSketch();
+  private int batchInterval = 1;
+  private double elementRate = 1.0;
 
   /**
    * Instantiates a new Monitoring synapse.
@@ -66,8 +75,9 @@ public final class MonitoringSynapse extends LayerBase implements MonitoredItem
   @Override
   public Map<CharSequence, Object> getMetrics() {
     @Nonnull final HashMap<CharSequence, Object> map = new HashMap<>();
-    map.put("totalBatches", totalBatches);
-    map.put("totalItems", totalItems);
+    map.put("totalBatches", totalBatches.get());
+    map.put("totalItems", totalItems.get());
+    map.put("backpropBatches", backpropBatches.get());
     map.put("forward", forwardStatistics.getMetrics());
     map.put("backprop", backpropStatistics.getMetrics());
     return map;
@@ -84,13 +94,53 @@ public final class MonitoringSynapse extends LayerBase implements MonitoredItem
   @SuppressWarnings("unused")
   public static MonitoringSynapse fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
     @Nonnull final MonitoringSynapse obj = new MonitoringSynapse(json);
-    obj.totalBatches = json.get("totalBatches").getAsInt();
-    obj.totalItems = json.get("totalItems").getAsInt();
-    obj.backpropStatistics.readJson(json.getAsJsonObject("backpropStatistics"));
-    obj.forwardStatistics.readJson(json.getAsJsonObject("forwardStatistics"));
+    obj.totalBatches.set(json.get("totalBatches").getAsLong());
+    obj.totalItems.set(json.get("totalItems").getAsLong());
+    JsonPrimitive batchInterval = json.getAsJsonPrimitive("batchInterval");
+    if (null != batchInterval) obj.batchInterval = batchInterval.getAsInt();
+    JsonPrimitive elementRate = json.getAsJsonPrimitive("elementRate");
+    if (null != elementRate) obj.elementRate = elementRate.getAsDouble();
     return obj;
   }
 
+  /**
+   * Gets the interval between observed batches.
+   *
+   * @return the batch interval
+   */
+  public int getBatchInterval() {
+    return batchInterval;
+  }
+
+  /**
+   * Sets batch interval.
+   *
+   * @param batchInterval the batch interval
+   */
+  public void setBatchInterval(int batchInterval) {
+    if (batchInterval < 1) throw new IllegalArgumentException("batchInterval: " + batchInterval);
+    this.batchInterval = batchInterval;
+  }
+
+  /**
+   * Gets the fraction of elements observed in each observed batch.
+   *
+   * @return the element rate
+   */
+  public double getElementRate() {
+    return elementRate;
+  }
+
+  /**
+   * Sets element rate.
+   *
+   * @param elementRate the element rate
+   */
+  public void setElementRate(double elementRate) {
+    if (elementRate <= 0 || elementRate > 1) throw new IllegalArgumentException("elementRate: " + elementRate);
+    this.elementRate = elementRate;
+  }
+
   /**
    * Add to monitoring synapse.
    *
@@ -122,13 +172,14 @@ public final class MonitoringSynapse extends LayerBase implements MonitoredItem
     final Result input = inObj[0].addRef();
     RefUtil.freeRef(inObj);
     final TensorList inputdata = input.getData();
-    totalBatches++;
-    totalItems += inputdata.length();
-    forwardStatistics.clear();
-    inputdata.stream().parallel().forEach(t -> {
-      forwardStatistics.add(t.getData());
-      t.freeRef();
-    });
+    // A checkpoint recomputing its forward pass would count the same batch twice
+    if (!CheckpointLayer.isRecomputing()) {
+      final long batch = totalBatches.getAndIncrement();
+      totalItems.addAndGet(inputdata.length());
+      if (0 == batch % batchInterval) {
+        forwardStatistics = sketch(inputdata.addRef(), batch);
+      }
+    }
     boolean alive = input.isAlive();
     Result.Accumulator accumulator = new Accumulator(input.getAccumulator());
     input.freeRef();
@@ -139,8 +190,10 @@ public final class MonitoringSynapse extends LayerBase implements MonitoredItem
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
     @Nonnull final JsonObject json = super.getJsonStub();
-    json.addProperty("totalBatches", totalBatches);
-    json.addProperty("totalItems", totalItems);
+    json.addProperty("totalBatches", totalBatches.get());
+    json.addProperty("totalItems", totalItems.get());
+    json.addProperty("batchInterval", batchInterval);
+    json.addProperty("elementRate", elementRate);
     return json;
   }
 
@@ -162,6 +215,29 @@ public final class MonitoringSynapse extends LayerBase implements MonitoredItem
     return (MonitoringSynapse) super.addRef();
   }
 
+  @Nonnull
+  private QuantileSketch sketch(@Nonnull final TensorList data, final long batch) {
+    final int items = data.length();
+    final int stride = Math.max(1, (int) Math.round(1 / elementRate));
+    final int lanes = Math.max(1, Math.min(items, ForkJoinPool.getCommonPoolParallelism()));
+    final QuantileSketch[] partials = new QuantileSketch[lanes];
+    RefIntStream.range(0, lanes).parallel().forEach(RefUtil.wrapInterface((IntConsumer) lane -> {
+      final QuantileSketch sketch = new QuantileSketch();
+      for (int item = lane; item < items; item += lanes) {
+        Tensor tensor = data.get(item);
+        // Rotating the starting element spreads a strided sample over every position
+        sketch.add(tensor.getData(), (int) ((batch + item) % stride), stride);
+        tensor.freeRef();
+      }
+      partials[lane] = sketch;
+    }, data));
+    final QuantileSketch total = partials[0];
+    for (int lane = 1; lane < lanes; lane++) {
+      total.merge(partials[lane]);
+    }
+    return total;
+  }
+
   private class Accumulator extends Result.Accumulator {
 
     private Result.Accumulator accumulator;
@@ -177,14 +253,13 @@ public final class MonitoringSynapse extends LayerBase implements MonitoredItem
 
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nullable TensorList data) {
-      backpropStatistics.clear();
       TensorList delta = data == null ? null : data.addRef();
       this.accumulator.accept(buffer, delta);
       assert data != null;
-      data.stream().parallel().forEach(t -> {
-        backpropStatistics.add(t.getData());
-        t.freeRef();
-      });
+      final long batch = backpropBatches.getAndIncrement();
+      if (0 == batch % batchInterval) {
+        backpropStatistics = sketch(data.addRef(), batch);
+      }
       data.freeRef();
     }
 
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.ref.wrappers.RefIntStream;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Counter-based noise shared by the stochastic layers. Every value is a SplitMix64 hash of
+ * (seed, item, element), so blocks can be filled in any order and on any number of threads with
+ * identical results, and any value can be regenerated on the backward pass instead of being stored.
+ * Uniform, Gaussian (128-layer ziggurat) and Bernoulli streams are provided.
+ */
+public final class NoiseGenerator {
+
+  private static final int CHUNK_SIZE = 1 << 14;
+  private static final int ZIGGURAT_LAYERS = 128;
+  private static final double ZIGGURAT_R = 3.442619855899;
+  private static final double ZIGGURAT_V = 9.91256303526217e-3;
+  private static final double[] ZIGGURAT_X = new double[ZIGGURAT_LAYERS + 1];
+  private static final double[] ZIGGURAT_RATIO = new double[ZIGGURAT_LAYERS];
+  private static final ThreadLocal<long[]> contextSeed = new ThreadLocal<>();
+
+  static {
+    double f = Math.exp(-0.5 * ZIGGURAT_R * ZIGGURAT_R);
+    ZIGGURAT_X[0] = ZIGGURAT_V / f;
+    ZIGGURAT_X[1] = ZIGGURAT_R;
+    ZIGGURAT_X[ZIGGURAT_LAYERS] = 0;
+    for (int i = 2; i < ZIGGURAT_LAYERS; i++) {
+      ZIGGURAT_X[i] = Math.sqrt(-2 * Math.log(ZIGGURAT_V / ZIGGURAT_X[i - 1] + f));
+      f = Math.exp(-0.5 * ZIGGURAT_X[i] * ZIGGURAT_X[i]);
+    }
+    for (int i = 0; i < ZIGGURAT_LAYERS; i++) {
+      ZIGGURAT_RATIO[i] = ZIGGURAT_X[i + 1] / ZIGGURAT_X[i];
+    }
+  }
+
+  private NoiseGenerator() {
+  }
+
+  /**
+   * Evaluates a function with a seed that overrides the seed of every stochastic layer evaluated on
+   * the calling thread, without mutating the layers. This lets several samples of one subnetwork be
+   * evaluated concurrently, each with its own noise.
+   *
+   * @param <T>  the type parameter
+   * @param seed the seed
+   * @param fn   the fn
+   * @return the result
+   */
+  public static <T> T withSeed(final long seed, @Nonnull final Supplier<T> fn) {
+    final long[] previous = contextSeed.get();
+    // The second slot counts how many times the seed has been read on this thread
+    contextSeed.set(new long[]{seed, 0});
+    try {
+      return fn.get();
+    } finally {
+      if (null == previous) contextSeed.remove();
+      else contextSeed.set(previous);
+    }
+  }
+
+  /**
+   * Gets the seed a stochastic layer should use: the seed set by {@link #withSeed} on this thread, if
+   * any, and otherwise the layer's own.
+   *
+   * @param layerSeed the layer seed
+   * @return the seed
+   */
+  public static long seed(final long layerSeed) {
+    final long[] seed = contextSeed.get();
+    if (null == seed) return layerSeed;
+    seed[1]++;
+    return seed[0];
+  }
+
+  /**
+   * Gets how many times {@link #seed} has returned the seed set by the innermost {@link #withSeed} on
+   * this thread. A stochastic layer evaluated on another thread does not count, which lets callers
+   * detect that it fell back to its own seed.
+   *
+   * @return the count
+   */
+  public static long getContextSeedReads() {
+    final long[] seed = contextSeed.get();
+    return null == seed ? 0 : seed[1];
+  }
+
+  /**
+   * Gets the seed set by {@link #withSeed} on this thread without counting it as a read, so it can be
+   * restored later with {@link #withSeed}. Only valid when {@link #hasContextSeed} is true.
+   *
+   * @return the seed
+   */
+  public static long getContextSeed() {
+    final long[] seed = contextSeed.get();
+    assert null != seed;
+    return seed[0];
+  }
+
+  /**
+   * Checks whether a seed has been set by {@link #withSeed} on this thread.
+   *
+   * @return the boolean
+   */
+  public static boolean hasContextSeed() {
+    return null != contextSeed.get();
+  }
+
+  /**
+   * Derives the seed one layer should draw from, so that layers shuffled with the same seed still
+   * produce independent noise. A disabled seed is passed through unchanged, and a derived seed never
+   * collides with it.
+   *
+   * @param seed     the seed
+   * @param disabled the seed value meaning no noise
+   * @param layerId  the layer id
+   * @return the layer seed
+   */
+  public static long layerSeed(final long seed, final long disabled, @Nonnull final UUID layerId) {
+    if (seed == disabled) return disabled;
+    final long mixed = hash(hash(seed, layerId.getMostSignificantBits()), layerId.getLeastSignificantBits());
+    return mixed == disabled ? mixed + 1 : mixed;
+  }
+
+  /**
+   * Hashes a seed and a counter with the SplitMix64 finalizer.
+   *
+   * @param seed    the seed
+   * @param counter the counter
+   * @return the hash
+   */
+  public static long hash(final long seed, final long counter) {
+    long z = seed + (counter + 1) * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Gets a uniform value in [0, 1).
+   *
+   * @param seed    the seed
+   * @param item    the item
+   * @param element the element
+   * @return the value
+   */
+  public static double uniform(final long seed, final int item, final int element) {
+    return toUnit(hash(seed, counter(item, element)));
+  }
+
+  /**
+   * Gets a value that is true with the given probability.
+   *
+   * @param seed        the seed
+   * @param item        the item
+   * @param element     the element
+   * @param probability the probability
+   * @return the value
+   */
+  public static boolean bernoulli(final long seed, final int item, final int element, final double probability) {
+    return uniform(seed, item, element) < probability;
+  }
+
+  /**
+   * Gets a standard normal value, using the ziggurat method. Rejected candidates draw from a
+   * derived seed, so the result is still a function of (seed, item, element) alone.
+   *
+   * @param seed    the seed
+   * @param item    the item
+   * @param element the element
+   * @return the value
+   */
+  public static double gaussian(final long seed, final int item, final int element) {
+    final long counter = counter(item, element);
+    long stream = seed;
+    while (true) {
+      final long bits = hash(stream, counter);
+      final int layer = (int) (bits & (ZIGGURAT_LAYERS - 1));
+      // The layer uses the low bits; the uniform uses the top 53
+      final double u = 2 * toUnit(bits) - 1;
+      if (Math.abs(u) < ZIGGURAT_RATIO[layer]) return u * ZIGGURAT_X[layer];
+      stream = hash(stream, -1);
+      if (layer == 0) {
+        double x;
+        double y;
+        do {
+          x = Math.log(toOpenUnit(hash(stream, counter))) / ZIGGURAT_R;
+          stream = hash(stream, -1);
+          y = Math.log(toOpenUnit(hash(stream, counter)));
+          stream = hash(stream, -1);
+        } while (-2 * y < x * x);
+        return u < 0 ? x - ZIGGURAT_R : ZIGGURAT_R - x;
+      }
+      final double x = u * ZIGGURAT_X[layer];
+      final double f0 = Math.exp(-0.5 * (ZIGGURAT_X[layer] * ZIGGURAT_X[layer] - x * x));
+      final double f1 = Math.exp(-0.5 * (ZIGGURAT_X[layer + 1] * ZIGGURAT_X[layer + 1] - x * x));
+      final double v = toUnit(hash(stream, counter));
+      stream = hash(stream, -1);
+      if (f1 + v * (f0 - f1) < 1.0) return x;
+    }
+  }
+
+  /**
+   * Fills a block with uniform values in [0, 1).
+   *
+   * @param seed the seed
+   * @param item the item
+   * @param data the data
+   */
+  public static void fillUniform(final long seed, final int item, @Nonnull final double[] data) {
+    forEachChunk(data.length, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        data[i] = uniform(seed, item, i);
+      }
+    });
+  }
+
+  /**
+   * Fills a block with normal values of the given mean and standard deviation.
+   *
+   * @param seed   the seed
+   * @param item   the item
+   * @param data   the data
+   * @param mean   the mean
+   * @param stdDev the std dev
+   */
+  public static void fillGaussian(final long seed, final int item, @Nonnull final double[] data, final double mean,
+                                  final double stdDev) {
+    forEachChunk(data.length, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        data[i] = mean + stdDev * gaussian(seed, item, i);
+      }
+    });
+  }
+
+  /**
+   * Fills a block with value where a draw with the given probability succeeds, and zero elsewhere.
+   *
+   * @param seed        the seed
+   * @param item        the item
+   * @param data        the data
+   * @param probability the probability
+   * @param value       the value
+   */
+  public static void fillBernoulli(final long seed, final int item, @Nonnull final double[] data,
+                                   final double probability, final double value) {
+    forEachChunk(data.length, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        data[i] = bernoulli(seed, item, i, probability) ? value : 0;
+      }
+    });
+  }
+
+  private static long counter(final int item, final int element) {
+    return ((long) item << 32) | (element & 0xFFFFFFFFL);
+  }
+
+  private static double toUnit(final long bits) {
+    return (bits >>> 11) * 0x1.0p-53;
+  }
+
+  private static double toOpenUnit(final long bits) {
+    return ((bits >>> 11) + 1) * 0x1.0p-53;
+  }
+
+  private static void forEachChunk(final int length, @Nonnull final ChunkConsumer consumer) {
+    final int chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    if (chunks <= 1) {
+      consumer.accept(0, length);
+    } else {
+      RefIntStream.range(0, chunks).parallel().forEach(chunk -> {
+        consumer.accept(chunk * CHUNK_SIZE, Math.min(length, (chunk + 1) * CHUNK_SIZE));
+      });
+    }
+  }
+
+  private interface ChunkConsumer {
+    void accept(int from, int to);
+  }
+}
@@ -20,19 +20,24 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
-import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefIntStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.Map;
+import java.util.UUID;
+import java.util.function.IntFunction;
+import java.util.function.IntToDoubleFunction;
 
 /**
- * The type Normalization meta layer.
+ * Scales every element by the inverse root mean square of the whole batch.
  */
 @SuppressWarnings("serial")
-public class NormalizationMetaLayer extends PipelineNetwork {
+public class NormalizationMetaLayer extends MomentMetaLayerBase {
 
   @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(NormalizationMetaLayer.class);
@@ -41,14 +46,7 @@ public class NormalizationMetaLayer extends PipelineNetwork {
    * Instantiates a new Normalization meta layer.
    */
   public NormalizationMetaLayer() {
-    super(1);
-    RefUtil.freeRef(add(new SqActivationLayer()));
-    RefUtil.freeRef(add(new AvgReducerLayer()));
-    RefUtil.freeRef(add(new AvgMetaLayer()));
-    NthPowerActivationLayer nthPowerActivationLayer = new NthPowerActivationLayer();
-    nthPowerActivationLayer.setPower(-0.5);
-    RefUtil.freeRef(add(nthPowerActivationLayer));
-    RefUtil.freeRef(add(new ProductInputsLayer(), getHead(), getInput(0)));
+    super();
   }
 
   /**
@@ -58,7 +56,7 @@ public class NormalizationMetaLayer extends PipelineNetwork {
    * @param rs   the rs
    */
   protected NormalizationMetaLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
-    super(json, rs);
+    super(json);
   }
 
   /**
@@ -86,4 +84,109 @@ public class NormalizationMetaLayer extends PipelineNetwork {
     return (NormalizationMetaLayer) super.addRef();
   }
 
+  @Nonnull
+  @Override
+  protected Result eval(@Nonnull final Result input, final double mean, final double variance, final long count,
+                        final boolean active) {
+    // The mean square is the variance plus the squared mean
+    final double scale = 1 / Math.sqrt(variance + mean * mean);
+    TensorList inputData = input.getData();
+    TensorArray data = new TensorArray(RefIntStream.range(0, inputData.length()).parallel()
+        .mapToObj(RefUtil.wrapInterface((IntFunction<Tensor>) i -> {
+          Tensor tensor = inputData.get(i);
+          final double[] x = tensor.getData();
+          Tensor output = new Tensor(tensor.getDimensions());
+          tensor.freeRef();
+          final double[] y = output.getData();
+          for (int j = 0; j < x.length; j++) {
+            y[j] = x[j] * scale;
+          }
+          return output;
+        }, inputData.addRef())).toArray(Tensor[]::new));
+    boolean alive = input.isAlive();
+    Result.Accumulator accumulator = new Accumulator(inputData, scale, active ? count : 0, input.getAccumulator(),
+        alive);
+    input.freeRef();
+    return new Result(data, accumulator, alive);
+  }
+
+  private static class Accumulator extends Result.Accumulator {
+
+    private final TensorList inputData;
+    private final double scale;
+    private final long count;
+    private Result.Accumulator accumulator;
+    private boolean alive;
+
+    /**
+     * Instantiates a new Accumulator.
+     *
+     * @param inputData   the input data
+     * @param scale       the scale
+     * @param count       the number of elements reduced, or zero when the scale is fixed
+     * @param accumulator the accumulator
+     * @param alive       the alive
+     */
+    public Accumulator(TensorList inputData, double scale, long count, Result.Accumulator accumulator,
+                       boolean alive) {
+      this.inputData = inputData;
+      this.scale = scale;
+      this.count = count;
+      this.accumulator = accumulator;
+      this.alive = alive;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      if (alive) {
+        final int length = inputData.length();
+        // dy/dx = s * delta - (s^3 / n) * x * sum(delta . x), where s = 1 / rms
+        final double correction;
+        if (0 == count) {
+          correction = 0;
+        } else {
+          correction = scale * scale * scale / count * RefIntStream.range(0, length).parallel()
+              .mapToDouble(RefUtil.wrapInterface((IntToDoubleFunction) i -> {
+                Tensor x = inputData.get(i);
+                Tensor d = delta.get(i);
+                final double[] xData = x.getData();
+                final double[] dData = d.getData();
+                double dot = 0;
+                for (int j = 0; j < xData.length; j++) {
+                  dot += xData[j] * dData[j];
+                }
+                x.freeRef();
+                d.freeRef();
+                return dot;
+              }, inputData.addRef(), delta.addRef())).sum();
+        }
+        TensorArray passback = new TensorArray(RefIntStream.range(0, length).parallel()
+            .mapToObj(RefUtil.wrapInterface((IntFunction<Tensor>) i -> {
+              Tensor x = inputData.get(i);
+              Tensor d = delta.get(i);
+              final double[] xData = x.getData();
+              final double[] dData = d.getData();
+              Tensor gradient = new Tensor(x.getDimensions());
+              final double[] g = gradient.getData();
+              for (int j = 0; j < g.length; j++) {
+                g[j] = scale * dData[j] - correction * xData[j];
+              }
+              x.freeRef();
+              d.freeRef();
+              return gradient;
+            }, inputData.addRef(), delta.addRef())).toArray(Tensor[]::new));
+        this.accumulator.accept(buffer == null ? null : buffer.addRef(), passback);
+      }
+      delta.freeRef();
+      if (null != buffer)
+        buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      inputData.freeRef();
+      accumulator.freeRef();
+    }
+  }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+
+import javax.annotation.Nonnull;
+import java.util.function.IntConsumer;
+
+/**
+ * Helpers for the packed upper-triangular layout used by {@link CrossProductLayer} and
+ * {@link CrossDifferenceLayer}, where the pairs (x, y) with x &lt; y are stored row by row. Work is
+ * split into blocks of rows (or columns) for every item of a batch, so that wide inputs are
+ * processed in parallel even when the batch is small.
+ */
+public final class PackedTriangle {
+
+  /**
+   * The number of rows or columns handled by one task.
+   */
+  public static final int BLOCK_SIZE = 64;
+
+  private PackedTriangle() {
+  }
+
+  /**
+   * Gets the packed size for an input dimension.
+   *
+   * @param inputDim the input dim
+   * @return the output dim
+   */
+  public static int outputDim(final int inputDim) {
+    return (inputDim * inputDim - inputDim) / 2;
+  }
+
+  /**
+   * Gets the input dimension for a packed size.
+   *
+   * @param outputDim the output dim
+   * @return the input dim
+   */
+  public static int inputDim(final int outputDim) {
+    return (1 + (int) Math.sqrt(1 + 8 * outputDim)) / 2;
+  }
+
+  /**
+   * Gets the offset of row x, such that pair (x, y) is stored at rowOffset(x, n) + y.
+   *
+   * @param x the row
+   * @param n the input dim
+   * @return the offset
+   */
+  public static int rowOffset(final int x, final int n) {
+    return n * (n - 1) / 2 - (n - x) * (n - x - 1) / 2 - x - 1;
+  }
+
+  /**
+   * Copies the data of every item out of a batch.
+   *
+   * @param data the data
+   * @return the arrays
+   */
+  @Nonnull
+  public static double[][] toArrays(@Nonnull final TensorList data) {
+    final double[][] arrays = new double[data.length()][];
+    RefIntStream.range(0, arrays.length).parallel().forEach(RefUtil.wrapInterface((IntConsumer) i -> {
+      Tensor tensor = data.get(i);
+      arrays[i] = tensor.getData();
+      tensor.freeRef();
+    }, data));
+    return arrays;
+  }
+
+  /**
+   * Runs a kernel over every block of every item in parallel, writing into freshly allocated outputs.
+   *
+   * @param items     the items
+   * @param blockDim  the dimension split into blocks
+   * @param outputDim the output dim
+   * @param kernel    the kernel
+   * @return the outputs
+   */
+  @Nonnull
+  public static TensorArray run(final int items, final int blockDim, final int outputDim,
+                                @Nonnull final BlockKernel kernel) {
+    final double[][] outputs = new double[items][];
+    for (int i = 0; i < items; i++) {
+      outputs[i] = new double[outputDim];
+    }
+    final int blocks = Math.max(1, (blockDim + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    RefIntStream.range(0, items * blocks).parallel().forEach(task -> {
+      final int item = task / blocks;
+      final int start = task % blocks * BLOCK_SIZE;
+      kernel.apply(item, outputs[item], start, Math.min(blockDim, start + BLOCK_SIZE));
+    });
+    final Tensor[] tensors = new Tensor[items];
+    for (int i = 0; i < items; i++) {
+      tensors[i] = new Tensor(outputs[i], outputDim);
+    }
+    return new TensorArray(tensors);
+  }
+
+  /**
+   * A kernel filling one block of one item's output.
+   */
+  public interface BlockKernel {
+    /**
+     * Apply.
+     *
+     * @param item   the item
+     * @param output the output
+     * @param start  the first row or column of the block
+     * @param end    the end of the block, exclusive
+     */
+    void apply(int item, @Nonnull double[] output, int start, int end);
+  }
+}
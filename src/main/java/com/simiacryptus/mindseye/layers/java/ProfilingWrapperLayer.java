@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.layers.WrapperLayer;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.util.MonitoredItem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the latency and allocations of the wrapped layer's forward pass and accumulator into a
+ * {@link LayerProfiler}. Backward times are exclusive: the time the accumulator spends in the
+ * accumulators of the layer's inputs is measured separately and subtracted. Use {@link LayerProfiler#addTo(com.simiacryptus.mindseye.network.DAGNetwork)}
+ * to wrap every node of a network. The profiler is not serialized.
+ */
+@SuppressWarnings("serial")
+public class ProfilingWrapperLayer extends WrapperLayer implements MonitoredItem {
+
+  @Nonnull
+  private transient LayerProfiler profiler;
+
+  /**
+   * Instantiates a new Profiling wrapper layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   */
+  protected ProfilingWrapperLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    super(json, rs);
+    this.profiler = new LayerProfiler();
+  }
+
+  /**
+   * Instantiates a new Profiling wrapper layer with its own profiler.
+   *
+   * @param inner the inner
+   */
+  public ProfilingWrapperLayer(final Layer inner) {
+    this(inner, new LayerProfiler());
+  }
+
+  /**
+   * Instantiates a new Profiling wrapper layer.
+   *
+   * @param inner    the inner
+   * @param profiler the profiler
+   */
+  public ProfilingWrapperLayer(final Layer inner, @Nonnull final LayerProfiler profiler) {
+    super(inner);
+    this.profiler = profiler;
+  }
+
+  /**
+   * Gets profiler.
+   *
+   * @return the profiler
+   */
+  @Nonnull
+  public LayerProfiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * Sets profiler.
+   *
+   * @param profiler the profiler
+   */
+  public void setProfiler(@Nonnull LayerProfiler profiler) {
+    this.profiler = profiler;
+  }
+
+  @Override
+  public RefList<Layer> getChildren() {
+    return super.getChildren();
+  }
+
+  @Nonnull
+  @Override
+  public Map<CharSequence, Object> getMetrics() {
+    return profiler.getMetrics();
+  }
+
+  /**
+   * From json profiling wrapper layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   * @return the profiling wrapper layer
+   */
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static ProfilingWrapperLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new ProfilingWrapperLayer(json, rs);
+  }
+
+  @Nullable
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    Layer inner = getInner();
+    assert inner != null;
+    final LayerProfiler.Stats stats = profiler.get(inner);
+    // Inputs of a live result are what its accumulators typically hold on to
+    long inputBytes = 0;
+    for (Result input : inObj) {
+      TensorList data = input.getData();
+      inputBytes += (long) data.length() * Tensor.length(data.getDimensions()) * Double.BYTES;
+      data.freeRef();
+    }
+    final Upstream upstream = new Upstream();
+    final Result[] inputs = new Result[inObj.length];
+    for (int i = 0; i < inObj.length; i++) {
+      inputs[i] = new Result(inObj[i].getData(), new InputAccumulator(inObj[i].getAccumulator(), upstream),
+          inObj[i].isAlive());
+    }
+    RefUtil.freeRef(inObj);
+    final long[] start = LayerProfiler.start();
+    Result result = inner.eval(inputs);
+    inner.freeRef();
+    TensorList data = result.getData();
+    final int outputs = data.length();
+    final boolean alive = result.isAlive();
+    stats.forward(start, outputs, (long) outputs * Tensor.length(data.getDimensions()) * Double.BYTES,
+        alive ? inputBytes : 0);
+    Result.Accumulator accumulator = new Accumulator(result.getAccumulator(), stats, upstream);
+    result.freeRef();
+    return new Result(data, accumulator, alive);
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ProfilingWrapperLayer addRef() {
+    return (ProfilingWrapperLayer) super.addRef();
+  }
+
+  /**
+   * Totals the time spent in the accumulators of one evaluation's inputs. CPU time and allocations
+   * only count when measured on the thread running the wrapped accumulator, since only that thread's
+   * are included in its own measurement.
+   */
+  private static final class Upstream {
+    private final LongAdder wallNanos = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    @Nullable
+    private volatile Thread thread;
+
+    /**
+     * Records an upstream call started at the given sample.
+     *
+     * @param start the start
+     */
+    void add(@Nonnull long[] start) {
+      final long[] elapsed = LayerProfiler.elapsed(start);
+      wallNanos.add(elapsed[0]);
+      if (Thread.currentThread() == thread) {
+        cpuNanos.add(elapsed[1]);
+        allocatedBytes.add(elapsed[2]);
+      }
+    }
+
+    /**
+     * Gets the current totals.
+     *
+     * @return the totals
+     */
+    @Nonnull
+    long[] totals() {
+      return new long[]{wallNanos.sum(), cpuNanos.sum(), allocatedBytes.sum()};
+    }
+  }
+
+  private static class InputAccumulator extends Result.Accumulator {
+
+    private final Result.Accumulator accumulator;
+    private final Upstream upstream;
+
+    /**
+     * Instantiates a new Input accumulator.
+     *
+     * @param accumulator the accumulator
+     * @param upstream    the upstream
+     */
+    public InputAccumulator(Result.Accumulator accumulator, Upstream upstream) {
+      this.accumulator = accumulator;
+      this.upstream = upstream;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      final long[] start = LayerProfiler.start();
+      this.accumulator.accept(buffer, delta);
+      upstream.add(start);
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      accumulator.freeRef();
+    }
+  }
+
+  private static class Accumulator extends Result.Accumulator {
+
+    private final Result.Accumulator accumulator;
+    private final LayerProfiler.Stats stats;
+    private final Upstream upstream;
+
+    /**
+     * Instantiates a new Accumulator.
+     *
+     * @param accumulator the accumulator
+     * @param stats       the stats
+     * @param upstream    the upstream
+     */
+    public Accumulator(Result.Accumulator accumulator, LayerProfiler.Stats stats, Upstream upstream) {
+      this.accumulator = accumulator;
+      this.stats = stats;
+      this.upstream = upstream;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      upstream.thread = Thread.currentThread();
+      final long[] before = upstream.totals();
+      final long[] start = LayerProfiler.start();
+      this.accumulator.accept(buffer, delta);
+      final long[] after = upstream.totals();
+      stats.backward(start, new long[]{after[0] - before[0], after[1] - before[1], after[2] - before[2]});
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      accumulator.freeRef();
+    }
+  }
+}
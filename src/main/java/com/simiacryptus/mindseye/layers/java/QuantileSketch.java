@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A mergeable quantile sketch with bounded relative error, in the style of DDSketch. Magnitudes are
+ * counted in logarithmic buckets whose width is set by the relative accuracy, so any quantile is
+ * reported within that relative error of a true sample, using memory proportional to the log of the
+ * dynamic range. Sketches built on separate threads can be merged exactly. Instances are not
+ * thread-safe.
+ */
+public class QuantileSketch {
+
+  private static final double MIN_INDEXABLE = 1e-300;
+  private static final double[] QUANTILES = {0.05, 0.25, 0.5, 0.75, 0.95};
+
+  private final double relativeAccuracy;
+  private final double gamma;
+  private final double logGamma;
+  private final BucketStore positive = new BucketStore();
+  private final BucketStore negative = new BucketStore();
+  private long zeros = 0;
+  private long nonFinite = 0;
+  private long count = 0;
+  private double sum = 0;
+  // The spread is kept as Welford moments, since raw sums of squares cancel when the mean is large
+  private final BatchReductions.Moments moments = new BatchReductions.Moments();
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Instantiates a new Quantile sketch with 1% relative accuracy.
+   */
+  public QuantileSketch() {
+    this(0.01);
+  }
+
+  /**
+   * Instantiates a new Quantile sketch.
+   *
+   * @param relativeAccuracy the relative accuracy
+   */
+  public QuantileSketch(final double relativeAccuracy) {
+    if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+      throw new IllegalArgumentException("relativeAccuracy: " + relativeAccuracy);
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    this.logGamma = Math.log(gamma);
+  }
+
+  /**
+   * Gets relative accuracy.
+   *
+   * @return the relative accuracy
+   */
+  public double getRelativeAccuracy() {
+    return relativeAccuracy;
+  }
+
+  /**
+   * Gets count.
+   *
+   * @return the count
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Gets the number of NaN and infinite values added, which are counted but not sketched.
+   *
+   * @return the non finite count
+   */
+  public long getNonFinite() {
+    return nonFinite;
+  }
+
+  /**
+   * Adds a value. NaN and infinite values only increment {@link #getNonFinite()}.
+   *
+   * @param value the value
+   */
+  public void add(final double value) {
+    if (!Double.isFinite(value)) {
+      nonFinite++;
+      return;
+    }
+    count++;
+    sum += value;
+    moments.add(value);
+    if (value < min) min = value;
+    if (value > max) max = value;
+    if (value > MIN_INDEXABLE) {
+      positive.add(index(value), 1);
+    } else if (value < -MIN_INDEXABLE) {
+      negative.add(index(-value), 1);
+    } else {
+      zeros++;
+    }
+  }
+
+  /**
+   * Adds every stride-th value of an array, starting at an offset.
+   *
+   * @param data   the data
+   * @param offset the offset
+   * @param stride the stride
+   */
+  public void add(@Nonnull final double[] data, final int offset, final int stride) {
+    for (int i = offset; i < data.length; i += stride) {
+      add(data[i]);
+    }
+  }
+
+  /**
+   * Folds another sketch with the same accuracy into this one.
+   *
+   * @param other the other
+   */
+  public void merge(@Nonnull final QuantileSketch other) {
+    if (other.gamma != gamma) throw new IllegalArgumentException("Incompatible relative accuracy");
+    nonFinite += other.nonFinite;
+    if (0 == other.count) return;
+    positive.merge(other.positive);
+    negative.merge(other.negative);
+    zeros += other.zeros;
+    count += other.count;
+    sum += other.sum;
+    moments.merge(other.moments);
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Gets the value at a quantile, within the relative accuracy.
+   *
+   * @param quantile the quantile
+   * @return the value, or NaN if the sketch is empty
+   */
+  public double getQuantile(final double quantile) {
+    if (0 == count) return Double.NaN;
+    final long rank = (long) (quantile * (count - 1));
+    long seen = 0;
+    // Negative magnitudes are visited from the largest down, then zeros, then positives upward
+    for (int i = negative.counts.length - 1; i >= 0; i--) {
+      seen += negative.counts[i];
+      if (seen > rank) return clamp(-value(i + negative.offset));
+    }
+    seen += zeros;
+    if (seen > rank) return 0;
+    for (int i = 0; i < positive.counts.length; i++) {
+      seen += positive.counts[i];
+      if (seen > rank) return clamp(value(i + positive.offset));
+    }
+    return max;
+  }
+
+  /**
+   * Gets metrics.
+   *
+   * @return the metrics
+   */
+  @Nonnull
+  public Map<CharSequence, Object> getMetrics() {
+    @Nonnull final HashMap<CharSequence, Object> map = new HashMap<>();
+    map.put("count", count);
+    map.put("nonFinite", nonFinite);
+    if (0 < count) {
+      map.put("sum", sum);
+      map.put("mean", moments.getMean());
+      map.put("stdDev", Math.sqrt(moments.getVariance()));
+      map.put("min", min);
+      map.put("max", max);
+      map.put("zeros", zeros);
+      for (double quantile : QUANTILES) {
+        map.put("tp" + Math.round(quantile * 100), getQuantile(quantile));
+      }
+    }
+    return map;
+  }
+
+  private int index(final double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) / logGamma);
+  }
+
+  private double value(final int index) {
+    // The midpoint, in relative terms, of the bucket (gamma^(index-1), gamma^index]
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  private double clamp(final double value) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  private static final class BucketStore {
+    private long[] counts = new long[0];
+    private int offset = 0;
+
+    private void add(final int index, final long n) {
+      if (0 == counts.length) {
+        counts = new long[16];
+        offset = index - 8;
+      } else if (index < offset || index >= offset + counts.length) {
+        final int low = Math.min(offset, index);
+        final int high = Math.max(offset + counts.length, index + 1);
+        // Grow with headroom on both sides so a drifting range does not resize every time
+        final int size = Math.max(2 * counts.length, high - low + 8);
+        final int newOffset = low - (size - (high - low)) / 2;
+        final long[] grown = new long[size];
+        RefSystem.arraycopy(counts, 0, grown, offset - newOffset, counts.length);
+        counts = grown;
+        offset = newOffset;
+      }
+      counts[index - offset] += n;
+    }
+
+    private void merge(@Nonnull final BucketStore other) {
+      for (int i = 0; i < other.counts.length; i++) {
+        if (0 != other.counts[i]) add(i + other.offset, other.counts[i]);
+      }
+    }
+  }
+}
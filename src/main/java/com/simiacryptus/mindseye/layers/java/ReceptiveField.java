@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.layers.WrapperLayer;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.network.DAGNode;
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The receptive field of an image network, derived statically from the shapes of its layers.
+ * Output pixel u along an axis depends on the input interval [scale * u + min, scale * (u + 1) + max),
+ * so a tile of the input needs a halo of max(-min, max) pixels on each side for its output to match
+ * the untiled result.
+ * <p>
+ * Pooling kernels, {@link ImgReshapeLayer}, {@link UnpoolingLayer}, {@link ImgZeroPaddingLayer},
+ * {@link ImgCropLayer}, {@link ImgTileSelectLayer}, {@link AffineImgViewLayer} offsets, rescaled and
+ * wrapped subnetworks (including nested tile layers) and DAG networks are analyzed; rotated or
+ * index-mapped views are assumed to see the whole image. Activations, biases, band and pixel-wise
+ * layers and element-wise combinations are pointwise in x and y; any other layer is assumed to see
+ * the whole image, so an unrecognized layer can only make a halo larger.
+ */
+public class ReceptiveField {
+
+  private final double scaleX;
+  private final double scaleY;
+  private final double minX;
+  private final double maxX;
+  private final double minY;
+  private final double maxY;
+  private final int width;
+  private final int height;
+
+  private ReceptiveField(double scaleX, double scaleY, double minX, double maxX, double minY, double maxY, int width,
+                         int height) {
+    this.scaleX = scaleX;
+    this.scaleY = scaleY;
+    this.minX = minX;
+    this.maxX = maxX;
+    this.minY = minY;
+    this.maxY = maxY;
+    this.width = width;
+    this.height = height;
+  }
+
+  /**
+   * Analyzes a layer applied to images of the given dimensions.
+   *
+   * @param layer     the layer
+   * @param inputDims the input dims
+   * @return the receptive field
+   */
+  @Nonnull
+  public static ReceptiveField analyze(@Nonnull final Layer layer, @Nonnull final int[] inputDims) {
+    return identity(inputDims[0], inputDims[1]).then(layer);
+  }
+
+  @Nonnull
+  private static ReceptiveField identity(int width, int height) {
+    return new ReceptiveField(1, 1, 0, 0, 0, 0, width, height);
+  }
+
+  /**
+   * Gets the input pixels per output pixel along x.
+   *
+   * @return the scale x
+   */
+  public double getScaleX() {
+    return scaleX;
+  }
+
+  /**
+   * Gets the input pixels per output pixel along y.
+   *
+   * @return the scale y
+   */
+  public double getScaleY() {
+    return scaleY;
+  }
+
+  /**
+   * Gets min x.
+   *
+   * @return the min x
+   */
+  public double getMinX() {
+    return minX;
+  }
+
+  /**
+   * Gets max x.
+   *
+   * @return the max x
+   */
+  public double getMaxX() {
+    return maxX;
+  }
+
+  /**
+   * Gets min y.
+   *
+   * @return the min y
+   */
+  public double getMinY() {
+    return minY;
+  }
+
+  /**
+   * Gets max y.
+   *
+   * @return the max y
+   */
+  public double getMaxY() {
+    return maxY;
+  }
+
+  /**
+   * Gets the output width.
+   *
+   * @return the width
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Gets the output height.
+   *
+   * @return the height
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Gets the input columns needed on each side of a tile.
+   *
+   * @return the halo x
+   */
+  public int getHaloX() {
+    return (int) Math.max(0, Math.max(Math.ceil(-minX), Math.ceil(maxX)));
+  }
+
+  /**
+   * Gets the input rows needed on each side of a tile.
+   *
+   * @return the halo y
+   */
+  public int getHaloY() {
+    return (int) Math.max(0, Math.max(Math.ceil(-minY), Math.ceil(maxY)));
+  }
+
+  @Nonnull
+  @Override
+  public String toString() {
+    return RefString.format("ReceptiveField{scale=%s x %s, x=[%s, %s), y=[%s, %s), output=%s x %s}",
+        scaleX, scaleY, minX, maxX, minY, maxY, width, height);
+  }
+
+  @Nonnull
+  private ReceptiveField then(double scaleX, double scaleY, double minX, double maxX, double minY, double maxY,
+                              int width, int height) {
+    return new ReceptiveField(this.scaleX * scaleX, this.scaleY * scaleY,
+        this.minX + this.scaleX * minX, this.maxX + this.scaleX * maxX,
+        this.minY + this.scaleY * minY, this.maxY + this.scaleY * maxY,
+        width, height);
+  }
+
+  @Nonnull
+  private ReceptiveField shift(int offsetX, int offsetY, int width, int height) {
+    return then(1, 1, offsetX, offsetX, offsetY, offsetY, width, height);
+  }
+
+  @Nonnull
+  private ReceptiveField whole(int width, int height) {
+    return then(1, 1, -this.width, this.width, -this.height, this.height, width, height);
+  }
+
+  @Nonnull
+  private ReceptiveField union(@Nonnull ReceptiveField other) {
+    return new ReceptiveField(Math.max(scaleX, other.scaleX), Math.max(scaleY, other.scaleY),
+        Math.min(minX, other.minX), Math.max(maxX, other.maxX),
+        Math.min(minY, other.minY), Math.max(maxY, other.maxY),
+        width, height);
+  }
+
+  @Nonnull
+  private ReceptiveField then(@Nullable final Layer layer) {
+    if (null == layer) return this;
+    try {
+      if (layer instanceof DAGNetwork) {
+        DAGNode head = ((DAGNetwork) layer).getHead();
+        return at(head, new HashMap<>());
+      } else if (layer instanceof RescaledSubnetLayer) {
+        int scale = ((RescaledSubnetLayer) layer).getScale();
+        ReceptiveField inner = then(scale, scale, 0, 0, 0, 0, width / scale, height / scale)
+            .then(((RescaledSubnetLayer) layer).getSubnetwork());
+        return inner.then(1.0 / scale, 1.0 / scale, 0, 0, 0, 0, inner.width * scale, inner.height * scale);
+      } else if (layer instanceof WrapperLayer) {
+        return then(((WrapperLayer) layer).getInner());
+      } else if (layer instanceof AvgPoolingLayer) {
+        int[] kernel = ((AvgPoolingLayer) layer).getKernelDims();
+        return then(kernel[0], kernel[1], 0, 0, 0, 0, width / kernel[0], height / kernel[1]);
+      } else if (layer instanceof MaxPoolingLayer) {
+        int[] kernel = ((MaxPoolingLayer) layer).getKernelDims();
+        return then(kernel[0], kernel[1], 0, 0, 0, 0,
+            (width + kernel[0] - 1) / kernel[0], (height + kernel[1] - 1) / kernel[1]);
+      } else if (layer instanceof ImgReshapeLayer) {
+        ImgReshapeLayer reshapeLayer = (ImgReshapeLayer) layer;
+        int kx = reshapeLayer.getKernelSizeX();
+        int ky = reshapeLayer.getKernelSizeY();
+        if (reshapeLayer.isExpand()) {
+          return then(1.0 / kx, 1.0 / ky, 0, 0, 0, 0, width * kx, height * ky);
+        } else {
+          return then(kx, ky, 0, 0, 0, 0, width / kx, height / ky);
+        }
+      } else if (layer instanceof UnpoolingLayer) {
+        int sx = ((UnpoolingLayer) layer).getSizeX();
+        int sy = ((UnpoolingLayer) layer).getSizeY();
+        return then(1.0 / sx, 1.0 / sy, 0, 0, 0, 0, width * sx, height * sy);
+      } else if (layer instanceof ImgZeroPaddingLayer) {
+        int toWidth = width + 2 * ((ImgZeroPaddingLayer) layer).getSizeX();
+        int toHeight = height + 2 * ((ImgZeroPaddingLayer) layer).getSizeY();
+        return shift(ImgCropLayer.getPadding(width, toWidth), ImgCropLayer.getPadding(height, toHeight), toWidth, toHeight);
+      } else if (layer instanceof ImgCropLayer) {
+        int toWidth = ((ImgCropLayer) layer).getSizeX();
+        int toHeight = ((ImgCropLayer) layer).getSizeY();
+        return shift(ImgCropLayer.getPadding(width, toWidth), ImgCropLayer.getPadding(height, toHeight), toWidth, toHeight);
+      } else if (layer instanceof ImgTileSelectLayer) {
+        ImgTileSelectLayer selectLayer = (ImgTileSelectLayer) layer;
+        int[] viewDims = selectLayer.getViewDimensions(new int[]{width, height, 1},
+            new int[]{selectLayer.getSizeX(), selectLayer.getSizeY(), 1},
+            new int[]{selectLayer.getPositionX(), selectLayer.getPositionY(), 0});
+        if (selectLayer.isToroidal()) return whole(viewDims[0], viewDims[1]);
+        return shift(selectLayer.getPositionX(), selectLayer.getPositionY(), viewDims[0], viewDims[1]);
+      } else if (layer instanceof AffineImgViewLayer) {
+        AffineImgViewLayer viewLayer = (AffineImgViewLayer) layer;
+        int[] viewDims = viewLayer.getViewDimensions(new int[]{width, height, 1});
+        if (0 != viewLayer.getRotationRadians()) return whole(viewDims[0], viewDims[1]);
+        // Pixels outside the view window map to themselves, so both zero and the offset are reachable
+        int offsetX = viewLayer.getOffsetX();
+        int offsetY = viewLayer.getOffsetY();
+        return then(1, 1, Math.min(0, offsetX), Math.max(0, offsetX), Math.min(0, offsetY), Math.max(0, offsetY),
+            viewDims[0], viewDims[1]);
+      } else if (layer instanceof ImgViewLayerBase) {
+        int[] viewDims = ((ImgViewLayerBase) layer).getViewDimensions(new int[]{width, height, 1});
+        return whole(viewDims[0], viewDims[1]);
+      } else if (isPointwise(layer)) {
+        return this;
+      } else {
+        return whole(width, height);
+      }
+    } finally {
+      layer.freeRef();
+    }
+  }
+
+  private static boolean isPointwise(@Nonnull final Layer layer) {
+    return layer instanceof SimpleActivationLayer || layer instanceof ReLuActivationLayer
+        || layer instanceof LinearActivationLayer || layer instanceof HyperbolicActivationLayer
+        || layer instanceof NthPowerActivationLayer || layer instanceof BiasLayer
+        || layer instanceof ImgBandBiasLayer || layer instanceof ImgBandScaleLayer
+        || layer instanceof ImgBandSelectLayer || layer instanceof ImgConcatLayer
+        || layer instanceof ImgPixelSoftmaxLayer || layer instanceof ImgPixelGateLayer
+        || layer instanceof ImgPixelSumLayer || layer instanceof ProductInputsLayer
+        || layer instanceof SumInputsLayer || layer instanceof DropoutNoiseLayer
+        || layer instanceof GaussianNoiseLayer || layer instanceof BinaryNoiseLayer
+        || layer instanceof MonitoringSynapse || layer instanceof AssertDimensionsLayer;
+  }
+
+  @Nonnull
+  private ReceptiveField at(@Nonnull final DAGNode node, @Nonnull final Map<UUID, ReceptiveField> visited) {
+    UUID id = node.getId();
+    ReceptiveField cached = visited.get(id);
+    if (null != cached) {
+      node.freeRef();
+      return cached;
+    }
+    DAGNode[] inputs = node.getInputs();
+    Layer layer = node.getLayer();
+    node.freeRef();
+    ReceptiveField input = null;
+    for (DAGNode inputNode : inputs) {
+      ReceptiveField field = at(inputNode, visited);
+      input = null == input ? field : input.union(field);
+    }
+    ReceptiveField result = (null == input ? this : input).then(layer);
+    visited.put(id, result);
+    return result;
+  }
+}
@@ -20,6 +20,7 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.layers.WrapperLayer;
 import com.simiacryptus.mindseye.network.DAGNode;
@@ -27,13 +28,17 @@ import com.simiacryptus.mindseye.network.InnerNode;
 import com.simiacryptus.mindseye.network.PipelineNetwork;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrayList;
+import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefSystem;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
 import java.util.function.IntFunction;
 
 /**
@@ -45,6 +50,8 @@ public class RescaledSubnetLayer extends LayerBase {
   private final int scale;
   @Nullable
   private final Layer subnetwork;
+  private final transient Map<String, PipelineNetwork> networks = new HashMap<>();
+  private boolean batched = false;
 
   /**
    * Instantiates a new Rescaled subnet layer.
@@ -68,6 +75,46 @@ public class RescaledSubnetLayer extends LayerBase {
     super(json);
     scale = json.getAsJsonPrimitive("scale").getAsInt();
     this.subnetwork = Layer.fromJson(json.getAsJsonObject("inner"), rs);
+    JsonPrimitive batched = json.getAsJsonPrimitive("batched");
+    this.batched = null != batched && batched.getAsBoolean();
+  }
+
+  /**
+   * Is batched boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isBatched() {
+    return batched;
+  }
+
+  /**
+   * Sets whether the scale² subbands are stacked along the batch and evaluated by the subnetwork in one call,
+   * rather than by one branch each. Only suitable for subnetworks that treat batch items independently.
+   *
+   * @param batched the batched
+   */
+  public void setBatched(boolean batched) {
+    this.batched = batched;
+  }
+
+  /**
+   * Gets scale.
+   *
+   * @return the scale
+   */
+  public int getScale() {
+    return scale;
+  }
+
+  /**
+   * Gets subnetwork.
+   *
+   * @return the subnetwork
+   */
+  @Nullable
+  public Layer getSubnetwork() {
+    return subnetwork == null ? null : subnetwork.addRef();
   }
 
   /**
@@ -94,6 +141,10 @@ public class RescaledSubnetLayer extends LayerBase {
     if (1 == scale) {
       assert subnetwork != null;
       return subnetwork.eval(inObj);
+    } else if (batched) {
+      Result input = inObj[0].addRef();
+      RefUtil.freeRef(inObj);
+      return evalBatched(input);
     } else {
       @Nonnull final PipelineNetwork network = getNetwork(inputDims);
       Result result = network.eval(inObj);
@@ -109,6 +160,7 @@ public class RescaledSubnetLayer extends LayerBase {
     json.addProperty("scale", scale);
     assert subnetwork != null;
     json.add("inner", subnetwork.getJson(resources, dataSerializer));
+    json.addProperty("batched", batched);
     return json;
   }
 
@@ -121,6 +173,10 @@ public class RescaledSubnetLayer extends LayerBase {
   public void _free() {
     if (null != subnetwork)
       subnetwork.freeRef();
+    synchronized (networks) {
+      networks.values().forEach(PipelineNetwork::freeRef);
+      networks.clear();
+    }
     super._free();
   }
 
@@ -131,8 +187,97 @@ public class RescaledSubnetLayer extends LayerBase {
     return (RescaledSubnetLayer) super.addRef();
   }
 
+  /**
+   * Splits each item into its scale² subbands of equal band count, ordered subband-major along the batch.
+   *
+   * @param data     the data
+   * @param subbands the subbands
+   * @return the tensor array
+   */
+  @Nonnull
+  private static TensorArray stack(@Nonnull final TensorList data, final int subbands) {
+    final int length = data.length();
+    final int[] dims = data.getDimensions();
+    final int[] subbandDims = {dims[0], dims[1], dims[2] / subbands};
+    final int block = subbandDims[0] * subbandDims[1] * subbandDims[2];
+    final Tensor[] stacked = new Tensor[length * subbands];
+    for (int item = 0; item < length; item++) {
+      Tensor tensor = data.get(item);
+      for (int subband = 0; subband < subbands; subband++) {
+        Tensor tile = new Tensor(subbandDims);
+        RefSystem.arraycopy(tensor.getData(), subband * block, tile.getData(), 0, block);
+        stacked[subband * length + item] = tile;
+      }
+      tensor.freeRef();
+    }
+    data.freeRef();
+    return new TensorArray(stacked);
+  }
+
+  /**
+   * Concatenates the bands of each item's subbands, inverting {@link #stack(TensorList, int)}.
+   *
+   * @param data     the data
+   * @param subbands the subbands
+   * @return the tensor array
+   */
+  @Nonnull
+  private static TensorArray unstack(@Nonnull final TensorList data, final int subbands) {
+    final int length = data.length() / subbands;
+    final int[] dims = data.getDimensions();
+    final int[] itemDims = {dims[0], dims[1], dims[2] * subbands};
+    final int block = dims[0] * dims[1] * dims[2];
+    final Tensor[] unstacked = new Tensor[length];
+    for (int item = 0; item < length; item++) {
+      Tensor tensor = new Tensor(itemDims);
+      for (int subband = 0; subband < subbands; subband++) {
+        Tensor tile = data.get(subband * length + item);
+        RefSystem.arraycopy(tile.getData(), 0, tensor.getData(), subband * block, block);
+        tile.freeRef();
+      }
+      unstacked[item] = tensor;
+    }
+    data.freeRef();
+    return new TensorArray(unstacked);
+  }
+
+  @Nullable
+  private Result evalBatched(@Nonnull final Result input) {
+    assert subnetwork != null;
+    final int subbands = scale * scale;
+    ImgReshapeLayer condenseLayer = new ImgReshapeLayer(scale, scale, false);
+    Result condensed = condenseLayer.eval(input);
+    condenseLayer.freeRef();
+    assert condensed != null;
+    Result stacked = new Result(stack(condensed.getData(), subbands),
+        new SubbandAccumulator(subbands, false, condensed.getAccumulator()), condensed.isAlive());
+    condensed.freeRef();
+    Result inner = subnetwork.eval(stacked);
+    assert inner != null;
+    Result unstacked = new Result(unstack(inner.getData(), subbands),
+        new SubbandAccumulator(subbands, true, inner.getAccumulator()), inner.isAlive());
+    inner.freeRef();
+    ImgReshapeLayer expandLayer = new ImgReshapeLayer(scale, scale, true);
+    Result result = expandLayer.eval(unstacked);
+    expandLayer.freeRef();
+    return result;
+  }
+
   @NotNull
   private PipelineNetwork getNetwork(int[] inputDims) {
+    String key = RefArrays.toString(inputDims);
+    synchronized (networks) {
+      PipelineNetwork network = networks.get(key);
+      if (null == network) {
+        network = newNetwork(inputDims);
+        networks.put(key, network);
+      }
+      return network.addRef();
+    }
+  }
+
+  @NotNull
+  private PipelineNetwork newNetwork(int[] inputDims) {
     int channels = inputDims[2];
     @Nonnull final PipelineNetwork network = new PipelineNetwork();
     @Nullable final DAGNode condensed = network.add(new ImgReshapeLayer(scale, scale, false));
@@ -151,4 +296,34 @@ public class RescaledSubnetLayer extends LayerBase {
     return network;
   }
 
+  private static class SubbandAccumulator extends Result.Accumulator {
+
+    private final int subbands;
+    private final boolean stack;
+    private Result.Accumulator accumulator;
+
+    /**
+     * Instantiates a new Subband accumulator.
+     *
+     * @param subbands    the subbands
+     * @param stack       whether the delta is stacked, rather than unstacked, before being passed on
+     * @param accumulator the accumulator
+     */
+    public SubbandAccumulator(int subbands, boolean stack, Result.Accumulator accumulator) {
+      this.subbands = subbands;
+      this.stack = stack;
+      this.accumulator = accumulator;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      this.accumulator.accept(buffer, stack ? stack(delta, subbands) : unstack(delta, subbands));
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      accumulator.freeRef();
+    }
+  }
 }
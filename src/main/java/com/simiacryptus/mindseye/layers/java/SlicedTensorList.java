@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefStream;
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import java.util.function.IntFunction;
+
+/**
+ * A lazy view of a contiguous slice of each tensor in a parent batch, such as a block of bands
+ * of a concatenated image. Element j of the view reads element offset + j of the parent, or zero
+ * past its end. Nothing is copied until a tensor is requested.
+ */
+public class SlicedTensorList extends ReferenceCountingBase implements TensorList {
+
+  @Nonnull
+  private final TensorList parent;
+  @Nonnull
+  private final int[] dims;
+  private final int offset;
+
+  /**
+   * Instantiates a new Sliced tensor list.
+   *
+   * @param parent the parent
+   * @param offset the offset
+   * @param dims   the dims
+   */
+  public SlicedTensorList(@Nonnull final TensorList parent, final int offset, @Nonnull final int[] dims) {
+    assert offset >= 0;
+    this.parent = parent;
+    this.offset = offset;
+    this.dims = RefArrays.copyOf(dims, dims.length);
+  }
+
+  /**
+   * Concatenates the tensors of each batch item, in order, one block copy per input and in parallel
+   * over items. Inputs past the end of the output dimensions are truncated.
+   *
+   * @param inputs     the inputs
+   * @param outputDims the output dims
+   * @return the tensor array
+   */
+  @Nonnull
+  public static TensorArray concat(@Nonnull final TensorList[] inputs, @Nonnull final int[] outputDims) {
+    final int length = inputs[0].length();
+    return new TensorArray(RefIntStream.range(0, length).parallel()
+        .mapToObj(RefUtil.wrapInterface((IntFunction<Tensor>) item -> {
+          @Nonnull final Tensor output = new Tensor(outputDims);
+          final double[] outputData = output.getData();
+          int pos = 0;
+          for (TensorList input : inputs) {
+            Tensor tensor = input.get(item);
+            final double[] data = tensor.getData();
+            final int run = Math.min(data.length, outputData.length - pos);
+            if (run > 0) RefSystem.arraycopy(data, 0, outputData, pos, run);
+            pos += data.length;
+            tensor.freeRef();
+          }
+          return output;
+        }, inputs)).toArray(Tensor[]::new));
+  }
+
+  @Nonnull
+  @Override
+  public int[] getDimensions() {
+    return RefArrays.copyOf(dims, dims.length);
+  }
+
+  /**
+   * Gets offset.
+   *
+   * @return the offset
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  @Nonnull
+  @Override
+  public Tensor get(final int i) {
+    Tensor source = parent.get(i);
+    Tensor tensor = new Tensor(dims);
+    final double[] sourceData = source.getData();
+    final int run = Math.min(tensor.length(), sourceData.length - offset);
+    if (run > 0) RefSystem.arraycopy(sourceData, offset, tensor.getData(), 0, run);
+    source.freeRef();
+    return tensor;
+  }
+
+  @Override
+  public int length() {
+    return parent.length();
+  }
+
+  @Nonnull
+  @Override
+  public RefStream<Tensor> stream() {
+    return RefIntStream.range(0, length()).mapToObj(RefUtil.wrapInterface((IntFunction<Tensor>) this::get, addRef()));
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+    parent.freeRef();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  SlicedTensorList addRef() {
+    return (SlicedTensorList) super.addRef();
+  }
+}
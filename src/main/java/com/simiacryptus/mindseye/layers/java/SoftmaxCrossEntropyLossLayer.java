@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefIntStream;
+import com.simiacryptus.ref.wrappers.RefList;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+/**
+ * The cross entropy of the softmax of its first input (logits) against its second input (target
+ * probabilities), equivalent to a {@link SoftmaxLayer} followed by an {@link EntropyLossLayer}.
+ * The loss is computed by log-sum-exp in one pass, and the gradient of the logits is
+ * softmax * sum(target) - target, so no probabilities are materialized or clamped.
+ */
+@SuppressWarnings("serial")
+public class SoftmaxCrossEntropyLossLayer extends LayerBase {
+
+  @SuppressWarnings("unused")
+  private static final Logger log = LoggerFactory.getLogger(SoftmaxCrossEntropyLossLayer.class);
+
+  /**
+   * Instantiates a new Softmax cross entropy loss layer.
+   */
+  public SoftmaxCrossEntropyLossLayer() {
+  }
+
+  /**
+   * Instantiates a new Softmax cross entropy loss layer.
+   *
+   * @param id the id
+   */
+  protected SoftmaxCrossEntropyLossLayer(@Nonnull final JsonObject id) {
+    super(id);
+  }
+
+  /**
+   * From json softmax cross entropy loss layer.
+   *
+   * @param json the json
+   * @param rs   the rs
+   * @return the softmax cross entropy loss layer
+   */
+  @Nonnull
+  @SuppressWarnings("unused")
+  public static SoftmaxCrossEntropyLossLayer fromJson(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
+    return new SoftmaxCrossEntropyLossLayer(json);
+  }
+
+  @Nonnull
+  @Override
+  public Result eval(@Nonnull final Result... inObj) {
+    assert 2 == inObj.length;
+    final TensorList logits = inObj[0].getData();
+    final TensorList targets = inObj[1].getData();
+    final int length = logits.length();
+    if (length != targets.length()) {
+      logits.freeRef();
+      targets.freeRef();
+      RefUtil.freeRef(inObj);
+      throw new IllegalArgumentException(length + " != " + targets.length());
+    }
+    @Nonnull final double[] logSumExp = new double[length];
+    @Nonnull final double[] targetSum = new double[length];
+    TensorArray data = fwd(logits.addRef(), targets.addRef(), logSumExp, targetSum);
+    final boolean alive0 = inObj[0].isAlive();
+    final boolean alive1 = inObj[1].isAlive();
+    Accumulator accumulator = new Accumulator(logits, targets, logSumExp, targetSum,
+        inObj[0].getAccumulator(), alive0, inObj[1].getAccumulator(), alive1);
+    RefUtil.freeRef(inObj);
+    return new Result(data, accumulator, alive0 || alive1);
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
+    return super.getJsonStub();
+  }
+
+  @Nonnull
+  @Override
+  public RefList<double[]> state() {
+    return RefArrays.asList();
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  SoftmaxCrossEntropyLossLayer addRef() {
+    return (SoftmaxCrossEntropyLossLayer) super.addRef();
+  }
+
+  @NotNull
+  private static TensorArray fwd(@Nonnull TensorList logits, @Nonnull TensorList targets, @Nonnull double[] logSumExp,
+                                 @Nonnull double[] targetSum) {
+    return new TensorArray(RefIntStream.range(0, logits.length()).parallel()
+        .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
+          @Nullable final Tensor l = logits.get(dataIndex);
+          @Nullable final Tensor r = targets.get(dataIndex);
+          if (l.length() != r.length()) {
+            IllegalArgumentException exception = new IllegalArgumentException(l.length() + " != " + r.length());
+            l.freeRef();
+            r.freeRef();
+            throw exception;
+          }
+          @Nullable final double[] ld = l.getData();
+          @Nullable final double[] rd = r.getData();
+          // Running max and rescaled sum give log-sum-exp in the same pass as the target sums
+          double max = Double.NEGATIVE_INFINITY;
+          double sum = 0;
+          double total = 0;
+          double weighted = 0;
+          for (int i = 0; i < ld.length; i++) {
+            final double x = ld[i];
+            if (x > max) {
+              sum = sum * Math.exp(max - x) + 1;
+              max = x;
+            } else {
+              sum += Math.exp(x - max);
+            }
+            total += rd[i];
+            weighted += rd[i] * x;
+          }
+          l.freeRef();
+          r.freeRef();
+          final double lse = max + Math.log(sum);
+          logSumExp[dataIndex] = lse;
+          targetSum[dataIndex] = total;
+          return new Tensor(new double[]{total * lse - weighted}, 1);
+        }, logits, targets)).toArray(Tensor[]::new));
+  }
+
+  private static class Accumulator extends Result.Accumulator {
+
+    private final TensorList logits;
+    private final TensorList targets;
+    private final double[] logSumExp;
+    private final double[] targetSum;
+    private Result.Accumulator accumulator0;
+    private Result.Accumulator accumulator1;
+    private boolean alive0;
+    private boolean alive1;
+
+    /**
+     * Instantiates a new Accumulator.
+     *
+     * @param logits       the logits
+     * @param targets      the targets
+     * @param logSumExp    the log sum exp
+     * @param targetSum    the target sum
+     * @param accumulator0 the accumulator 0
+     * @param alive0       the alive 0
+     * @param accumulator1 the accumulator 1
+     * @param alive1       the alive 1
+     */
+    public Accumulator(TensorList logits, TensorList targets, double[] logSumExp, double[] targetSum,
+                       Result.Accumulator accumulator0, boolean alive0, Result.Accumulator accumulator1, boolean alive1) {
+      this.logits = logits;
+      this.targets = targets;
+      this.logSumExp = logSumExp;
+      this.targetSum = targetSum;
+      this.accumulator0 = accumulator0;
+      this.alive0 = alive0;
+      this.accumulator1 = accumulator1;
+      this.alive1 = alive1;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      if (alive0) {
+        @Nonnull
+        TensorArray tensorArray = new TensorArray(RefIntStream.range(0, delta.length()).parallel()
+            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
+                  Tensor deltaTensor = delta.get(dataIndex);
+                  Tensor l = logits.get(dataIndex);
+                  Tensor r = targets.get(dataIndex);
+                  final double d = deltaTensor.get(0);
+                  final double lse = logSumExp[dataIndex];
+                  final double total = targetSum[dataIndex];
+                  @Nullable final double[] ld = l.getData();
+                  @Nullable final double[] rd = r.getData();
+                  @Nonnull final Tensor passback = new Tensor(l.getDimensions());
+                  @Nullable final double[] passbackData = passback.getData();
+                  for (int i = 0; i < ld.length; i++) {
+                    passbackData[i] = d * (total * Math.exp(ld[i] - lse) - rd[i]);
+                  }
+                  deltaTensor.freeRef();
+                  l.freeRef();
+                  r.freeRef();
+                  return passback;
+                }, delta.addRef(), logits.addRef(), targets.addRef()))
+            .toArray(Tensor[]::new));
+        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+        accumulator0.accept(buffer1, tensorArray);
+      }
+      if (alive1) {
+        @Nonnull
+        TensorArray tensorArray = new TensorArray(RefIntStream.range(0, delta.length()).parallel()
+            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
+                  Tensor deltaTensor = delta.get(dataIndex);
+                  Tensor l = logits.get(dataIndex);
+                  final double d = deltaTensor.get(0);
+                  final double lse = logSumExp[dataIndex];
+                  @Nullable final double[] ld = l.getData();
+                  @Nonnull final Tensor passback = new Tensor(l.getDimensions());
+                  @Nullable final double[] passbackData = passback.getData();
+                  for (int i = 0; i < ld.length; i++) {
+                    passbackData[i] = d * (lse - ld[i]);
+                  }
+                  deltaTensor.freeRef();
+                  l.freeRef();
+                  return passback;
+                }, delta.addRef(), logits.addRef()))
+            .toArray(Tensor[]::new));
+        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+        accumulator1.accept(buffer1, tensorArray);
+      }
+      delta.freeRef();
+      if (null != buffer)
+        buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      accumulator0.freeRef();
+      accumulator1.freeRef();
+      logits.freeRef();
+      targets.freeRef();
+    }
+  }
+}
@@ -21,7 +21,6 @@ package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
-import com.simiacryptus.ref.lang.RefIgnore;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefDoubleStream;
@@ -32,7 +31,6 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.DoubleSummaryStatistics;
 import java.util.Map;
 import java.util.UUID;
 import java.util.function.IntFunction;
@@ -45,6 +43,7 @@ public class SoftmaxLayer extends LayerBase {
 
   @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(SoftmaxLayer.class);
+  private static final int CHUNK_SIZE = 1 << 14;
   /**
    * The Max input.
    */
@@ -78,19 +77,83 @@ public class SoftmaxLayer extends LayerBase {
     return new SoftmaxLayer(json);
   }
 
+  /**
+   * Computes the softmax of a vector into an output of the same length: the finite maximum is subtracted,
+   * the exponentials are summed and then normalized. Non-finite exponentials count as zero. Vectors longer
+   * than one chunk are processed in parallel chunks.
+   *
+   * @param input  the input
+   * @param output the output
+   */
+  public static void softmax(@Nonnull final double[] input, @Nonnull final double[] output) {
+    assert input.length == output.length;
+    final int length = input.length;
+    final int chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    final double max;
+    final double sum;
+    if (chunks <= 1) {
+      max = max(input, 0, length);
+      sum = exp(input, output, max, 0, length);
+    } else {
+      final double[] partial = new double[chunks];
+      RefIntStream.range(0, chunks).parallel().forEach(chunk -> {
+        partial[chunk] = max(input, chunk * CHUNK_SIZE, Math.min(length, (chunk + 1) * CHUNK_SIZE));
+      });
+      max = max(partial, 0, chunks);
+      RefIntStream.range(0, chunks).parallel().forEach(chunk -> {
+        partial[chunk] = exp(input, output, max, chunk * CHUNK_SIZE, Math.min(length, (chunk + 1) * CHUNK_SIZE));
+      });
+      sum = sum(partial);
+    }
+    assert Double.isFinite(sum);
+    final double scale = 1 / (0 < sum ? sum : 1);
+    if (chunks <= 1) {
+      scale(output, scale, 0, length);
+    } else {
+      RefIntStream.range(0, chunks).parallel().forEach(chunk -> {
+        scale(output, scale, chunk * CHUNK_SIZE, Math.min(length, (chunk + 1) * CHUNK_SIZE));
+      });
+    }
+  }
+
+  /**
+   * Computes the gradient of a softmax from its output alone: passback[i] = output[i] * (delta[i] - delta . output).
+   *
+   * @param output   the output
+   * @param delta    the delta
+   * @param passback the passback
+   */
+  public static void softmaxBackward(@Nonnull final double[] output, @Nonnull final double[] delta,
+                                     @Nonnull final double[] passback) {
+    assert output.length == delta.length;
+    assert output.length == passback.length;
+    final int length = output.length;
+    final int chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    if (chunks <= 1) {
+      final double dot = dot(output, delta, 0, length);
+      jacobian(output, delta, passback, dot, 0, length);
+    } else {
+      final double[] partial = new double[chunks];
+      RefIntStream.range(0, chunks).parallel().forEach(chunk -> {
+        partial[chunk] = dot(output, delta, chunk * CHUNK_SIZE, Math.min(length, (chunk + 1) * CHUNK_SIZE));
+      });
+      final double dot = sum(partial);
+      RefIntStream.range(0, chunks).parallel().forEach(chunk -> {
+        jacobian(output, delta, passback, dot, chunk * CHUNK_SIZE, Math.min(length, (chunk + 1) * CHUNK_SIZE));
+      });
+    }
+  }
+
   @Nonnull
   @Override
   public Result eval(@Nonnull final Result... inObj) {
-    TensorList temp_08_0008 = inObj[0].getData();
-    final int itemCnt = temp_08_0008.length();
-    temp_08_0008.freeRef();
-    @Nonnull final double[] sumA = new double[itemCnt];
-    @Nonnull final Tensor expA[] = new Tensor[itemCnt];
-    TensorArray data = fwd(itemCnt, sumA, expA, RefUtil.addRef(inObj));
-    final boolean alive = inObj[0].isAlive();
-    final Result.Accumulator accumulator1 = inObj[0].getAccumulator();
+    final Result input = inObj[0].addRef();
     RefUtil.freeRef(inObj);
-    Accumulator accumulator = new Accumulator(alive, itemCnt, expA, sumA, accumulator1);
+    TensorArray data = fwd(input.getData());
+    final boolean alive = input.isAlive();
+    // Only the output is retained; the Jacobian-vector product needs nothing else
+    Accumulator accumulator = new Accumulator(alive, data.addRef(), input.getAccumulator());
+    input.freeRef();
     return new Result(data, accumulator, alive);
   }
 
@@ -118,88 +181,101 @@ public class SoftmaxLayer extends LayerBase {
     return (SoftmaxLayer) super.addRef();
   }
 
-  private TensorArray fwd(int itemCnt, double[] sumA, @RefIgnore Tensor[] exp_out, @Nonnull Result[] inObj) {
-    final Tensor[] outputA = RefIntStream.range(0, itemCnt)
+  private static double max(@Nonnull final double[] data, final int from, final int to) {
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = from; i < to; i++) {
+      final double x = data[i];
+      if (x > max && Double.isFinite(x)) max = x;
+    }
+    return max;
+  }
+
+  private static double exp(@Nonnull final double[] input, @Nonnull final double[] output, final double max,
+                            final int from, final int to) {
+    double sum = 0;
+    for (int i = from; i < to; i++) {
+      final double x = Math.exp(input[i] - max);
+      final double value = Double.isFinite(x) ? x : 0;
+      output[i] = value;
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static void scale(@Nonnull final double[] data, final double scale, final int from, final int to) {
+    for (int i = from; i < to; i++) {
+      data[i] *= scale;
+    }
+  }
+
+  private static double dot(@Nonnull final double[] a, @Nonnull final double[] b, final int from, final int to) {
+    double dot = 0;
+    for (int i = from; i < to; i++) {
+      dot += a[i] * b[i];
+    }
+    return dot;
+  }
+
+  private static void jacobian(@Nonnull final double[] output, @Nonnull final double[] delta,
+                               @Nonnull final double[] passback, final double dot, final int from, final int to) {
+    for (int i = from; i < to; i++) {
+      passback[i] = output[i] * (delta[i] - dot);
+    }
+  }
+
+  private static double sum(@Nonnull final double[] data) {
+    double sum = 0;
+    for (double x : data) {
+      sum += x;
+    }
+    return sum;
+  }
+
+  @Nonnull
+  private static TensorArray fwd(@Nonnull final TensorList inputData) {
+    return new TensorArray(RefIntStream.range(0, inputData.length()).parallel()
         .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
-          TensorList temp_08_0009 = inObj[0].getData();
-          @Nullable final Tensor input = temp_08_0009.get(dataIndex);
-          temp_08_0009.freeRef();
+          @Nullable final Tensor input = inputData.get(dataIndex);
           assert 1 < input.length() : "input.length() = " + input.length();
-
-          final DoubleSummaryStatistics summaryStatistics = RefDoubleStream.of(input.getData())
-              .filter(Double::isFinite).summaryStatistics();
-          final double max = summaryStatistics.getMax();
-          //final double min = summaryStatistics.getMin();
-          @Nullable final Tensor exp = input.map(x -> {
-            double xx = Math.exp(x - max);
-            return Double.isFinite(xx) ? xx : 0;
-          });
+          @Nonnull final Tensor output = new Tensor(input.getDimensions());
+          softmax(input.getData(), output.getData());
           input.freeRef();
-          assert RefArrays.stream(exp.getData()).allMatch(Double::isFinite);
-          assert RefArrays.stream(exp.getData()).allMatch(v -> v >= 0);
-          //assert exp.sum() > 0;
-          final double sum = 0 < exp.sum() ? exp.sum() : 1;
-          assert Double.isFinite(sum);
-          sumA[dataIndex] = sum;
-          Tensor temp_08_0003 = exp.map(x -> x / sum);
-          RefUtil.set(exp_out, dataIndex, exp);
-          return temp_08_0003;
-        }, inObj)).toArray(Tensor[]::new);
-    assert RefArrays.stream(RefUtil.addRef(outputA)).flatMapToDouble(x -> {
-      RefDoubleStream temp_08_0005 = RefArrays.stream(x.getData());
-      x.freeRef();
-      return temp_08_0005;
-    }).allMatch(Double::isFinite);
-    return new TensorArray(outputA);
+          return output;
+        }, inputData)).toArray(Tensor[]::new));
   }
 
   private static class Accumulator extends Result.Accumulator {
 
     private final boolean alive;
-    private final int itemCnt;
-    private final Tensor[] expA;
-    private final double[] sumA;
+    private final TensorList output;
     private Result.Accumulator accumulator;
 
     /**
      * Instantiates a new Accumulator.
      *
      * @param alive       the alive
-     * @param itemCnt     the item cnt
-     * @param expA        the exp a
-     * @param sumA        the sum a
+     * @param output      the output
      * @param accumulator the accumulator
      */
-    public Accumulator(boolean alive, int itemCnt, Tensor[] expA, double[] sumA, Result.Accumulator accumulator) {
+    public Accumulator(boolean alive, TensorList output, Result.Accumulator accumulator) {
       this.alive = alive;
-      this.itemCnt = itemCnt;
-      this.expA = expA;
-      this.sumA = sumA;
+      this.output = output;
       this.accumulator = accumulator;
     }
 
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList data) {
       if (alive) {
-        final Tensor[] passbackA = RefIntStream.range(0, itemCnt)
+        final Tensor[] passbackA = RefIntStream.range(0, data.length()).parallel()
             .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor>) dataIndex -> {
               Tensor deltaTensor = data.get(dataIndex);
-              @Nullable final double[] delta = deltaTensor.getData();
+              Tensor outputTensor = output.get(dataIndex);
+              @Nonnull final Tensor passback = new Tensor(deltaTensor.getDimensions());
+              softmaxBackward(outputTensor.getData(), deltaTensor.getData(), passback.getData());
               deltaTensor.freeRef();
-              @Nullable final double[] expdata = expA[dataIndex].getData();
-              @Nonnull final Tensor passback = new Tensor(data.getDimensions());
-              final int dim = expdata.length;
-              double dot = 0;
-              for (int i = 0; i < expdata.length; i++) {
-                dot += delta[i] * expdata[i];
-              }
-              final double sum = sumA[dataIndex];
-              for (int i = 0; i < dim; i++) {
-                double value = (sum * delta[i] - dot) * expdata[i] / (sum * sum);
-                passback.set(i, value);
-              }
+              outputTensor.freeRef();
               return passback;
-            }, RefUtil.addRef(expA), data)).toArray(Tensor[]::new);
+            }, output.addRef(), data)).toArray(Tensor[]::new);
         assert RefArrays.stream(RefUtil.addRef(passbackA)).flatMapToDouble(x -> {
           RefDoubleStream temp_08_0006 = RefArrays.stream(x.getData());
           x.freeRef();
@@ -219,7 +295,7 @@ public class SoftmaxLayer extends LayerBase {
     void _free() {
       super._free();
       accumulator.freeRef();
-      RefUtil.freeRef(expA);
+      output.freeRef();
     }
   }
 }
@@ -20,20 +20,23 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
-import com.simiacryptus.mindseye.network.InnerNode;
-import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefIntStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.Map;
+import java.util.UUID;
+import java.util.function.IntFunction;
 
 /**
- * The type Std dev meta layer.
+ * Outputs the standard deviation of every element in the batch as a single scalar.
  */
 @SuppressWarnings("serial")
-public class StdDevMetaLayer extends PipelineNetwork {
+public class StdDevMetaLayer extends MomentMetaLayerBase {
 
   @SuppressWarnings("unused")
   private static final Logger log = LoggerFactory.getLogger(StdDevMetaLayer.class);
@@ -51,22 +54,8 @@ public class StdDevMetaLayer extends PipelineNetwork {
    * @param minBatchCount the min batch count
    */
   public StdDevMetaLayer(final int minBatchCount) {
-    super(1);
-    AvgMetaLayer avgMetaLayer = new AvgMetaLayer();
-    avgMetaLayer.setMinBatchCount(minBatchCount);
-    RefUtil.freeRef(add(avgMetaLayer.addRef()));
-    RefUtil.freeRef(add(new AvgReducerLayer()));
-    InnerNode square = add(new SqActivationLayer());
-    RefUtil.freeRef(add(new SqActivationLayer(), getInput(0)));
-    RefUtil.freeRef(add(avgMetaLayer));
-    RefUtil.freeRef(add(new AvgReducerLayer()));
-    LinearActivationLayer negative = new LinearActivationLayer();
-    negative.setScale(-1);
-    negative.freeze();
-    RefUtil.freeRef(add(new SumInputsLayer(), getHead(), add(negative, square)));
-    NthPowerActivationLayer sqrt = new NthPowerActivationLayer();
-    sqrt.setPower(0.5);
-    RefUtil.freeRef(add(sqrt));
+    super();
+    setMinBatchCount(minBatchCount);
   }
 
   /**
@@ -76,7 +65,7 @@ public class StdDevMetaLayer extends PipelineNetwork {
    * @param rs   the rs
    */
   protected StdDevMetaLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
-    super(json, rs);
+    super(json);
   }
 
   /**
@@ -104,4 +93,77 @@ public class StdDevMetaLayer extends PipelineNetwork {
     return (StdDevMetaLayer) super.addRef();
   }
 
+  @Nonnull
+  @Override
+  protected Result eval(@Nonnull final Result input, final double mean, final double variance, final long count,
+                        final boolean active) {
+    final double stdDev = Math.sqrt(variance);
+    boolean alive = input.isAlive();
+    Result.Accumulator accumulator = new Accumulator(input.getData(), mean, active ? count * stdDev : 0,
+        input.getAccumulator(), alive);
+    input.freeRef();
+    return new Result(new TensorArray(new Tensor(new double[]{stdDev}, 1)), accumulator, alive);
+  }
+
+  private static class Accumulator extends Result.Accumulator {
+
+    private final TensorList inputData;
+    private final double mean;
+    private final double denominator;
+    private Result.Accumulator accumulator;
+    private boolean alive;
+
+    /**
+     * Instantiates a new Accumulator.
+     *
+     * @param inputData   the input data
+     * @param mean        the mean
+     * @param denominator the count times the standard deviation, or zero when no gradient flows
+     * @param accumulator the accumulator
+     * @param alive       the alive
+     */
+    public Accumulator(TensorList inputData, double mean, double denominator, Result.Accumulator accumulator,
+                       boolean alive) {
+      this.inputData = inputData;
+      this.mean = mean;
+      this.denominator = denominator;
+      this.accumulator = accumulator;
+      this.alive = alive;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList data) {
+      if (alive) {
+        Tensor delta = data.get(0);
+        // d(sigma)/dx = (x - mean) / (n * sigma)
+        final double scale = 0 == denominator ? 0 : delta.get(0) / denominator;
+        delta.freeRef();
+        TensorArray passback = new TensorArray(RefIntStream.range(0, inputData.length()).parallel()
+            .mapToObj(RefUtil.wrapInterface((IntFunction<Tensor>) i -> {
+              Tensor tensor = inputData.get(i);
+              final double[] x = tensor.getData();
+              Tensor gradient = new Tensor(tensor.getDimensions());
+              tensor.freeRef();
+              final double[] g = gradient.getData();
+              if (0 != scale) {
+                for (int j = 0; j < x.length; j++) {
+                  g[j] = scale * (x[j] - mean);
+                }
+              }
+              return gradient;
+            }, inputData.addRef())).toArray(Tensor[]::new));
+        this.accumulator.accept(buffer == null ? null : buffer.addRef(), passback);
+      }
+      data.freeRef();
+      if (null != buffer)
+        buffer.freeRef();
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      inputData.freeRef();
+      accumulator.freeRef();
+    }
+  }
 }
@@ -20,15 +20,10 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
-import com.simiacryptus.mindseye.lang.DataSerializer;
-import com.simiacryptus.mindseye.lang.Layer;
-import com.simiacryptus.mindseye.lang.LayerBase;
-import com.simiacryptus.mindseye.lang.Result;
+import com.google.gson.JsonPrimitive;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.layers.StochasticComponent;
 import com.simiacryptus.mindseye.network.CountingResult;
-import com.simiacryptus.mindseye.network.DAGNetwork;
-import com.simiacryptus.mindseye.network.DAGNode;
-import com.simiacryptus.mindseye.network.PipelineNetwork;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.*;
 import org.slf4j.Logger;
@@ -36,10 +31,13 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.Random;
-import java.util.function.IntFunction;
-import java.util.function.LongFunction;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
 
 /**
  * The type Stochastic sampling subnet layer.
@@ -54,6 +52,7 @@ public class StochasticSamplingSubnetLayer extends LayerBase implements Stochast
   @Nullable
   private final Layer subnetwork;
   private long seed = RefSystem.nanoTime();
+  private boolean parallel = false;
 
   /**
    * Instantiates a new Stochastic sampling subnet layer.
@@ -79,6 +78,8 @@ public class StochasticSamplingSubnetLayer extends LayerBase implements Stochast
     seed = json.getAsJsonPrimitive("seed").getAsLong();
     JsonObject subnetwork = json.getAsJsonObject("subnetwork");
     this.subnetwork = Layer.fromJson(subnetwork, rs);
+    JsonPrimitive parallel = json.getAsJsonPrimitive("parallel");
+    this.parallel = null != parallel && parallel.getAsBoolean();
   }
 
   /**
@@ -87,8 +88,8 @@ public class StochasticSamplingSubnetLayer extends LayerBase implements Stochast
    * @return the long [ ]
    */
   public long[] getSeeds() {
-    Random random = new Random(seed);
-    return RefIntStream.range(0, this.samples).mapToLong(i -> random.nextLong()).toArray();
+    final long seed = this.seed;
+    return RefIntStream.range(0, this.samples).mapToLong(i -> NoiseGenerator.hash(seed, i)).toArray();
   }
 
   @Override
@@ -118,19 +119,11 @@ public class StochasticSamplingSubnetLayer extends LayerBase implements Stochast
    */
   @Nullable
   public static Result average(@Nonnull final Result[] samples) {
-    PipelineNetwork gateNetwork = new PipelineNetwork(samples.length);
-    RefUtil.freeRef(gateNetwork.add(new SumInputsLayer(),
-        RefIntStream.range(0, samples.length)
-            .mapToObj(RefUtil.wrapInterface((IntFunction<? extends DAGNode>) gateNetwork::getInput,
-                gateNetwork.addRef()))
-            .toArray(DAGNode[]::new)));
-    LinearActivationLayer scale = new LinearActivationLayer();
-    scale.setScale(1.0 / samples.length);
-    scale.freeze();
-    RefUtil.freeRef(gateNetwork.add(scale));
-    Result result = gateNetwork.eval(samples);
-    gateNetwork.freeRef();
-    return result;
+    Averager averager = new Averager(samples.length, 1);
+    for (int i = 0; i < samples.length; i++) {
+      averager.add(0, i, samples[i]);
+    }
+    return averager.getResult();
   }
 
   @Nullable
@@ -139,45 +132,148 @@ public class StochasticSamplingSubnetLayer extends LayerBase implements Stochast
       assert subnetwork != null;
       return subnetwork.eval(inObj);
     }
+    assert subnetwork != null;
+    final int seededLayers = parallel ? countSeededLayers(subnetwork.addRef(), new HashSet<>()) : 0;
     Result[] counting = RefArrays.stream(inObj).map(r -> {
       return new CountingResult(r, samples, StochasticSamplingSubnetLayer.this.addRef());
     }).toArray(Result[]::new);
-    return average(
-        RefArrays.stream(getSeeds()).mapToObj(RefUtil.wrapInterface((LongFunction<? extends Result>) seed1 -> {
-          shuffleSubnet(seed1);
-          assert subnetwork != null;
-          return subnetwork.eval(RefUtil.addRef(counting));
-        }, counting)).toArray(Result[]::new));
+    final long[] seeds = getSeeds();
+    if (!parallel) {
+      // Seeds are set on the shared subnetwork, so samples must run one at a time
+      Averager averager = new Averager(seeds.length, 1);
+      for (int i = 0; i < seeds.length; i++) {
+        shuffleSubnet(seeds[i]);
+        assert subnetwork != null;
+        averager.add(0, i, subnetwork.eval(RefUtil.addRef(counting)));
+      }
+      RefUtil.freeRef(counting);
+      return averager.getResult();
+    }
+    final int lanes = Math.max(1, Math.min(seeds.length, ForkJoinPool.getCommonPoolParallelism()));
+    Averager averager = new Averager(seeds.length, lanes);
+    RefIntStream.range(0, lanes).parallel().forEach(RefUtil.wrapInterface((IntConsumer) lane -> {
+      for (int i = lane; i < seeds.length; i += lanes) {
+        averager.add(lane, i, NoiseGenerator.withSeed(seeds[i], () -> {
+          Result sample = subnetwork.eval(RefUtil.addRef(counting));
+          if (NoiseGenerator.getContextSeedReads() < seededLayers) {
+            // A noise layer was evaluated off this thread and used its own seed, so samples are correlated
+            RefUtil.freeRef(sample);
+            throw new IllegalStateException(RefString.format(
+                "%s: noise layers did not read the sample seed on the sampling thread", getName()));
+          }
+          return sample;
+        }));
+      }
+    }, counting));
+    return averager.getResult();
   }
 
   /**
-   * Shuffle subnet.
+   * Shuffles every stochastic layer of the subnetwork, including those inside nested networks and
+   * wrapper layers.
    *
    * @param seed the seed
    */
   public void shuffleSubnet(long seed) {
-    if (subnetwork instanceof DAGNetwork) {
-      ((DAGNetwork) subnetwork).visitNodes(node -> {
-        Layer layer = node.getLayer();
-        node.freeRef();
-        if (layer instanceof StochasticComponent) {
-          ((StochasticComponent) layer).shuffle(seed);
+    assert subnetwork != null;
+    shuffle(subnetwork.addRef(), seed, new HashSet<>());
+  }
+
+  private static void shuffle(@Nonnull Layer layer, long seed, @Nonnull Set<UUID> visited) {
+    try {
+      if (!visited.add(layer.getId())) return;
+      if (layer instanceof StochasticComponent) {
+        ((StochasticComponent) layer).shuffle(seed);
+      }
+      RefList<Layer> children = layer.getChildren();
+      try {
+        for (int i = 0; i < children.size(); i++) {
+          shuffle(children.get(i), seed, visited);
         }
-        if (null != layer)
-          layer.freeRef();
-      });
+      } finally {
+        children.freeRef();
+      }
+    } finally {
+      layer.freeRef();
     }
-    if (subnetwork instanceof StochasticComponent) {
-      ((StochasticComponent) subnetwork).shuffle(seed);
+  }
+
+  /**
+   * Counts the stochastic layers of a subnetwork that read their seed from
+   * {@link NoiseGenerator#seed}, failing if parallel sampling could not give them independent noise.
+   *
+   * @param layer   the layer
+   * @param visited the visited
+   * @return the count
+   */
+  private static int countSeededLayers(@Nonnull Layer layer, @Nonnull Set<UUID> visited) {
+    try {
+      if (!visited.add(layer.getId())) return 0;
+      if (layer instanceof DropoutNoiseLayer || layer instanceof GaussianNoiseLayer || layer instanceof BinaryNoiseLayer) {
+        return 1;
+      }
+      if (layer instanceof StochasticComponent) {
+        throw new IllegalStateException(RefString.format(
+            "%s does not read the sample seed and cannot be sampled in parallel", layer.getName()));
+      }
+      int count = 0;
+      RefList<Layer> children = layer.getChildren();
+      try {
+        for (int i = 0; i < children.size(); i++) {
+          count += countSeededLayers(children.get(i), visited);
+        }
+      } finally {
+        children.freeRef();
+      }
+      if (count > 0 && isOffThread(layer)) {
+        throw new IllegalStateException(RefString.format(
+            "%s evaluates noise layers off the sampling thread and cannot be sampled in parallel", layer.getName()));
+      }
+      return count;
+    } finally {
+      layer.freeRef();
     }
   }
 
+  private static boolean isOffThread(@Nonnull Layer layer) {
+    if (layer instanceof SubBatchLayer) {
+      return ((SubBatchLayer) layer).getMaxConcurrency() > 1;
+    }
+    if (layer instanceof ImgTileSubnetLayer) {
+      return ((ImgTileSubnetLayer) layer).isConcurrent();
+    }
+    return false;
+  }
+
+  /**
+   * Is parallel boolean.
+   *
+   * @return the boolean
+   */
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  /**
+   * Sets whether samples are evaluated concurrently. Each concurrent sample passes its seed through
+   * {@link NoiseGenerator#withSeed} instead of shuffling the shared subnetwork, so this requires that
+   * every stochastic layer in the subnetwork reads its seed from {@link NoiseGenerator#seed} and is
+   * evaluated on the calling thread. Subnetworks that break this are rejected with an
+   * {@link IllegalStateException} on evaluation rather than averaging correlated samples.
+   *
+   * @param parallel the parallel
+   */
+  public void setParallel(boolean parallel) {
+    this.parallel = parallel;
+  }
+
   @Nonnull
   @Override
   public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
     @Nonnull final JsonObject json = super.getJsonStub();
     json.addProperty("samples", samples);
     json.addProperty("seed", seed);
+    json.addProperty("parallel", parallel);
     assert subnetwork != null;
     json.add("subnetwork", subnetwork.getJson(resources, dataSerializer));
     return json;
@@ -214,4 +310,132 @@ public class StochasticSamplingSubnetLayer extends LayerBase implements Stochast
     return (StochasticSamplingSubnetLayer) super.addRef();
   }
 
+  /**
+   * Accumulates sample outputs into per-lane running sums as they arrive, keeping only each sample's
+   * accumulator for the backward pass.
+   */
+  private static class Averager {
+    private final Result.Accumulator[] accumulators;
+    private final double[][][] sums;
+    private final AtomicBoolean alive = new AtomicBoolean(false);
+    private volatile int[] dimensions;
+
+    /**
+     * Instantiates a new Averager.
+     *
+     * @param samples the samples
+     * @param lanes   the lanes
+     */
+    public Averager(int samples, int lanes) {
+      this.accumulators = new Result.Accumulator[samples];
+      this.sums = new double[lanes][][];
+    }
+
+    /**
+     * Adds a sample. Each lane must be used by one thread at a time.
+     *
+     * @param lane   the lane
+     * @param index  the index
+     * @param sample the sample
+     */
+    public void add(int lane, int index, @Nonnull Result sample) {
+      TensorList data = sample.getData();
+      if (null == dimensions) dimensions = data.getDimensions();
+      final int length = data.length();
+      double[][] sum = sums[lane];
+      if (null == sum) {
+        sum = new double[length][];
+        sums[lane] = sum;
+      }
+      for (int i = 0; i < length; i++) {
+        Tensor tensor = data.get(i);
+        final double[] values = tensor.getData();
+        if (null == sum[i]) {
+          sum[i] = values.clone();
+        } else {
+          final double[] target = sum[i];
+          for (int j = 0; j < values.length; j++) {
+            target[j] += values[j];
+          }
+        }
+        tensor.freeRef();
+      }
+      data.freeRef();
+      if (sample.isAlive()) alive.set(true);
+      accumulators[index] = sample.getAccumulator();
+      sample.freeRef();
+    }
+
+    /**
+     * Gets the averaged result. The averager must not be used afterwards.
+     *
+     * @return the result
+     */
+    @Nonnull
+    public Result getResult() {
+      double[][] total = null;
+      for (double[][] sum : sums) {
+        if (null == sum) continue;
+        if (null == total) {
+          total = sum;
+        } else {
+          for (int i = 0; i < total.length; i++) {
+            for (int j = 0; j < total[i].length; j++) {
+              total[i][j] += sum[i][j];
+            }
+          }
+        }
+      }
+      assert null != total;
+      final double scale = 1.0 / accumulators.length;
+      final Tensor[] tensors = new Tensor[total.length];
+      for (int i = 0; i < total.length; i++) {
+        for (int j = 0; j < total[i].length; j++) {
+          total[i][j] *= scale;
+        }
+        tensors[i] = new Tensor(total[i], dimensions);
+      }
+      return new Result(new TensorArray(tensors), new AverageAccumulator(accumulators, sums.length), alive.get());
+    }
+  }
+
+  private static class AverageAccumulator extends Result.Accumulator {
+
+    private final Result.Accumulator[] accumulators;
+    private final int lanes;
+
+    /**
+     * Instantiates a new Average accumulator.
+     *
+     * @param accumulators the accumulators
+     * @param lanes        the lanes
+     */
+    public AverageAccumulator(Result.Accumulator[] accumulators, int lanes) {
+      this.accumulators = accumulators;
+      this.lanes = lanes;
+    }
+
+    @Override
+    public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+      final double scale = 1.0 / accumulators.length;
+      final TensorArray scaled = new TensorArray(delta.stream().map(tensor -> {
+        Tensor scaledTensor = tensor.scale(scale);
+        tensor.freeRef();
+        return scaledTensor;
+      }).toArray(Tensor[]::new));
+      delta.freeRef();
+      RefIntStream.range(0, lanes).parallel().forEach(RefUtil.wrapInterface((IntConsumer) lane -> {
+        for (int i = lane; i < accumulators.length; i += lanes) {
+          accumulators[i].accept(buffer == null ? null : buffer.addRef(), scaled.addRef());
+        }
+      }, scaled, buffer));
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+      RefUtil.freeRef(accumulators);
+    }
+  }
+
 }
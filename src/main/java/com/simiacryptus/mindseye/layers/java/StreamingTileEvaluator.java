@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Streams a frozen image network over a raw tensor file too large to load as one {@link Tensor}.
+ * The image is cut into tiles as by {@link ImgTileSelectLayer#toTiles}, each read row by row from the
+ * input file together with a zero-padded halo, evaluated on a fixed pool of workers, cropped back to its
+ * core and written row by row into the output file. Only the tiles in flight are ever resident, so
+ * memory use does not depend on the image size, and positional channel reads and writes avoid both the
+ * 2GB limit and the unreleased mappings of memory-mapped buffers.
+ * <p>
+ * Raw tensor files hold little-endian doubles in {@link Tensor} order: x fastest, then y, then band.
+ * The network must preserve the spatial size of its input; it may change the band count.
+ */
+public class StreamingTileEvaluator extends ReferenceCountingBase {
+  private static final Logger log = LoggerFactory.getLogger(StreamingTileEvaluator.class);
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  @Nonnull
+  private final Layer network;
+  private final int tileWidth;
+  private final int tileHeight;
+  private int haloX = 0;
+  private int haloY = 0;
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private long reportIntervalMs = 10000;
+  @Nullable
+  private Consumer<Progress> listener = null;
+
+  /**
+   * Instantiates a new Streaming tile evaluator.
+   *
+   * @param network    the network
+   * @param tileWidth  the tile width
+   * @param tileHeight the tile height
+   */
+  public StreamingTileEvaluator(@Nonnull final Layer network, final int tileWidth, final int tileHeight) {
+    this.network = network;
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+  }
+
+  /**
+   * Gets halo x.
+   *
+   * @return the halo x
+   */
+  public int getHaloX() {
+    return haloX;
+  }
+
+  /**
+   * Sets the number of extra columns read on each side of a tile and cropped from its output.
+   *
+   * @param haloX the halo x
+   */
+  public void setHaloX(int haloX) {
+    this.haloX = haloX;
+  }
+
+  /**
+   * Gets halo y.
+   *
+   * @return the halo y
+   */
+  public int getHaloY() {
+    return haloY;
+  }
+
+  /**
+   * Sets the number of extra rows read on each side of a tile and cropped from its output.
+   *
+   * @param haloY the halo y
+   */
+  public void setHaloY(int haloY) {
+    this.haloY = haloY;
+  }
+
+  /**
+   * Gets threads.
+   *
+   * @return the threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the worker count; at most twice this many tiles are resident at once.
+   *
+   * @param threads the threads
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * Gets report interval ms.
+   *
+   * @return the report interval ms
+   */
+  public long getReportIntervalMs() {
+    return reportIntervalMs;
+  }
+
+  /**
+   * Sets report interval ms.
+   *
+   * @param reportIntervalMs the report interval ms
+   */
+  public void setReportIntervalMs(long reportIntervalMs) {
+    this.reportIntervalMs = reportIntervalMs;
+  }
+
+  /**
+   * Sets a listener for progress reports, which are logged when none is set.
+   *
+   * @param listener the listener
+   */
+  public void setListener(@Nullable Consumer<Progress> listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Writes a tensor as a raw tensor file.
+   *
+   * @param tensor the tensor
+   * @param file   the file
+   * @throws IOException the io exception
+   */
+  public static void write(@Nonnull final Tensor tensor, @Nonnull final File file) throws IOException {
+    double[] data = tensor.getData();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength((long) data.length * Double.BYTES);
+      final ByteBuffer buffer = buffer(Math.min(CHUNK_SIZE, data.length));
+      for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+        write(raf.getChannel(), (long) offset * Double.BYTES, buffer,
+            data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+      }
+    } finally {
+      tensor.freeRef();
+    }
+  }
+
+  /**
+   * Reads a whole raw tensor file.
+   *
+   * @param file the file
+   * @param dims the dims
+   * @return the tensor
+   * @throws IOException the io exception
+   */
+  @Nonnull
+  public static Tensor read(@Nonnull final File file, @Nonnull final int... dims) throws IOException {
+    Tensor tensor = new Tensor(dims);
+    double[] data = tensor.getData();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      final ByteBuffer buffer = buffer(Math.min(CHUNK_SIZE, data.length));
+      for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+        read(raf.getChannel(), (long) offset * Double.BYTES, buffer,
+            data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+      }
+    }
+    return tensor;
+  }
+
+  /**
+   * Evaluates the network over a raw input file, writing a raw output file of the same width and height.
+   *
+   * @param input       the input file
+   * @param inputDims   the input dims
+   * @param output      the output file
+   * @param outputBands the output bands
+   * @return the final progress report
+   * @throws IOException the io exception
+   */
+  @Nonnull
+  public Progress eval(@Nonnull final File input, @Nonnull final int[] inputDims, @Nonnull final File output,
+                       final int outputBands) throws IOException {
+    assert 3 == inputDims.length;
+    if (!network.isFrozen()) {
+      throw new IllegalStateException("Streaming evaluation requires a frozen network");
+    }
+    final int[] outputDims = {inputDims[0], inputDims[1], outputBands};
+    final int cols = (inputDims[0] + tileWidth - 1) / tileWidth;
+    final int rows = (inputDims[1] + tileHeight - 1) / tileHeight;
+    log.info(RefString.format("Streaming %s image through %s x %s tiles in a %s x %s grid with halo %s x %s on %s threads",
+        RefArrays.toString(inputDims), tileWidth, tileHeight, cols, rows, haloX, haloY, threads));
+    final Progress progress = new Progress(rows * cols);
+    final AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+    final ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+    try (RandomAccessFile in = new RandomAccessFile(input, "r");
+         RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+      final FileChannel inChannel = in.getChannel();
+      final FileChannel outChannel = out.getChannel();
+      out.setLength((long) outputDims[0] * outputDims[1] * outputDims[2] * Double.BYTES);
+      int pending = 0;
+      for (int row = 0; row < rows; row++) {
+        for (int col = 0; col < cols; col++) {
+          final int x = col * tileWidth;
+          final int y = row * tileHeight;
+          final int width = Math.min(tileWidth, inputDims[0] - x);
+          final int height = Math.min(tileHeight, inputDims[1] - y);
+          // At most twice the worker count is queued; completed tiles are collected as they finish
+          if (pending == 2 * threads) {
+            completion.take().get();
+            pending--;
+          }
+          completion.submit(() -> {
+            evalTile(inChannel, inputDims, outChannel, outputDims, x, y, width, height);
+            progress.add(width, height);
+            report(progress, lastReport);
+            return null;
+          });
+          pending++;
+        }
+      }
+      for (; pending > 0; pending--) {
+        completion.take().get();
+      }
+      outChannel.force(true);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+    } finally {
+      pool.shutdownNow();
+    }
+    report(progress);
+    return progress;
+  }
+
+  public @SuppressWarnings("unused")
+  void _free() {
+    super._free();
+    network.freeRef();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  StreamingTileEvaluator addRef() {
+    return (StreamingTileEvaluator) super.addRef();
+  }
+
+  private void evalTile(@Nonnull final FileChannel inChannel, @Nonnull final int[] inputDims,
+                        @Nonnull final FileChannel outChannel, @Nonnull final int[] outputDims,
+                        final int x, final int y, final int width, final int height) throws IOException {
+    final Tensor tile = new Tensor(width + 2 * haloX, height + 2 * haloY, inputDims[2]);
+    final int[] tileDims = tile.getDimensions();
+    final double[] tileData = tile.getData();
+    final int x0 = Math.max(0, x - haloX);
+    final int x1 = Math.min(inputDims[0], x + width + haloX);
+    final int y0 = Math.max(0, y - haloY);
+    final int y1 = Math.min(inputDims[1], y + height + haloY);
+    final ByteBuffer inBuffer = buffer(x1 - x0);
+    for (int z = 0; z < inputDims[2]; z++) {
+      for (int row = y0; row < y1; row++) {
+        read(inChannel, offset(inputDims, x0, row, z), inBuffer,
+            tileData, (z * tileDims[1] + row - y + haloY) * tileDims[0] + x0 - x + haloX, x1 - x0);
+      }
+    }
+    TensorList resultList = Result.getData(network.eval(tile));
+    Tensor result = resultList.get(0);
+    resultList.freeRef();
+    final int[] resultDims = result.getDimensions();
+    assert resultDims[0] == tileDims[0] && resultDims[1] == tileDims[1] && resultDims[2] == outputDims[2]
+        : RefArrays.toString(resultDims) + "; " + RefArrays.toString(tileDims);
+    final double[] resultData = result.getData();
+    final ByteBuffer outBuffer = buffer(width);
+    for (int z = 0; z < outputDims[2]; z++) {
+      for (int row = 0; row < height; row++) {
+        write(outChannel, offset(outputDims, x, y + row, z), outBuffer,
+            resultData, (z * resultDims[1] + row + haloY) * resultDims[0] + haloX, width);
+      }
+    }
+    result.freeRef();
+  }
+
+  private static long offset(@Nonnull final int[] dims, final int x, final int y, final int z) {
+    return (((long) z * dims[1] + y) * dims[0] + x) * Double.BYTES;
+  }
+
+  @Nonnull
+  private static ByteBuffer buffer(final int length) {
+    return ByteBuffer.allocate(length * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void read(@Nonnull final FileChannel channel, final long position, @Nonnull final ByteBuffer buffer,
+                           @Nonnull final double[] data, final int offset, final int length) throws IOException {
+    buffer.clear().limit(length * Double.BYTES);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException(RefString.format("Raw tensor file ends before byte %s", position + buffer.position()));
+      }
+    }
+    buffer.flip();
+    buffer.asDoubleBuffer().get(data, offset, length);
+  }
+
+  private static void write(@Nonnull final FileChannel channel, final long position, @Nonnull final ByteBuffer buffer,
+                            @Nonnull final double[] data, final int offset, final int length) throws IOException {
+    buffer.clear().limit(length * Double.BYTES);
+    buffer.asDoubleBuffer().put(data, offset, length);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  private void report(@Nonnull final Progress progress, @Nonnull final AtomicLong lastReport) {
+    final long now = System.currentTimeMillis();
+    final long last = lastReport.get();
+    if (now - last >= reportIntervalMs && lastReport.compareAndSet(last, now)) {
+      report(progress);
+    }
+  }
+
+  private void report(@Nonnull final Progress progress) {
+    if (null != listener) {
+      listener.accept(progress);
+    } else {
+      log.info(progress.toString());
+    }
+  }
+
+  /**
+   * Progress of a streaming evaluation.
+   */
+  public static class Progress {
+    private final int totalTiles;
+    private final long startNanos = System.nanoTime();
+    private final AtomicInteger tiles = new AtomicInteger(0);
+    private final AtomicLong pixels = new AtomicLong(0);
+
+    private Progress(int totalTiles) {
+      this.totalTiles = totalTiles;
+    }
+
+    /**
+     * Gets total tiles.
+     *
+     * @return the total tiles
+     */
+    public int getTotalTiles() {
+      return totalTiles;
+    }
+
+    /**
+     * Gets completed tiles.
+     *
+     * @return the completed tiles
+     */
+    public int getTiles() {
+      return tiles.get();
+    }
+
+    /**
+     * Gets completed output pixels.
+     *
+     * @return the pixels
+     */
+    public long getPixels() {
+      return pixels.get();
+    }
+
+    /**
+     * Gets elapsed seconds.
+     *
+     * @return the elapsed seconds
+     */
+    public double getElapsedSeconds() {
+      return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * Gets throughput in output pixels per second.
+     *
+     * @return the pixels per second
+     */
+    public double getPixelsPerSecond() {
+      return getPixels() / Math.max(getElapsedSeconds(), 1e-9);
+    }
+
+    @Nonnull
+    @Override
+    public String toString() {
+      return RefString.format("%s/%s tiles, %.1f Mpx in %.1f s (%.2f Mpx/s)",
+          getTiles(), totalTiles, getPixels() / 1e6, getElapsedSeconds(), getPixelsPerSecond() / 1e6);
+    }
+
+    private void add(int width, int height) {
+      pixels.addAndGet((long) width * height);
+      tiles.incrementAndGet();
+    }
+  }
+}
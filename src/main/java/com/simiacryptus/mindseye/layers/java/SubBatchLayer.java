@@ -20,10 +20,10 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.layers.WrapperLayer;
 import com.simiacryptus.ref.lang.RefUtil;
-import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
 
@@ -31,14 +31,21 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.IntConsumer;
 import java.util.function.IntFunction;
 
 /**
- * The type Sub batch layer.
+ * Evaluates the inner layer over consecutive micro-batches of the input, to bound peak memory.
+ * Up to {@link #getMaxConcurrency()} micro-batches are evaluated at once, both forward and backward;
+ * each micro-batch writes its passback into its own slots of a shared buffer, so no locking is
+ * needed to assemble it.
  */
 @SuppressWarnings("serial")
 public class SubBatchLayer extends WrapperLayer {
 
+  private int batchSize = 1;
+  private int maxConcurrency = 1;
+
   /**
    * Instantiates a new Sub batch layer.
    *
@@ -47,6 +54,10 @@ public class SubBatchLayer extends WrapperLayer {
    */
   protected SubBatchLayer(@Nonnull final JsonObject json, Map<CharSequence, byte[]> rs) {
     super(json, rs);
+    JsonPrimitive batchSize = json.getAsJsonPrimitive("batchSize");
+    if (null != batchSize) this.batchSize = batchSize.getAsInt();
+    JsonPrimitive maxConcurrency = json.getAsJsonPrimitive("maxConcurrency");
+    if (null != maxConcurrency) this.maxConcurrency = maxConcurrency.getAsInt();
   }
 
   /**
@@ -58,6 +69,47 @@ public class SubBatchLayer extends WrapperLayer {
     super(inner);
   }
 
+  /**
+   * Gets the number of items in each micro-batch.
+   *
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Sets batch size.
+   *
+   * @param batchSize the batch size
+   */
+  public void setBatchSize(int batchSize) {
+    if (batchSize < 1) throw new IllegalArgumentException("batchSize: " + batchSize);
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Gets the maximum number of micro-batches evaluated at once.
+   *
+   * @return the max concurrency
+   */
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  /**
+   * Sets the maximum number of micro-batches evaluated at once. Above one, the inner layer is
+   * evaluated concurrently on pool threads, so it must not keep per-evaluation state: layers such as
+   * {@link AvgMetaLayer}, which caches its last result, or {@link BinaryNoiseLayer}, which caches its
+   * masks, are not safe here. Noise layers also lose a seed set by {@link NoiseGenerator#withSeed}.
+   *
+   * @param maxConcurrency the max concurrency
+   */
+  public void setMaxConcurrency(int maxConcurrency) {
+    if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency: " + maxConcurrency);
+    this.maxConcurrency = maxConcurrency;
+  }
+
   @Override
   public RefList<Layer> getChildren() {
     return super.getChildren();
@@ -88,13 +140,48 @@ public class SubBatchLayer extends WrapperLayer {
     return new SubBatchLayer(layer);
   }
 
+  /**
+   * Runs a task for each micro-batch, with at most the given number running at once. Micro-batches are
+   * dealt round-robin to that many sequential lanes.
+   *
+   * @param count       the number of micro-batches
+   * @param concurrency the concurrency
+   * @param task        the task
+   */
+  static void forEachBatch(final int count, final int concurrency, @Nonnull final IntConsumer task) {
+    final int lanes = Math.max(1, Math.min(count, concurrency));
+    if (1 == lanes) {
+      for (int batch = 0; batch < count; batch++) {
+        task.accept(batch);
+      }
+    } else {
+      RefIntStream.range(0, lanes).parallel().forEach(lane -> {
+        for (int batch = lane; batch < count; batch += lanes) {
+          task.accept(batch);
+        }
+      });
+    }
+  }
+
+  @Nonnull
+  private static TensorArray slice(@Nonnull final TensorList data, final int start, final int end) {
+    Tensor[] tensors = new Tensor[end - start];
+    for (int i = start; i < end; i++) {
+      tensors[i - start] = data.get(i);
+    }
+    data.freeRef();
+    return new TensorArray(tensors);
+  }
+
   @Nullable
   @Override
   public Result eval(@Nonnull final Result... inputs) {
     Layer inner = getInner();
     TensorList data0 = inputs[0].getData();
-    int batches = data0.length();
+    final int items = data0.length();
     data0.freeRef();
+    final int batchSize = this.batchSize;
+    final int batches = (items + batchSize - 1) / batchSize;
     Tensor[][] passbackBuffer = RefIntStream.range(0, inputs.length)
         .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Tensor[]>) inputIndex -> {
           TensorList data = inputs[inputIndex].getData();
@@ -102,30 +189,39 @@ public class SubBatchLayer extends WrapperLayer {
           data.freeRef();
           return tensors;
         }, RefUtil.addRef(inputs))).toArray(Tensor[][]::new);
-    Result[] batchResults = RefIntStream.range(0, batches)
-        .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Result>) batchIndex -> {
-          assert inner != null;
-          return inner.eval(RefIntStream.range(0, inputs.length)
-              .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Result>) inputIndex -> {
-                Tensor[] tensors = RefUtil.addRef(passbackBuffer[inputIndex]);
-                Result.Accumulator accumulator = new SubAccumulator(tensors, batchIndex);
-                TensorList tensorList = inputs[inputIndex].getData();
-                Result result = new Result(new TensorArray(tensorList.get(batchIndex)), accumulator);
-                tensorList.freeRef();
-                return result;
-              }, RefUtil.addRef(passbackBuffer), RefUtil.addRef(inputs))).<Result>toArray(Result[]::new));
-        }, RefUtil.addRef(passbackBuffer), RefUtil.addRef(inputs), inner == null ? null : inner.addRef()))
-        .toArray(Result[]::new);
+    Result[] batchResults = new Result[batches];
+    final Tensor[] outputs = new Tensor[items];
+    forEachBatch(batches, maxConcurrency, RefUtil.wrapInterface((IntConsumer) batchIndex -> {
+      final int start = batchIndex * batchSize;
+      final int end = Math.min(items, start + batchSize);
+      assert inner != null;
+      Result result = inner.eval(RefIntStream.range(0, inputs.length)
+          .mapToObj(RefUtil.wrapInterface((IntFunction<? extends Result>) inputIndex -> {
+            Tensor[] tensors = RefUtil.addRef(passbackBuffer[inputIndex]);
+            Result.Accumulator accumulator = new SubAccumulator(tensors, start);
+            return new Result(slice(inputs[inputIndex].getData(), start, end), accumulator);
+          }, RefUtil.addRef(passbackBuffer), RefUtil.addRef(inputs))).<Result>toArray(Result[]::new));
+      TensorList resultData = result.getData();
+      for (int i = start; i < end; i++) {
+        RefUtil.set(outputs, i, resultData.get(i - start));
+      }
+      resultData.freeRef();
+      RefUtil.set(batchResults, batchIndex, result);
+    }, RefUtil.addRef(passbackBuffer), RefUtil.addRef(inputs), inner == null ? null : inner.addRef(),
+        RefUtil.addRef(outputs), RefUtil.addRef(batchResults)));
     if (null != inner)
       inner.freeRef();
-    TensorArray resultData = new TensorArray(RefArrays.stream(RefUtil.addRef(batchResults)).map(result -> {
-      TensorList tensorList = result.getData();
-      result.freeRef();
-      Tensor tensor = tensorList.get(0);
-      tensorList.freeRef();
-      return tensor;
-    }).toArray(Tensor[]::new));
-    return new Result(resultData, new MainAccumulator(batchResults, passbackBuffer, inputs));
+    return new Result(new TensorArray(outputs),
+        new MainAccumulator(batchResults, passbackBuffer, batchSize, maxConcurrency, inputs));
+  }
+
+  @Nonnull
+  @Override
+  public JsonObject getJson(Map<CharSequence, byte[]> resources, DataSerializer dataSerializer) {
+    @Nonnull final JsonObject json = super.getJson(resources, dataSerializer);
+    json.addProperty("batchSize", batchSize);
+    json.addProperty("maxConcurrency", maxConcurrency);
+    return json;
   }
 
   public @SuppressWarnings("unused")
@@ -143,24 +239,28 @@ public class SubBatchLayer extends WrapperLayer {
   private static class SubAccumulator extends Result.Accumulator {
 
     private final Tensor[] tensors;
-    private final int batchIndex;
+    private final int offset;
 
     /**
      * Instantiates a new Sub accumulator.
      *
-     * @param tensors    the tensors
-     * @param batchIndex the batch index
+     * @param tensors the tensors
+     * @param offset  the index of the micro-batch's first item
      */
-    public SubAccumulator(Tensor[] tensors, int batchIndex) {
+    public SubAccumulator(Tensor[] tensors, int offset) {
       this.tensors = tensors;
-      this.batchIndex = batchIndex;
+      this.offset = offset;
     }
 
     @Override
     public void accept(@Nullable DeltaSet<UUID> deltaBuffer, @Nonnull TensorList deltaSignal) {
       if (null != deltaBuffer)
         deltaBuffer.freeRef();
-      RefUtil.set(tensors, batchIndex, deltaSignal.get(0));
+      // Micro-batches own disjoint slots, so these writes need no lock
+      final int length = deltaSignal.length();
+      for (int i = 0; i < length; i++) {
+        RefUtil.set(tensors, offset + i, deltaSignal.get(i));
+      }
       deltaSignal.freeRef();
     }
 
@@ -175,6 +275,8 @@ public class SubBatchLayer extends WrapperLayer {
 
     private final Result[] batchResults;
     private final Tensor[][] passbackBuffer;
+    private final int batchSize;
+    private final int maxConcurrency;
     private final Result[] inputs;
 
     /**
@@ -182,39 +284,49 @@ public class SubBatchLayer extends WrapperLayer {
      *
      * @param batchResults   the batch results
      * @param passbackBuffer the passback buffer
+     * @param batchSize      the batch size
+     * @param maxConcurrency the max concurrency
      * @param inputs         the inputs
      */
-    public MainAccumulator(Result[] batchResults, Tensor[][] passbackBuffer, Result... inputs) {
+    public MainAccumulator(Result[] batchResults, Tensor[][] passbackBuffer, int batchSize, int maxConcurrency,
+                           Result... inputs) {
       this.batchResults = batchResults;
       this.passbackBuffer = passbackBuffer;
+      this.batchSize = batchSize;
+      this.maxConcurrency = maxConcurrency;
       this.inputs = inputs;
     }
 
     @Override
     public void accept(@Nullable DeltaSet<UUID> deltaBuffer, @Nonnull TensorList deltaSignal) {
-      RefIntStream.range(0, deltaSignal.length()).forEach(RefUtil.wrapInterface(batchIndex -> {
-            TensorArray tensorArray = new TensorArray(deltaSignal.get(batchIndex));
-            Result.Accumulator temp_10_0012 = batchResults[batchIndex].getAccumulator();
-            assert temp_10_0012 != null;
-            temp_10_0012.accept(deltaBuffer == null ? null : deltaBuffer.addRef(),
-                tensorArray.addRef());
-            temp_10_0012.freeRef();
-            tensorArray.freeRef();
+      final int items = deltaSignal.length();
+      forEachBatch(batchResults.length, maxConcurrency, RefUtil.wrapInterface((IntConsumer) batchIndex -> {
+            final int start = batchIndex * batchSize;
+            final int end = Math.min(items, start + batchSize);
+            Result.Accumulator accumulator = batchResults[batchIndex].getAccumulator();
+            assert accumulator != null;
+            accumulator.accept(deltaBuffer == null ? null : deltaBuffer.addRef(),
+                slice(deltaSignal.addRef(), start, end));
+            accumulator.freeRef();
           }, deltaSignal.addRef(), RefUtil.addRef(batchResults),
           deltaBuffer == null ? null : deltaBuffer.addRef()));
       deltaSignal.freeRef();
-      synchronized (passbackBuffer) {
-        RefIntStream.range(0, inputs.length).forEach(RefUtil.wrapInterface(inputIndex -> {
-              TensorArray tensorArray = new TensorArray(RefUtil.addRef(passbackBuffer[inputIndex]));
-              Result.Accumulator temp_10_0013 = inputs[inputIndex].getAccumulator();
-              assert temp_10_0013 != null;
-              temp_10_0013.accept(deltaBuffer == null ? null : deltaBuffer.addRef(),
-                  tensorArray.addRef());
-              temp_10_0013.freeRef();
-              tensorArray.freeRef();
-            }, RefUtil.addRef(passbackBuffer), RefUtil.addRef(inputs),
-            deltaBuffer == null ? null : deltaBuffer.addRef()));
-      }
+      RefIntStream.range(0, inputs.length).forEach(RefUtil.wrapInterface(inputIndex -> {
+            Tensor[] passback = passbackBuffer[inputIndex];
+            TensorList data = inputs[inputIndex].getData();
+            int[] dimensions = data.getDimensions();
+            data.freeRef();
+            Tensor[] tensors = new Tensor[passback.length];
+            for (int i = 0; i < passback.length; i++) {
+              // An inner layer that ignores an input never writes its slots
+              tensors[i] = null == passback[i] ? new Tensor(dimensions) : passback[i].addRef();
+            }
+            Result.Accumulator accumulator = inputs[inputIndex].getAccumulator();
+            assert accumulator != null;
+            accumulator.accept(deltaBuffer == null ? null : deltaBuffer.addRef(), new TensorArray(tensors));
+            accumulator.freeRef();
+          }, RefUtil.addRef(passbackBuffer), RefUtil.addRef(inputs),
+          deltaBuffer == null ? null : deltaBuffer.addRef()));
       if (null != deltaBuffer)
         deltaBuffer.freeRef();
     }
@@ -23,7 +23,6 @@ import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefArrays;
-import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,7 +31,6 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Map;
 import java.util.UUID;
-import java.util.function.Consumer;
 
 /**
  * The type Sum meta layer.
@@ -109,18 +107,10 @@ public class SumMetaLayer extends LayerBase {
     TensorList inputData = input.getData();
     final int itemCnt = inputData.length();
     if (null == lastResult || minBatches < itemCnt) {
-      Tensor data0 = inputData.get(0);
-      Tensor mapCoords = data0.mapCoords(RefUtil
-          .wrapInterface(c -> RefIntStream.range(0, itemCnt).mapToDouble(RefUtil.wrapInterface(dataIndex -> {
-            Tensor tensor = inputData.get(dataIndex);
-            double temp_13_0004 = tensor.get(c);
-            tensor.freeRef();
-            return temp_13_0004;
-          }, inputData.addRef())).sum(), inputData.addRef()));
-      data0.freeRef();
+      Tensor sum = new Tensor(BatchReductions.sum(inputData.addRef()), inputData.getDimensions());
       if (null != lastResult)
         lastResult.freeRef();
-      lastResult = mapCoords;
+      lastResult = sum;
     }
     inputData.freeRef();
     boolean alive = input.isAlive();
@@ -184,17 +174,9 @@ public class SumMetaLayer extends LayerBase {
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList data) {
       if (alive) {
         @Nullable final Tensor delta = data.get(0);
-        @Nonnull final Tensor feedback[] = new Tensor[itemCnt];
-        RefArrays.parallelSetAll(RefUtil.addRef(feedback),
-            RefUtil.wrapInterface(i -> new Tensor(delta.getDimensions()), delta.addRef()));
-
-        delta.coordStream(false).forEach(RefUtil.wrapInterface((Consumer<? super Coordinate>) inputCoord -> {
-          for (int inputItem = 0; inputItem < itemCnt; inputItem++) {
-            feedback[inputItem].add(inputCoord, delta.get(inputCoord));
-          }
-        }, RefUtil.addRef(feedback), delta));
         @Nonnull
-        TensorArray tensorArray = new TensorArray(feedback);
+        TensorArray tensorArray = BatchReductions.broadcast(delta.getData(), delta.getDimensions(), itemCnt, 1.0);
+        delta.freeRef();
         DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
 
         this.accumulator.accept(buffer1, tensorArray);
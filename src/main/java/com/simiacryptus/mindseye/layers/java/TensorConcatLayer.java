@@ -23,10 +23,8 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.ref.lang.RefUtil;
-import com.simiacryptus.ref.wrappers.RefArrayList;
 import com.simiacryptus.ref.wrappers.RefArrays;
 import com.simiacryptus.ref.wrappers.RefList;
-import com.simiacryptus.ref.wrappers.RefSystem;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -111,7 +109,7 @@ public class TensorConcatLayer extends LayerBase {
       x.freeRef();
       return temp_09_0004;
     }) : "All inputs must use same batch size";
-    TensorArray data = fwd(numBatches, RefUtil.addRef(inObj));
+    TensorArray data = fwd(RefUtil.addRef(inObj));
     boolean alive = anyAlive(RefUtil.addRef(inObj));
     Accumulator accumulator = new Accumulator(numBatches, inObj);
     return new Result(data, accumulator, alive);
@@ -145,36 +143,15 @@ public class TensorConcatLayer extends LayerBase {
   }
 
   @NotNull
-  private TensorArray fwd(int numBatches, @Nonnull Result[] inObj) {
-    @Nonnull final RefList<Tensor> outputTensors = new RefArrayList<>();
-    int[] outputDims = new int[]{RefArrays.stream(RefUtil.addRef(inObj)).mapToInt(x -> {
-      TensorList temp_09_0011 = x.getData();
-      int temp_09_0005 = Tensor.length(temp_09_0011.getDimensions());
-      temp_09_0011.freeRef();
-      x.freeRef();
-      return temp_09_0005;
-    }).sum()};
-    for (int b = 0; b < numBatches; b++) {
-      @Nonnull final Tensor outputTensor = new Tensor(outputDims);
-      int pos = 0;
-      @Nullable final double[] outputTensorData = outputTensor.getData();
-      for (int i = 0; i < inObj.length; i++) {
-        TensorList data_i = inObj[i].getData();
-        @Nullable
-        Tensor tensor = data_i.get(b);
-        data_i.freeRef();
-        @Nullable final double[] data = tensor.getData();
-        tensor.freeRef();
-        RefSystem.arraycopy(data, 0, outputTensorData, pos,
-            Math.min(data.length, outputTensorData.length - pos));
-        pos += data.length;
-      }
-      outputTensors.add(outputTensor);
+  private TensorArray fwd(@Nonnull Result[] inObj) {
+    @Nonnull final TensorList[] inputs = new TensorList[inObj.length];
+    int outputLength = 0;
+    for (int i = 0; i < inObj.length; i++) {
+      inputs[i] = inObj[i].getData();
+      outputLength += Tensor.length(inputs[i].getDimensions());
     }
     RefUtil.freeRef(inObj);
-    TensorArray tensorArray = new TensorArray(outputTensors.toArray(new Tensor[]{}));
-    outputTensors.freeRef();
-    return tensorArray;
+    return SlicedTensorList.concat(inputs, new int[]{outputLength});
   }
 
   private static class Accumulator extends Result.Accumulator {
@@ -196,67 +173,26 @@ public class TensorConcatLayer extends LayerBase {
     @Override
     public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList data) {
       assert numBatches == data.length();
-
-      @Nonnull final RefList<Tensor[]> splitBatches = new RefArrayList<>();
-      for (int b = 0; b < numBatches; b++) {
-        @Nullable final Tensor tensor = data.get(b);
-        @Nonnull final Tensor[] outputTensors2 = new Tensor[inObj.length];
-        int pos = 0;
-        for (int i = 0; i < inObj.length; i++) {
-          TensorList temp_09_0013 = inObj[i].getData();
-          @Nonnull final Tensor dest = new Tensor(temp_09_0013.getDimensions());
-          temp_09_0013.freeRef();
-          @Nullable
-          double[] tensorData = tensor.getData();
-          RefSystem.arraycopy(tensorData, pos, dest.getData(), 0,
-              Math.min(dest.length(), tensorData.length - pos));
-          pos += dest.length();
-          RefUtil.set(outputTensors2, i, dest.addRef());
-          dest.freeRef();
-        }
-        tensor.freeRef();
-        splitBatches.add(RefUtil.addRef(outputTensors2));
-        RefUtil.freeRef(outputTensors2);
-      }
-
-      data.freeRef();
-      @Nonnull final Tensor[][] splitData = new Tensor[inObj.length][];
-      for (int i = 0; i < splitData.length; i++) {
-        RefUtil.set(splitData, i, new Tensor[numBatches]);
-      }
+      // Each input receives a view of its slice of the delta; nothing is split up front
+      int offset = 0;
       for (int i = 0; i < inObj.length; i++) {
-        for (int b = 0; b < numBatches; b++) {
-          Tensor[] tensors = splitBatches.get(b);
-          assert tensors != null;
-          RefUtil.set(splitData[i], b, tensors[i].addRef());
-          RefUtil.freeRef(tensors);
+        TensorList inputData = inObj[i].getData();
+        @Nonnull final int[] inputDims = inputData.getDimensions();
+        inputData.freeRef();
+        if (inObj[i].isAlive()) {
+          DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
+          Result.Accumulator accumulator = inObj[i].getAccumulator();
+          try {
+            accumulator.accept(buffer1, new SlicedTensorList(data.addRef(), offset, inputDims));
+          } finally {
+            accumulator.freeRef();
+          }
         }
+        offset += Tensor.length(inputDims);
       }
-
-      splitBatches.freeRef();
-      for (int i = 0; i < inObj.length; i++) {
-        TensorArray wrap = new TensorArray(RefUtil.addRef(splitData[i]));
-        DeltaSet<UUID> buffer1 = buffer == null ? null : buffer.addRef();
-        Result.Accumulator accumulator = inObj[i].getAccumulator();
-        try {
-          accumulator.accept(buffer1, wrap.addRef());
-        } finally {
-          accumulator.freeRef();
-        }
-//        if (0 < wrap.currentRefCount()) {
-//          RefUtil.freeRef(splitData);
-//          RuntimeException temp_09_0007 = new RuntimeException(
-//              inObj[i].getClass() + " leak: " + wrap.currentRefCount());
-//          wrap.freeRef();
-//          if (null != buffer)
-//            buffer.freeRef();
-//          throw temp_09_0007;
-//        }
-        wrap.freeRef();
-      }
+      data.freeRef();
       if (null != buffer)
         buffer.freeRef();
-      RefUtil.freeRef(splitData);
     }
 
     public @SuppressWarnings("unused")
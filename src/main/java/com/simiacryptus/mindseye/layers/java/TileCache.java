@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.ref.wrappers.RefArrays;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.util.MonitoredItem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte-bounded LRU cache of subnetwork outputs keyed by a content hash of the input tile, the
+ * subnetwork id and a hash of the subnetwork's weights, used by {@link ImgTileSubnetLayer} to skip
+ * evaluating duplicate tiles. Entries computed with earlier weights are never matched again and age
+ * out of the cache.
+ */
+public class TileCache implements MonitoredItem {
+
+  private final long maxBytes;
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+  private long bytes = 0;
+
+  /**
+   * Instantiates a new Tile cache.
+   *
+   * @param maxBytes the max bytes
+   */
+  public TileCache(final long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Hashes the weights of a layer, as returned by {@link Layer#state()}.
+   *
+   * @param layer the layer
+   * @return the hash
+   */
+  public static long stateHash(@Nonnull final Layer layer) {
+    long h = 0x9E3779B97F4A7C15L;
+    RefList<double[]> state = layer.state();
+    layer.freeRef();
+    if (null == state) return mix(h);
+    for (int i = 0; i < state.size(); i++) {
+      final double[] values = state.get(i);
+      h = Long.rotateLeft(h ^ values.length, 27) * 0x9E3779B97F4A7C15L;
+      for (double v : values) {
+        h = Long.rotateLeft(h ^ Double.doubleToLongBits(v), 27) * 0x9E3779B97F4A7C15L;
+      }
+    }
+    state.freeRef();
+    return mix(h);
+  }
+
+  /**
+   * Hashes a batch of tiles for a given subnetwork and weight hash.
+   *
+   * @param layerId   the layer id
+   * @param stateHash the weight hash
+   * @param tiles     the tiles
+   * @return the key
+   */
+  @Nonnull
+  public static Key key(@Nonnull final UUID layerId, final long stateHash, @Nonnull final TensorList tiles) {
+    long h1 = 0x9E3779B97F4A7C15L ^ stateHash;
+    long h2 = 0xC2B2AE3D27D4EB4FL;
+    final int length = tiles.length();
+    for (int i = 0; i < length; i++) {
+      Tensor tile = tiles.get(i);
+      for (double v : tile.getData()) {
+        long bits = Double.doubleToLongBits(v);
+        h1 = Long.rotateLeft(h1 ^ bits, 27) * 0x9E3779B97F4A7C15L;
+        h2 = Long.rotateLeft(h2 + bits, 31) * 0xFF51AFD7ED558CCDL;
+      }
+      tile.freeRef();
+    }
+    Key key = new Key(layerId, stateHash, tiles.getDimensions(), length, mix(h1), mix(h2));
+    tiles.freeRef();
+    return key;
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Gets the cached output for a key, or null on a miss.
+   *
+   * @param key the key
+   * @return the tensor list
+   */
+  @Nullable
+  public TensorList get(@Nonnull final Key key) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (null == entry) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    Tensor[] tensors = new Tensor[entry.data.length];
+    for (int i = 0; i < tensors.length; i++) {
+      tensors[i] = new Tensor(entry.data[i].clone(), RefArrays.copyOf(entry.dims, entry.dims.length));
+    }
+    return new TensorArray(tensors);
+  }
+
+  /**
+   * Stores a copy of an output, evicting the least recently used entries beyond the byte limit.
+   *
+   * @param key    the key
+   * @param output the output
+   */
+  public void put(@Nonnull final Key key, @Nonnull final TensorList output) {
+    final int length = output.length();
+    double[][] data = new double[length][];
+    long size = 0;
+    for (int i = 0; i < length; i++) {
+      Tensor tensor = output.get(i);
+      data[i] = tensor.getData().clone();
+      size += (long) data[i].length * Double.BYTES;
+      tensor.freeRef();
+    }
+    Entry entry = new Entry(output.getDimensions(), data, size);
+    output.freeRef();
+    if (size > maxBytes) return;
+    synchronized (entries) {
+      Entry previous = entries.put(key, entry);
+      if (null != previous) bytes -= previous.bytes;
+      bytes += size;
+      Iterator<Entry> iterator = entries.values().iterator();
+      while (bytes > maxBytes && iterator.hasNext()) {
+        bytes -= iterator.next().bytes;
+        iterator.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Clear.
+   */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+      bytes = 0;
+    }
+  }
+
+  /**
+   * Gets hit rate.
+   *
+   * @return the hit rate
+   */
+  public double getHitRate() {
+    long hits = this.hits.get();
+    long total = hits + misses.get();
+    return 0 == total ? 0 : (double) hits / total;
+  }
+
+  @Nonnull
+  @Override
+  public Map<CharSequence, Object> getMetrics() {
+    @Nonnull final HashMap<CharSequence, Object> map = new HashMap<>();
+    map.put("hits", hits.get());
+    map.put("misses", misses.get());
+    map.put("hitRate", getHitRate());
+    map.put("evictions", evictions.get());
+    synchronized (entries) {
+      map.put("entries", entries.size());
+      map.put("bytes", bytes);
+    }
+    map.put("maxBytes", maxBytes);
+    return map;
+  }
+
+  /**
+   * A content hash of a batch of tiles, together with the subnetwork it was evaluated by.
+   */
+  public static final class Key {
+    private final UUID layerId;
+    private final long stateHash;
+    private final int[] inputDims;
+    private final int length;
+    private final long hash1;
+    private final long hash2;
+
+    private Key(@Nonnull UUID layerId, long stateHash, @Nonnull int[] inputDims, int length, long hash1, long hash2) {
+      this.layerId = layerId;
+      this.stateHash = stateHash;
+      this.inputDims = inputDims;
+      this.length = length;
+      this.hash1 = hash1;
+      this.hash2 = hash2;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key key = (Key) o;
+      return length == key.length && stateHash == key.stateHash && hash1 == key.hash1 && hash2 == key.hash2
+          && layerId.equals(key.layerId) && Arrays.equals(inputDims, key.inputDims);
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(hash1);
+    }
+  }
+
+  private static final class Entry {
+    private final int[] dims;
+    private final double[][] data;
+    private final long bytes;
+
+    private Entry(@Nonnull int[] dims, @Nonnull double[][] data, long bytes) {
+      this.dims = dims;
+      this.data = data;
+      this.bytes = bytes;
+    }
+  }
+}
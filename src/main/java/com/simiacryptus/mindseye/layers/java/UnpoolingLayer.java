@@ -145,6 +145,24 @@ public class UnpoolingLayer extends LayerBase {
     return outputData;
   }
 
+  /**
+   * Gets size x.
+   *
+   * @return the size x
+   */
+  public int getSizeX() {
+    return sizeX;
+  }
+
+  /**
+   * Gets size y.
+   *
+   * @return the size y
+   */
+  public int getSizeY() {
+    return sizeY;
+  }
+
   /**
    * From json unpooling layer.
    *
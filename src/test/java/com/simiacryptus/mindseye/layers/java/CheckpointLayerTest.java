@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.LayerTestBase;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The type Checkpoint layer test.
+ */
+public abstract class CheckpointLayerTest extends LayerTestBase {
+
+  @Nonnull
+  @Override
+  public Layer getLayer() {
+    PipelineNetwork subnetwork = new PipelineNetwork(1);
+    RefUtil.freeRef(subnetwork.add(new BiasLayer(3)));
+    RefUtil.freeRef(subnetwork.add(new SigmoidActivationLayer()));
+    return new CheckpointLayer(subnetwork);
+  }
+
+  @Nonnull
+  @Override
+  public int[][] getSmallDims() {
+    return new int[][]{{3}};
+  }
+
+  /**
+   * The type Basic.
+   */
+  public static class Basic extends CheckpointLayerTest {
+
+  }
+
+  /**
+   * The type Stochastic.
+   */
+  public static class Stochastic extends CheckpointLayerTest {
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      PipelineNetwork subnetwork = new PipelineNetwork(1);
+      RefUtil.freeRef(subnetwork.add(new BiasLayer(3)));
+      RefUtil.freeRef(subnetwork.add(new DropoutNoiseLayer(0.5)));
+      return new CheckpointLayer(subnetwork);
+    }
+
+    /**
+     * A backward pass run outside the forward pass's context seed still sees the forward noise.
+     */
+    @Test
+    public void replaysContextSeed() {
+      CheckpointLayer layer = new CheckpointLayer(new DropoutNoiseLayer(0.5));
+      final double[] ones = new double[64];
+      Arrays.fill(ones, 1.0);
+      final double[][] gradient = new double[1][];
+      Result input = new Result(new TensorArray(new Tensor(ones, ones.length)), new Result.Accumulator() {
+        @Override
+        public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+          Tensor tensor = delta.get(0);
+          gradient[0] = tensor.getData().clone();
+          tensor.freeRef();
+          delta.freeRef();
+          if (null != buffer) buffer.freeRef();
+        }
+      }, true);
+      Result output = NoiseGenerator.withSeed(99, () -> layer.eval(input));
+      layer.freeRef();
+      TensorList data = output.getData();
+      Result.Accumulator accumulator = output.getAccumulator();
+      output.freeRef();
+      accumulator.accept(null, new TensorArray(new Tensor(ones, ones.length)));
+      accumulator.freeRef();
+      Tensor forward = data.get(0);
+      data.freeRef();
+      // With unit inputs and deltas, both passes reduce to the dropout mask
+      Assertions.assertArrayEquals(forward.getData(), gradient[0], 0.0);
+      forward.freeRef();
+    }
+
+    /**
+     * Running statistics are updated by the forward pass only, not by its recomputation.
+     */
+    @Test
+    public void updatesRunningStatsOnce() {
+      StdDevMetaLayer inner = new StdDevMetaLayer();
+      inner.setMomentum(0.5);
+      CheckpointLayer layer = new CheckpointLayer(inner.addRef());
+      RefUtil.freeRef(layer.eval(new Result(new TensorArray(
+          new Tensor(new double[]{1, 2, 3}, 3), new Tensor(new double[]{2, 3, 4}, 3)))));
+      Result output = layer.eval(new Result(new TensorArray(
+          new Tensor(new double[]{5, 7, 9}, 3), new Tensor(new double[]{9, 8, 7}, 3))));
+      final double mean = inner.getRunningMean();
+      final double variance = inner.getRunningVariance();
+      Result.Accumulator accumulator = output.getAccumulator();
+      output.freeRef();
+      accumulator.accept(null, new TensorArray(new Tensor(new double[]{1}, 1)));
+      accumulator.freeRef();
+      Assertions.assertEquals(mean, inner.getRunningMean(), 0.0);
+      Assertions.assertEquals(variance, inner.getRunningVariance(), 0.0);
+      inner.freeRef();
+      layer.freeRef();
+    }
+  }
+
+}
@@ -19,10 +19,15 @@
 
 package com.simiacryptus.mindseye.layers.java;
 
-import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.test.LayerTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Random;
+import java.util.UUID;
 
 /**
  * The type Cross difference layer test.
@@ -46,6 +51,85 @@ public abstract class CrossDifferenceLayerTest extends LayerTestBase {
    */
   public static class Basic extends CrossDifferenceLayerTest {
 
+    /**
+     * An input spanning several row blocks, the last one partial, matches the unblocked reference
+     * both forward and backward.
+     */
+    @Test
+    public void matchesReferenceAcrossBlocks() {
+      final int n = 150;
+      final Random random = new Random(13);
+      final double[][] inputs = random(random, 2, n);
+      final double[][] deltas = random(random, 2, PackedTriangle.outputDim(n));
+      final double[][][] results = evalBoth(new CrossDifferenceLayer(), inputs, deltas);
+      for (int item = 0; item < inputs.length; item++) {
+        final double[] in = inputs[item];
+        final double[] d = deltas[item];
+        final double[] passback = new double[n];
+        for (int x = 0; x < n; x++) {
+          for (int y = x + 1; y < n; y++) {
+            final int index = CrossDifferenceLayer.index(x, y, n);
+            Assertions.assertEquals(in[x] - in[y], results[0][item][index], 1e-12);
+            passback[x] += d[index];
+            passback[y] -= d[index];
+          }
+        }
+        Assertions.assertArrayEquals(passback, results[1][item], 1e-9);
+      }
+    }
+
+    @Nonnull
+    private static double[][][] evalBoth(@Nonnull Layer layer, @Nonnull double[][] inputs, @Nonnull double[][] deltas) {
+      final double[][] gradient = new double[inputs.length][];
+      Result input = new Result(tensors(inputs), new Result.Accumulator() {
+        @Override
+        public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+          for (int i = 0; i < gradient.length; i++) {
+            Tensor tensor = delta.get(i);
+            gradient[i] = tensor.getData().clone();
+            tensor.freeRef();
+          }
+          delta.freeRef();
+          if (null != buffer) buffer.freeRef();
+        }
+      }, true);
+      Result result = layer.eval(input);
+      layer.freeRef();
+      TensorList data = result.getData();
+      Result.Accumulator accumulator = result.getAccumulator();
+      result.freeRef();
+      accumulator.accept(null, tensors(deltas));
+      accumulator.freeRef();
+      final double[][] outputs = new double[inputs.length][];
+      for (int i = 0; i < outputs.length; i++) {
+        Tensor tensor = data.get(i);
+        outputs[i] = tensor.getData().clone();
+        tensor.freeRef();
+      }
+      data.freeRef();
+      return new double[][][]{outputs, gradient};
+    }
+
+    @Nonnull
+    private static double[][] random(@Nonnull Random random, int items, int dim) {
+      final double[][] rows = new double[items][dim];
+      for (double[] row : rows) {
+        for (int i = 0; i < dim; i++) {
+          row[i] = random.nextGaussian();
+        }
+      }
+      return rows;
+    }
+
+    @Nonnull
+    private static TensorList tensors(@Nonnull double[][] rows) {
+      final Tensor[] tensors = new Tensor[rows.length];
+      for (int i = 0; i < rows.length; i++) {
+        tensors[i] = new Tensor(rows[i].clone(), rows[i].length);
+      }
+      return new TensorArray(tensors);
+    }
+
   }
 
 }
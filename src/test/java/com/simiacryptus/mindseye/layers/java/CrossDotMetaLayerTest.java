@@ -19,11 +19,16 @@
 
 package com.simiacryptus.mindseye.layers.java;
 
-import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.test.LayerTestBase;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Random;
+import java.util.UUID;
 
 /**
  * The type Cross dot meta layer test.
@@ -59,6 +64,76 @@ public abstract class CrossDotMetaLayerTest extends LayerTestBase {
    */
   public static class Basic extends CrossDotMetaLayerTest {
 
+    /**
+     * With more than two blocks of dimensions and of items, including partial ones, the blocked
+     * product and its backward pass match the naive loops.
+     */
+    @Test
+    public void matchesNaiveBlocked() {
+      final int dim = 130;
+      final int itemCnt = 70;
+      final Random random = new Random(7);
+      final double[][] x = new double[itemCnt][dim];
+      for (double[] row : x) {
+        for (int i = 0; i < dim; i++) {
+          row[i] = random.nextGaussian();
+        }
+      }
+      final double[] d = new double[dim * dim];
+      for (int i = 0; i < d.length; i++) {
+        d[i] = random.nextGaussian();
+      }
+      final double[] packed = new double[itemCnt * dim];
+      for (int k = 0; k < itemCnt; k++) {
+        System.arraycopy(x[k], 0, packed, k * dim, dim);
+      }
+      final double[] gram = CrossDotMetaLayer.gram(packed, itemCnt, dim);
+      for (int i = 0; i < dim; i++) {
+        for (int j = 0; j < dim; j++) {
+          double v = 0;
+          if (i != j) {
+            for (int k = 0; k < itemCnt; k++) {
+              v += x[k][i] * x[k][j];
+            }
+          }
+          Assertions.assertEquals(v, gram[i * dim + j], 1e-9, i + "," + j);
+        }
+      }
+      final double[][] gradient = new double[itemCnt][];
+      final Tensor[] tensors = new Tensor[itemCnt];
+      for (int k = 0; k < itemCnt; k++) {
+        tensors[k] = new Tensor(x[k].clone(), dim);
+      }
+      Result input = new Result(new TensorArray(tensors), new Result.Accumulator() {
+        @Override
+        public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+          for (int k = 0; k < gradient.length; k++) {
+            Tensor tensor = delta.get(k);
+            gradient[k] = tensor.getData().clone();
+            tensor.freeRef();
+          }
+          delta.freeRef();
+          if (null != buffer) buffer.freeRef();
+        }
+      }, true);
+      CrossDotMetaLayer layer = new CrossDotMetaLayer();
+      Result result = layer.eval(input);
+      layer.freeRef();
+      Result.Accumulator accumulator = result.getAccumulator();
+      result.freeRef();
+      accumulator.accept(null, new TensorArray(new Tensor(d.clone(), dim, dim)));
+      accumulator.freeRef();
+      for (int k = 0; k < itemCnt; k++) {
+        for (int m = 0; m < dim; m++) {
+          double v = 0;
+          for (int j = 0; j < dim; j++) {
+            if (j != m) v += (d[m + j * dim] + d[j + m * dim]) * x[k][j];
+          }
+          Assertions.assertEquals(v, gradient[k][m], 1e-9, k + "," + m);
+        }
+      }
+    }
+
   }
 
 }
@@ -19,12 +19,17 @@
 
 package com.simiacryptus.mindseye.layers.java;
 
-import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.test.LayerTestBase;
 import com.simiacryptus.mindseye.test.unit.SingleDerivativeTester;
 import com.simiacryptus.util.Util;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.UUID;
 
 /**
  * The type Entropy loss layer test.
@@ -60,4 +65,87 @@ public abstract class EntropyLossLayerTest extends LayerTestBase {
 
   }
 
+  /**
+   * The type Sparse.
+   */
+  public static class Sparse extends EntropyLossLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      EntropyLossLayer layer = new EntropyLossLayer();
+      layer.setSparse(true);
+      return layer;
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{4}, {1}};
+    }
+
+    /**
+     * Class index targets give the same loss and input gradient as dense one-hot targets.
+     */
+    @Test
+    public void matchesDenseOneHot() {
+      final double[][] predictions = {{0.1, 0.2, 0.3, 0.4}, {0.7, 0.1, 0.1, 0.1}, {0.25, 0.25, 0.25, 0.25}};
+      final int[] classes = {3, 0, 2};
+      final double[][] indexTargets = new double[classes.length][];
+      final double[][] oneHotTargets = new double[classes.length][];
+      for (int i = 0; i < classes.length; i++) {
+        indexTargets[i] = new double[]{classes[i]};
+        oneHotTargets[i] = new double[4];
+        oneHotTargets[i][classes[i]] = 1;
+      }
+      final double[][] sparse = lossAndGradient(getLayer(), predictions, indexTargets);
+      final double[][] dense = lossAndGradient(new EntropyLossLayer(), predictions, oneHotTargets);
+      for (int i = 0; i < classes.length; i++) {
+        Assertions.assertArrayEquals(dense[i], sparse[i], 1e-12);
+      }
+    }
+
+    @Nonnull
+    private static double[][] lossAndGradient(@Nonnull Layer layer, @Nonnull double[][] predictions,
+                                              @Nonnull double[][] targets) {
+      final double[][] gradient = new double[predictions.length][];
+      Result input = new Result(tensors(predictions), new Result.Accumulator() {
+        @Override
+        public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+          for (int i = 0; i < gradient.length; i++) {
+            Tensor tensor = delta.get(i);
+            gradient[i] = tensor.getData().clone();
+            tensor.freeRef();
+          }
+          delta.freeRef();
+          if (null != buffer) buffer.freeRef();
+        }
+      }, true);
+      Result result = layer.eval(input, new Result(tensors(targets)));
+      layer.freeRef();
+      TensorList data = result.getData();
+      Result.Accumulator accumulator = result.getAccumulator();
+      result.freeRef();
+      final double[][] ones = new double[predictions.length][];
+      Arrays.fill(ones, new double[]{1});
+      accumulator.accept(null, tensors(ones));
+      accumulator.freeRef();
+      final double[][] values = new double[predictions.length][];
+      for (int i = 0; i < values.length; i++) {
+        Tensor loss = data.get(i);
+        values[i] = new double[1 + gradient[i].length];
+        values[i][0] = loss.get(0);
+        System.arraycopy(gradient[i], 0, values[i], 1, gradient[i].length);
+        loss.freeRef();
+      }
+      data.freeRef();
+      return values;
+    }
+
+    @Nonnull
+    private static TensorList tensors(@Nonnull double[][] rows) {
+      return new TensorArray(Arrays.stream(rows).map(row -> new Tensor(row.clone(), row.length)).toArray(Tensor[]::new));
+    }
+  }
+
 }
@@ -61,4 +61,19 @@ public abstract class ImgCropLayerTest extends LayerTestBase {
 
   }
 
+  /**
+   * The type View.
+   */
+  public static class View extends ImgCropLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ImgCropLayer layer = new ImgCropLayer(3, 5);
+      layer.setView(true);
+      return layer;
+    }
+
+  }
+
 }
@@ -20,8 +20,11 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.test.LayerTestBase;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
 
@@ -61,4 +64,90 @@ public abstract class ImgTileAssemblyLayerTest extends LayerTestBase {
 
   }
 
+  /**
+   * The type Toroidal.
+   */
+  public static class Toroidal extends ImgTileAssemblyLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ImgTileAssemblyLayer layer = new ImgTileAssemblyLayer(2, 3);
+      layer.setOffsetX(-1);
+      layer.setOffsetY(-1);
+      return layer;
+    }
+
+    /**
+     * A toroidal copy wraps the tile around the output edges, and an undefined position fraction
+     * keeps the whole tile.
+     */
+    @Test
+    public void wrapsAroundEdges() {
+      Tensor output = new Tensor(2, 2, 1);
+      ImgTileAssemblyLayer.copy(new Tensor(new double[]{1, 2, 3, 4}, 2, 2, 1), output.addRef(), -1, 1, 0, 0,
+          true, Double.NaN, Double.NaN);
+      Assertions.assertArrayEquals(new double[]{4, 3, 2, 1}, output.getData(), 0.0);
+      output.freeRef();
+    }
+
+  }
+
+  /**
+   * The type Single row.
+   */
+  public static class SingleRow extends ImgTileAssemblyLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      return new ImgTileAssemblyLayer(3, 1);
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{2, 2, 1}, {2, 2, 1}, {1, 2, 1}};
+    }
+
+    /**
+     * With one row or column the position fraction is 0 / 0; NaN trims no padding on either edge,
+     * while an interior tile loses half the padding on each side.
+     */
+    @Test
+    public void singleTileKeepsPadding() {
+      final double[] values = {1, 2, 3, 4};
+      Tensor whole = new Tensor(4, 1, 1);
+      ImgTileAssemblyLayer.copy(new Tensor(values.clone(), 4, 1, 1), whole.addRef(), 0, 0, 2, 0,
+          false, Double.NaN, Double.NaN);
+      Assertions.assertArrayEquals(values, whole.getData(), 0.0);
+      whole.freeRef();
+      Tensor interior = new Tensor(4, 1, 1);
+      ImgTileAssemblyLayer.copy(new Tensor(values.clone(), 4, 1, 1), interior.addRef(), 0, 0, 2, 0,
+          false, Double.NaN, 0.5);
+      Assertions.assertArrayEquals(new double[]{0, 2, 3, 0}, interior.getData(), 0.0);
+      interior.freeRef();
+    }
+
+  }
+
+  /**
+   * The type Single column.
+   */
+  public static class SingleColumn extends ImgTileAssemblyLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      return new ImgTileAssemblyLayer(1, 2);
+    }
+
+    @Nonnull
+    @Override
+    public int[][] getSmallDims() {
+      return new int[][]{{2, 2, 1}, {2, 1, 1}};
+    }
+
+  }
+
 }
@@ -61,4 +61,19 @@ public abstract class ImgTileSelectLayerTest extends LayerTestBase {
 
   }
 
+  /**
+   * The type View.
+   */
+  public static class View extends ImgTileSelectLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ImgTileSelectLayer layer = new ImgTileSelectLayer(3, 2, 2, 3);
+      layer.setView(true);
+      return layer;
+    }
+
+  }
+
 }
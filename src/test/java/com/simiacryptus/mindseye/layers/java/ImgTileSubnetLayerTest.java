@@ -20,9 +20,16 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.test.LayerTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The type Img tile subnet layer test.
@@ -48,6 +55,23 @@ public abstract class ImgTileSubnetLayerTest extends LayerTestBase {
           3, 3, 3, 3);
     }
 
+    /**
+     * Without a memory budget or an executor, every tile runs on the calling thread, where it sees
+     * the context seed.
+     */
+    @Test
+    public void sequentialByDefault() {
+      ImgTileSubnetLayer layer = new ImgTileSubnetLayer(new DropoutNoiseLayer(0.5), 3, 3, 3, 3);
+      Assertions.assertFalse(layer.isConcurrent());
+      long reads = NoiseGenerator.withSeed(5, () -> {
+        Result result = layer.eval(new Tensor(6, 6, 1));
+        result.freeRef();
+        return NoiseGenerator.getContextSeedReads();
+      });
+      Assertions.assertEquals(4, reads);
+      layer.freeRef();
+    }
+
   }
 
   /**
@@ -65,4 +89,75 @@ public abstract class ImgTileSubnetLayerTest extends LayerTestBase {
 
   }
 
+  /**
+   * The type Budgeted.
+   */
+  public static class Budgeted extends ImgTileSubnetLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ImgTileSubnetLayer layer = new ImgTileSubnetLayer(
+          new LinearActivationLayer(),
+          3, 3, 2, 2);
+      layer.setMemoryBudget(1);
+      return layer;
+    }
+
+  }
+
+  /**
+   * The type Concurrent.
+   */
+  public static class Concurrent extends ImgTileSubnetLayerTest {
+
+    private static final ForkJoinPool pool = new ForkJoinPool(2);
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ImgTileSubnetLayer layer = new ImgTileSubnetLayer(
+          new LinearActivationLayer(),
+          3, 3, 2, 2);
+      // Room for four single-item 3x3 tiles, so several tiles run at once on a small pool
+      layer.setMemoryBudget(4 * 2 * 3 * 3 * Double.BYTES);
+      layer.setExecutor(pool);
+      return layer;
+    }
+
+    /**
+     * A failure to submit a tile surfaces as itself once the started tiles have finished.
+     */
+    @Test
+    public void rejectedTile() {
+      ImgTileSubnetLayer layer = (ImgTileSubnetLayer) getLayer();
+      final AtomicInteger submitted = new AtomicInteger(0);
+      layer.setExecutor(command -> {
+        if (submitted.incrementAndGet() > 2) throw new RejectedExecutionException();
+        pool.execute(command);
+      });
+      Assertions.assertThrows(RejectedExecutionException.class, () -> layer.eval(new Tensor(6, 6, 1)));
+      layer.freeRef();
+    }
+
+  }
+
+  /**
+   * The type Halo.
+   */
+  public static class Halo extends ImgTileSubnetLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      ImgTileSubnetLayer layer = new ImgTileSubnetLayer(
+          new LinearActivationLayer(),
+          3, 3);
+      layer.setHaloX(1);
+      layer.setHaloY(1);
+      return layer;
+    }
+
+  }
+
 }
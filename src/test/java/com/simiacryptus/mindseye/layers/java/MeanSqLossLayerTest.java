@@ -48,4 +48,19 @@ public abstract class MeanSqLossLayerTest extends LayerTestBase {
 
   }
 
+  /**
+   * The type Recompute.
+   */
+  public static class Recompute extends MeanSqLossLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      MeanSqLossLayer layer = new MeanSqLossLayer();
+      layer.setRecompute(true);
+      return layer;
+    }
+
+  }
+
 }
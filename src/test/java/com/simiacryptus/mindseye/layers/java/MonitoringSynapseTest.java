@@ -48,4 +48,18 @@ public abstract class MonitoringSynapseTest extends LayerTestBase {
 
   }
 
+  /**
+   * The type Sampled.
+   */
+  public static class Sampled extends MonitoringSynapseTest {
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      MonitoringSynapse layer = new MonitoringSynapse();
+      layer.setBatchInterval(2);
+      layer.setElementRate(0.5);
+      return layer;
+    }
+  }
+
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The type Noise generator test.
+ */
+public class NoiseGeneratorTest {
+
+  /**
+   * Parallel fills match the element-wise draws and have the expected moments.
+   */
+  @Test
+  public void gaussian() {
+    final double[] data = new double[100000];
+    NoiseGenerator.fillGaussian(42, 3, data, 0, 1);
+    double sum = 0;
+    double sumSq = 0;
+    for (int i = 0; i < data.length; i++) {
+      Assertions.assertEquals(NoiseGenerator.gaussian(42, 3, i), data[i], 0.0);
+      sum += data[i];
+      sumSq += data[i] * data[i];
+    }
+    final double mean = sum / data.length;
+    Assertions.assertEquals(0, mean, 0.02);
+    Assertions.assertEquals(1, sumSq / data.length - mean * mean, 0.02);
+  }
+
+  /**
+   * Bernoulli draws succeed at the requested rate.
+   */
+  @Test
+  public void bernoulli() {
+    final double[] data = new double[100000];
+    NoiseGenerator.fillBernoulli(7, 0, data, 0.3, 1);
+    double hits = 0;
+    for (double v : data) hits += v;
+    Assertions.assertEquals(0.3, hits / data.length, 0.01);
+  }
+
+  /**
+   * Layer seeds depend on the layer and preserve the disabled value.
+   */
+  @Test
+  public void layerSeed() {
+    final UUID a = UUID.randomUUID();
+    final UUID b = UUID.randomUUID();
+    Assertions.assertNotEquals(NoiseGenerator.layerSeed(1, -1, a), NoiseGenerator.layerSeed(1, -1, b));
+    Assertions.assertEquals(NoiseGenerator.layerSeed(1, -1, a), NoiseGenerator.layerSeed(1, -1, a));
+    Assertions.assertEquals(-1, NoiseGenerator.layerSeed(-1, -1, a));
+    Assertions.assertEquals(0, NoiseGenerator.layerSeed(0, 0, a));
+  }
+
+  /**
+   * Two dropout layers shuffled with one seed draw different masks, and each layer reproduces its
+   * own mask.
+   */
+  @Test
+  public void dropoutLayersAreIndependent() {
+    DropoutNoiseLayer first = new DropoutNoiseLayer(0.5);
+    DropoutNoiseLayer second = new DropoutNoiseLayer(0.5);
+    first.shuffle(12345);
+    second.shuffle(12345);
+    final double[] a = mask(first.addRef());
+    final double[] b = mask(second);
+    Assertions.assertFalse(Arrays.equals(a, b));
+    Assertions.assertArrayEquals(a, mask(first), 0.0);
+  }
+
+  /**
+   * Under a context seed, layers still draw different masks, and every read of the seed is counted.
+   */
+  @Test
+  public void contextSeedIsMixedAndCounted() {
+    DropoutNoiseLayer first = new DropoutNoiseLayer(0.5);
+    DropoutNoiseLayer second = new DropoutNoiseLayer(0.5);
+    NoiseGenerator.withSeed(777, () -> {
+      Assertions.assertFalse(Arrays.equals(mask(first.addRef()), mask(second.addRef())));
+      Assertions.assertEquals(2, NoiseGenerator.getContextSeedReads());
+      return null;
+    });
+    Assertions.assertEquals(0, NoiseGenerator.getContextSeedReads());
+    first.freeRef();
+    second.freeRef();
+  }
+
+  @Nonnull
+  private static double[] mask(@Nonnull Layer layer) {
+    final double[] ones = new double[256];
+    Arrays.fill(ones, 1.0);
+    Result result = layer.eval(new Tensor(ones, ones.length));
+    layer.freeRef();
+    TensorList data = result.getData();
+    result.freeRef();
+    Tensor tensor = data.get(0);
+    data.freeRef();
+    final double[] values = tensor.getData().clone();
+    tensor.freeRef();
+    return values;
+  }
+}
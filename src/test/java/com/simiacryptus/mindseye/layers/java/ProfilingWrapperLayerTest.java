@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.test.LayerTestBase;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The type Profiling wrapper layer test.
+ */
+public abstract class ProfilingWrapperLayerTest extends LayerTestBase {
+
+  @Nonnull
+  @Override
+  public Layer getLayer() {
+    return new ProfilingWrapperLayer(new BiasLayer(3));
+  }
+
+  @Nonnull
+  @Override
+  public int[][] getSmallDims() {
+    return new int[][]{{3}};
+  }
+
+  /**
+   * The type Basic.
+   */
+  public static class Basic extends ProfilingWrapperLayerTest {
+
+    /**
+     * One forward and one backward pass over a batch of two are recorded against the wrapped layer.
+     */
+    @Test
+    public void recordsCalls() {
+      LayerProfiler profiler = new LayerProfiler();
+      SigmoidActivationLayer inner = new SigmoidActivationLayer();
+      Map<CharSequence, Object> metrics = profile(new ProfilingWrapperLayer(inner.addRef(), profiler), inner, profiler, 0);
+      Assertions.assertEquals(1L, metrics.get("forwardCalls"));
+      Assertions.assertEquals(1L, metrics.get("backwardCalls"));
+      Assertions.assertEquals(2L, metrics.get("outputTensors"));
+    }
+
+    /**
+     * Time spent in the accumulators of the layer's inputs is not charged to its backward pass.
+     */
+    @Test
+    public void excludesUpstreamBackward() {
+      LayerProfiler profiler = new LayerProfiler();
+      SigmoidActivationLayer inner = new SigmoidActivationLayer();
+      Map<CharSequence, Object> metrics = profile(new ProfilingWrapperLayer(inner.addRef(), profiler), inner, profiler, 200);
+      Assertions.assertEquals(1L, metrics.get("backwardCalls"));
+      Assertions.assertTrue((Long) metrics.get("backwardWallNanos") < 100_000_000L, metrics.toString());
+    }
+
+    /**
+     * Every node is wrapped, including those of a nested network, and wrapped nodes are not wrapped
+     * again.
+     */
+    @Test
+    public void addToWrapsEveryNodeOnce() {
+      LayerProfiler other = new LayerProfiler();
+      ProfilingWrapperLayer existing = new ProfilingWrapperLayer(new LinearActivationLayer(), other);
+      PipelineNetwork nested = new PipelineNetwork(1);
+      RefUtil.freeRef(nested.add(new SigmoidActivationLayer()));
+      RefUtil.freeRef(nested.add(new LinearActivationLayer()));
+      PipelineNetwork network = new PipelineNetwork(1);
+      RefUtil.freeRef(network.add(new BiasLayer(1)));
+      RefUtil.freeRef(network.add(nested.addRef()));
+      RefUtil.freeRef(network.add(existing.addRef()));
+      LayerProfiler profiler = new LayerProfiler();
+      profiler.addTo(network.addRef());
+      List<Layer> layers = layers(network);
+      layers.addAll(layers(nested));
+      Assertions.assertEquals(5, layers.size());
+      int existingCount = 0;
+      for (Layer layer : layers) {
+        Assertions.assertTrue(layer instanceof ProfilingWrapperLayer, layer.getName());
+        Layer inner = ((ProfilingWrapperLayer) layer).getInner();
+        Assertions.assertFalse(inner instanceof ProfilingWrapperLayer, layer.getName());
+        RefUtil.freeRef(inner);
+        if (layer == existing) {
+          existingCount++;
+          Assertions.assertSame(other, existing.getProfiler());
+        } else {
+          Assertions.assertSame(profiler, ((ProfilingWrapperLayer) layer).getProfiler());
+        }
+        layer.freeRef();
+      }
+      Assertions.assertEquals(1, existingCount);
+      existing.freeRef();
+    }
+
+    @Nonnull
+    private static Map<CharSequence, Object> profile(@Nonnull ProfilingWrapperLayer layer, @Nonnull Layer inner,
+                                                     @Nonnull LayerProfiler profiler, long upstreamMillis) {
+      Result input = new Result(new TensorArray(new Tensor(new double[]{1, 2, 3}, 3), new Tensor(new double[]{4, 5, 6}, 3)),
+          new Result.Accumulator() {
+            @Override
+            public void accept(@Nullable DeltaSet<UUID> buffer, @Nonnull TensorList delta) {
+              delta.freeRef();
+              if (null != buffer) buffer.freeRef();
+              try {
+                Thread.sleep(upstreamMillis);
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          }, true);
+      Result output = layer.eval(input);
+      layer.freeRef();
+      Result.Accumulator accumulator = output.getAccumulator();
+      output.freeRef();
+      accumulator.accept(null, new TensorArray(new Tensor(new double[]{1, 1, 1}, 3), new Tensor(new double[]{1, 1, 1}, 3)));
+      accumulator.freeRef();
+      Map<CharSequence, Object> metrics = profiler.get(inner).getMetrics();
+      inner.freeRef();
+      return metrics;
+    }
+
+    @Nonnull
+    private static List<Layer> layers(@Nonnull DAGNetwork network) {
+      List<Layer> layers = new ArrayList<>();
+      network.visitNodes(node -> {
+        Layer layer = node.getLayer();
+        node.freeRef();
+        if (null != layer) layers.add(layer);
+      });
+      network.freeRef();
+      return layers;
+    }
+  }
+
+}
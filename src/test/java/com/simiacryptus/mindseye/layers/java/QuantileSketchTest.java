@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.java;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The type Quantile sketch test.
+ */
+public class QuantileSketchTest {
+
+  private static final double[] QUANTILES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 1};
+
+  /**
+   * Every quantile is within the relative accuracy of the exact sample at the same rank.
+   */
+  @Test
+  public void relativeError() {
+    final double[] data = sample(new Random(3), 100000);
+    QuantileSketch sketch = new QuantileSketch(0.01);
+    sketch.add(data, 0, 1);
+    final double[] sorted = data.clone();
+    Arrays.sort(sorted);
+    for (double quantile : QUANTILES) {
+      final double expected = sorted[(int) (quantile * (sorted.length - 1))];
+      Assertions.assertEquals(expected, sketch.getQuantile(quantile), 0.01 * Math.abs(expected) + 1e-12,
+          "quantile " + quantile);
+    }
+  }
+
+  /**
+   * Merging sketches of two halves gives the same quantiles as sketching the whole.
+   */
+  @Test
+  public void merge() {
+    final double[] data = sample(new Random(5), 20000);
+    QuantileSketch whole = new QuantileSketch();
+    whole.add(data, 0, 1);
+    QuantileSketch even = new QuantileSketch();
+    even.add(data, 0, 2);
+    QuantileSketch odd = new QuantileSketch();
+    odd.add(data, 1, 2);
+    even.merge(odd);
+    Assertions.assertEquals(whole.getCount(), even.getCount());
+    for (double quantile : QUANTILES) {
+      Assertions.assertEquals(whole.getQuantile(quantile), even.getQuantile(quantile), 0.0, "quantile " + quantile);
+    }
+    Assertions.assertThrows(IllegalArgumentException.class, () -> whole.merge(new QuantileSketch(0.05)));
+  }
+
+  /**
+   * NaN and infinite values are counted separately and do not affect the quantiles.
+   */
+  @Test
+  public void nonFinite() {
+    QuantileSketch sketch = new QuantileSketch();
+    sketch.add(new double[]{1, Double.NaN, 2, Double.POSITIVE_INFINITY, 3}, 0, 1);
+    QuantileSketch other = new QuantileSketch();
+    other.add(Double.NEGATIVE_INFINITY);
+    sketch.merge(other);
+    Assertions.assertEquals(3, sketch.getCount());
+    Assertions.assertEquals(3, sketch.getNonFinite());
+    Assertions.assertEquals(3L, sketch.getMetrics().get("nonFinite"));
+    Assertions.assertEquals(3, sketch.getQuantile(1), 0.03);
+  }
+
+  /**
+   * The standard deviation of values with a large mean and a small spread survives both adding and
+   * merging.
+   */
+  @Test
+  public void stdDevWithLargeMean() {
+    QuantileSketch first = new QuantileSketch();
+    QuantileSketch second = new QuantileSketch();
+    for (int i = 0; i < 1000; i++) {
+      (i < 300 ? first : second).add(1e9 + i);
+    }
+    // The population standard deviation of n consecutive integers is sqrt((n^2 - 1) / 12)
+    Assertions.assertEquals(Math.sqrt((700.0 * 700 - 1) / 12), (Double) second.getMetrics().get("stdDev"), 1e-6);
+    first.merge(second);
+    Assertions.assertEquals(1e9 + 499.5, (Double) first.getMetrics().get("mean"), 1e-6);
+    Assertions.assertEquals(Math.sqrt((1000.0 * 1000 - 1) / 12), (Double) first.getMetrics().get("stdDev"), 1e-6);
+  }
+
+  private static double[] sample(Random random, int size) {
+    // Log-normal magnitudes of both signs, with some exact zeros
+    final double[] data = new double[size];
+    for (int i = 0; i < size; i++) {
+      if (0 == i % 50) continue;
+      final double magnitude = Math.exp(3 * random.nextGaussian());
+      data[i] = random.nextBoolean() ? magnitude : -magnitude;
+    }
+    return data;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The type Receptive field test.
+ */
+public class ReceptiveFieldTest {
+
+  /**
+   * A pooling kernel scales the field without widening it.
+   */
+  @Test
+  public void kernel() {
+    ReceptiveField field = ReceptiveField.analyze(new AvgPoolingLayer(2, 2), new int[]{8, 6, 1});
+    Assertions.assertEquals(2, field.getScaleX(), 0.0);
+    Assertions.assertEquals(2, field.getScaleY(), 0.0);
+    Assertions.assertEquals(4, field.getWidth());
+    Assertions.assertEquals(3, field.getHeight());
+    Assertions.assertEquals(0, field.getHaloX());
+    Assertions.assertEquals(0, field.getHaloY());
+  }
+
+  /**
+   * Offsets of a chain accumulate through later kernels, and pointwise layers add nothing.
+   */
+  @Test
+  public void chain() {
+    PipelineNetwork network = new PipelineNetwork(1);
+    RefUtil.freeRef(network.add(new ImgZeroPaddingLayer(2, 1)));
+    RefUtil.freeRef(network.add(new SigmoidActivationLayer()));
+    RefUtil.freeRef(network.add(new AvgPoolingLayer(2, 2)));
+    ReceptiveField field = ReceptiveField.analyze(network, new int[]{8, 8, 1});
+    Assertions.assertEquals(2, field.getScaleX(), 0.0);
+    Assertions.assertEquals(-2, field.getMinX(), 0.0);
+    Assertions.assertEquals(-2, field.getMaxX(), 0.0);
+    Assertions.assertEquals(-1, field.getMinY(), 0.0);
+    Assertions.assertEquals(6, field.getWidth());
+    Assertions.assertEquals(5, field.getHeight());
+    Assertions.assertEquals(2, field.getHaloX());
+    Assertions.assertEquals(1, field.getHaloY());
+  }
+
+  /**
+   * A layer the analysis does not recognize is assumed to see the whole image.
+   */
+  @Test
+  public void unknownLayer() {
+    ReceptiveField field = ReceptiveField.analyze(
+        new FullyConnectedLayer(new int[]{8, 6, 1}, new int[]{8, 6, 1}), new int[]{8, 6, 1});
+    Assertions.assertEquals(8, field.getHaloX());
+    Assertions.assertEquals(6, field.getHaloY());
+    Assertions.assertEquals(8, field.getWidth());
+    Assertions.assertEquals(6, field.getHeight());
+  }
+}
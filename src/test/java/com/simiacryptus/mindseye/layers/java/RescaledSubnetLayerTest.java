@@ -48,4 +48,19 @@ public abstract class RescaledSubnetLayerTest extends LayerTestBase {
 
   }
 
+  /**
+   * The type Batched.
+   */
+  public static class Batched extends RescaledSubnetLayerTest {
+
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      RescaledSubnetLayer layer = new RescaledSubnetLayer(2, new ImgBandBiasLayer(2));
+      layer.setBatched(true);
+      return layer;
+    }
+
+  }
+
 }
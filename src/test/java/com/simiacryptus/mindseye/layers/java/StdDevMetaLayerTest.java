@@ -19,10 +19,14 @@
 
 package com.simiacryptus.mindseye.layers.java;
 
-import com.simiacryptus.mindseye.lang.Layer;
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.layers.MetaLayerTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
+import java.util.HashMap;
 
 /**
  * The type Std dev meta layer test.
@@ -65,6 +69,61 @@ public abstract class StdDevMetaLayerTest extends MetaLayerTestBase {
    */
   public static class Basic extends StdDevMetaLayerTest {
 
+    /**
+     * Without a momentum, batches no larger than the min batch count reuse the last larger batch.
+     */
+    @Test
+    public void reusesLastBatch() {
+      StdDevMetaLayer layer = new StdDevMetaLayer(1);
+      final double stdDev = stdDev(layer.eval(new Result(new TensorArray(
+          new Tensor(new double[]{1, 2, 3}, 3), new Tensor(new double[]{4, 5, 6}, 3)))));
+      Assertions.assertEquals(Math.sqrt(35.0 / 12), stdDev, 1e-12);
+      Assertions.assertEquals(stdDev, stdDev(layer.eval(new Tensor(new double[]{0, 0, 9}, 3))), 0.0);
+      layer.freeRef();
+    }
+
+    /**
+     * The min batch count of the older PipelineNetwork form is read from its AvgMetaLayer nodes.
+     */
+    @Test
+    public void readsLegacyMinBatchCount() {
+      StdDevMetaLayer layer = new StdDevMetaLayer();
+      JsonObject json = layer.getJson(new HashMap<>(), null);
+      layer.freeRef();
+      json.remove("minBatchCount");
+      JsonObject avgMetaLayer = new JsonObject();
+      avgMetaLayer.addProperty("class", AvgMetaLayer.class.getName());
+      avgMetaLayer.addProperty("minBatchCount", 3);
+      JsonObject layers = new JsonObject();
+      layers.add("avg", avgMetaLayer);
+      json.add("layers", layers);
+      StdDevMetaLayer legacy = StdDevMetaLayer.fromJson(json, new HashMap<>());
+      Assertions.assertEquals(3, legacy.getMinBatchCount());
+      legacy.freeRef();
+    }
+
+    private static double stdDev(@Nonnull Result result) {
+      TensorList data = result.getData();
+      result.freeRef();
+      Tensor tensor = data.get(0);
+      data.freeRef();
+      final double value = tensor.get(0);
+      tensor.freeRef();
+      return value;
+    }
+  }
+
+  /**
+   * The type Running.
+   */
+  public static class Running extends StdDevMetaLayerTest {
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      StdDevMetaLayer layer = new StdDevMetaLayer(0);
+      layer.setMomentum(0.1);
+      return layer;
+    }
   }
 
 }
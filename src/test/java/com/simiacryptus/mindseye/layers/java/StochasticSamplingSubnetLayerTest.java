@@ -20,11 +20,17 @@
 package com.simiacryptus.mindseye.layers.java;
 
 import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
 import com.simiacryptus.mindseye.network.PipelineNetwork;
 import com.simiacryptus.mindseye.test.LayerTestBase;
 import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
+import java.util.Arrays;
 
 /**
  * The type Stochastic sampling subnet layer test.
@@ -55,6 +61,68 @@ public abstract class StochasticSamplingSubnetLayerTest extends LayerTestBase {
    */
   public static class Basic extends StochasticSamplingSubnetLayerTest {
 
+    /**
+     * Noise layers wrapped by a profiler are still shuffled, so each sample draws new noise.
+     */
+    @Test
+    public void shufflesWrappedNoise() {
+      PipelineNetwork subnetwork = new PipelineNetwork(1);
+      RefUtil.freeRef(subnetwork.add(new DropoutNoiseLayer(0.5)));
+      new LayerProfiler().addTo(subnetwork.addRef());
+      StochasticSamplingSubnetLayer layer = new StochasticSamplingSubnetLayer(subnetwork.addRef(), 2);
+      layer.shuffleSubnet(1);
+      final double[] first = mask(subnetwork.addRef());
+      layer.shuffleSubnet(2);
+      final double[] second = mask(subnetwork);
+      Assertions.assertFalse(Arrays.equals(first, second));
+      layer.freeRef();
+    }
+
+    @Nonnull
+    private static double[] mask(@Nonnull Layer layer) {
+      final double[] ones = new double[256];
+      Arrays.fill(ones, 1.0);
+      Result result = layer.eval(new Tensor(ones, ones.length));
+      layer.freeRef();
+      TensorList data = result.getData();
+      result.freeRef();
+      Tensor tensor = data.get(0);
+      data.freeRef();
+      final double[] values = tensor.getData().clone();
+      tensor.freeRef();
+      return values;
+    }
+
+  }
+
+  /**
+   * The type Parallel.
+   */
+  public static class Parallel extends StochasticSamplingSubnetLayerTest {
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      PipelineNetwork subnetwork = new PipelineNetwork(1);
+      RefUtil.freeRef(subnetwork.add(new ProductLayer(), subnetwork.getInput(0),
+          subnetwork.add(new BinaryNoiseLayer(0.5), subnetwork.getInput(0))));
+      RefUtil.freeRef(subnetwork.add(new DropoutNoiseLayer(0.5)));
+      StochasticSamplingSubnetLayer layer = new StochasticSamplingSubnetLayer(subnetwork, 4);
+      layer.setParallel(true);
+      return layer;
+    }
+
+    /**
+     * Noise layers evaluated on other threads would ignore the sample seed, so they are rejected.
+     */
+    @Test
+    public void rejectsOffThreadNoise() {
+      SubBatchLayer subBatch = new SubBatchLayer(new DropoutNoiseLayer(0.5));
+      subBatch.setMaxConcurrency(2);
+      StochasticSamplingSubnetLayer layer = new StochasticSamplingSubnetLayer(subBatch, 4);
+      layer.setParallel(true);
+      Assertions.assertThrows(IllegalStateException.class, () -> layer.eval(new Tensor(new double[]{1, 2, 3}, 3)));
+      layer.freeRef();
+    }
   }
 
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorList;
+import com.simiacryptus.mindseye.network.DAGNode;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The type Streaming tile evaluator test.
+ */
+public class StreamingTileEvaluatorTest {
+
+  /**
+   * A file evaluated in tiles matches the network evaluated on the whole image, when the halo covers
+   * the network's footprint; a halo that is too small does not.
+   *
+   * @throws IOException the io exception
+   */
+  @Test
+  public void roundTrip() throws IOException {
+    final int[] inputDims = {12, 9, 3};
+    final Tensor image = new Tensor(inputDims);
+    final double[] data = image.getData();
+    final Random random = new Random(1);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = random.nextGaussian();
+    }
+    final File input = File.createTempFile("input", ".raw");
+    final File output = File.createTempFile("output", ".raw");
+    input.deleteOnExit();
+    output.deleteOnExit();
+    StreamingTileEvaluator.write(image.addRef(), input);
+
+    PipelineNetwork network = boxFilter(12, 9);
+    Result result = network.eval(image);
+    network.freeRef();
+    TensorList resultList = result.getData();
+    result.freeRef();
+    final Tensor expected = resultList.get(0);
+    resultList.freeRef();
+
+    // Two 3x3 passes reach two pixels out, so a halo of 2 around 4x3 tiles gives 8x7 tile inputs
+    StreamingTileEvaluator evaluator = new StreamingTileEvaluator(boxFilter(8, 7), 4, 3);
+    evaluator.setHaloX(2);
+    evaluator.setHaloY(2);
+    evaluator.setThreads(2);
+    StreamingTileEvaluator.Progress progress = evaluator.eval(input, inputDims, output, 2);
+    evaluator.freeRef();
+    Assertions.assertEquals(9, progress.getTiles());
+    Assertions.assertEquals(12 * 9, progress.getPixels());
+    final Tensor actual = StreamingTileEvaluator.read(output, 12, 9, 2);
+    Assertions.assertArrayEquals(expected.getData(), actual.getData(), 1e-12);
+    actual.freeRef();
+
+    StreamingTileEvaluator narrow = new StreamingTileEvaluator(boxFilter(6, 5), 4, 3);
+    narrow.setHaloX(1);
+    narrow.setHaloY(1);
+    narrow.setThreads(2);
+    narrow.eval(input, inputDims, output, 2);
+    narrow.freeRef();
+    final Tensor truncated = StreamingTileEvaluator.read(output, 12, 9, 2);
+    Assertions.assertFalse(Arrays.equals(expected.getData(), truncated.getData()));
+    expected.freeRef();
+    truncated.freeRef();
+  }
+
+  /**
+   * Networks that are still trainable are rejected.
+   *
+   * @throws IOException the io exception
+   */
+  @Test
+  public void requiresFrozenNetwork() throws IOException {
+    final File input = File.createTempFile("input", ".raw");
+    input.deleteOnExit();
+    StreamingTileEvaluator.write(new Tensor(2, 2, 1), input);
+    StreamingTileEvaluator evaluator = new StreamingTileEvaluator(new SigmoidActivationLayer(), 2, 2);
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> evaluator.eval(input, new int[]{2, 2, 1}, input, 1));
+    evaluator.freeRef();
+  }
+
+  /**
+   * Builds two passes of a 3x3 box sum, with zeros outside the image, followed by a band selection.
+   * Every layer has fixed dimensions, so the network only accepts images of the given size.
+   */
+  @Nonnull
+  private static PipelineNetwork boxFilter(final int width, final int height) {
+    PipelineNetwork network = new PipelineNetwork(1);
+    DAGNode source = network.getInput(0);
+    for (int pass = 0; pass < 2; pass++) {
+      final DAGNode[] shifted = new DAGNode[9];
+      for (int i = 0; i < shifted.length; i++) {
+        shifted[i] = network.add(new ImgTileSelectLayer(width, height, i % 3 - 1, i / 3 - 1), source.addRef());
+      }
+      source.freeRef();
+      source = network.add(new SumInputsLayer(), shifted);
+    }
+    source.freeRef();
+    RefUtil.freeRef(network.add(new ImgBandSelectLayer(2, 0)));
+    network.setFrozen(true);
+    return network;
+  }
+}
@@ -66,4 +66,31 @@ public class SubBatchLayerTest extends LayerTestBase {
       layer.freeRef();
   }
 
+  /**
+   * The type Batched.
+   */
+  public static class Batched extends SubBatchLayerTest {
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      SubBatchLayer layer = SubBatchLayer.wrap(new SoftmaxLayer());
+      layer.setBatchSize(2);
+      return layer;
+    }
+  }
+
+  /**
+   * The type Concurrent.
+   */
+  public static class Concurrent extends SubBatchLayerTest {
+    @Nonnull
+    @Override
+    public Layer getLayer() {
+      SubBatchLayer layer = SubBatchLayer.wrap(new SoftmaxLayer());
+      layer.setBatchSize(2);
+      layer.setMaxConcurrency(3);
+      return layer;
+    }
+  }
+
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.simiacryptus.mindseye.layers.java;
+
+import com.simiacryptus.mindseye.lang.Result;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.lang.TensorArray;
+import com.simiacryptus.mindseye.lang.TensorList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+
+/**
+ * The type Tile cache test.
+ */
+public class TileCacheTest {
+
+  private final UUID layerId = UUID.randomUUID();
+
+  /**
+   * A stored output is returned for an equal tile and counted as a hit; other tiles miss.
+   */
+  @Test
+  public void hitsAndMisses() {
+    TileCache cache = new TileCache(1 << 20);
+    Assertions.assertNull(cache.get(key(0, 1, 2, 3, 4)));
+    cache.put(key(0, 1, 2, 3, 4), tiles(5, 6, 7, 8));
+    TensorList cached = cache.get(key(0, 1, 2, 3, 4));
+    Assertions.assertNotNull(cached);
+    Tensor tensor = cached.get(0);
+    cached.freeRef();
+    Assertions.assertArrayEquals(new double[]{5, 6, 7, 8}, tensor.getData(), 0.0);
+    tensor.freeRef();
+    Assertions.assertNull(cache.get(key(0, 1, 2, 3, 5)));
+    Assertions.assertEquals(1.0 / 3, cache.getHitRate(), 1e-12);
+  }
+
+  /**
+   * The least recently used entry is evicted first once the byte limit is exceeded.
+   */
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    TileCache cache = new TileCache(2 * 4 * Double.BYTES);
+    cache.put(key(0, 1, 1, 1, 1), tiles(1, 1, 1, 1));
+    cache.put(key(0, 2, 2, 2, 2), tiles(2, 2, 2, 2));
+    free(cache.get(key(0, 1, 1, 1, 1)));
+    cache.put(key(0, 3, 3, 3, 3), tiles(3, 3, 3, 3));
+    Assertions.assertNull(cache.get(key(0, 2, 2, 2, 2)));
+    free(cache.get(key(0, 1, 1, 1, 1)));
+    free(cache.get(key(0, 3, 3, 3, 3)));
+    Assertions.assertEquals(1L, cache.getMetrics().get("evictions"));
+    Assertions.assertEquals(2, cache.getMetrics().get("entries"));
+  }
+
+  /**
+   * Outputs stored under earlier weights are not returned after the weights change.
+   */
+  @Test
+  public void invalidatesOnWeightChange() {
+    BiasLayer bias = new BiasLayer(4);
+    final long before = TileCache.stateHash(bias.addRef());
+    Assertions.assertEquals(before, TileCache.stateHash(bias.addRef()));
+    bias.set(new double[]{1, 0, 0, 0});
+    final long after = TileCache.stateHash(bias.addRef());
+    bias.freeRef();
+    Assertions.assertNotEquals(before, after);
+    TileCache cache = new TileCache(1 << 20);
+    cache.put(key(before, 1, 2, 3, 4), tiles(5, 6, 7, 8));
+    Assertions.assertNull(cache.get(key(after, 1, 2, 3, 4)));
+  }
+
+  /**
+   * A tiled layer with a cache follows updates to the weights of its frozen subnetwork.
+   */
+  @Test
+  public void tiledLayerSeesWeightUpdates() {
+    ImgBandBiasLayer bias = new ImgBandBiasLayer(1);
+    bias.setFrozen(true);
+    ImgTileSubnetLayer layer = new ImgTileSubnetLayer(bias.addRef(), 2, 2);
+    layer.setTileCache(new TileCache(1 << 20));
+    Assertions.assertEquals(0.0, output(layer), 0.0);
+    bias.set(new double[]{1});
+    Assertions.assertEquals(1.0, output(layer), 0.0);
+    bias.freeRef();
+    layer.freeRef();
+  }
+
+  private static double output(@Nonnull ImgTileSubnetLayer layer) {
+    Result result = layer.eval(new Tensor(4, 4, 1));
+    TensorList data = result.getData();
+    result.freeRef();
+    Tensor tensor = data.get(0);
+    data.freeRef();
+    final double value = tensor.getData()[15];
+    tensor.freeRef();
+    return value;
+  }
+
+  @Nonnull
+  private TileCache.Key key(long stateHash, double... values) {
+    return TileCache.key(layerId, stateHash, tiles(values));
+  }
+
+  @Nonnull
+  private static TensorList tiles(double... values) {
+    return new TensorArray(new Tensor(values, 2, 2, 1));
+  }
+
+  private static void free(TensorList list) {
+    Assertions.assertNotNull(list);
+    list.freeRef();
+  }
+}